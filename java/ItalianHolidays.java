@@ -24,12 +24,35 @@
 
 package co.aurasphere.scripts;
 
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.BitSet;
 import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Utility class for handling italian holidays. This class is thread safe. <br>
  * <br>
+ * Each operation is available for {@link Calendar}, {@link LocalDate} and
+ * epoch days (the number of days since the 1st January 1970). The epoch day
+ * variants never allocate, so they should be preferred on hot paths. <br>
+ * <br>
+ * Besides the national holidays, local patron saint days can be taken into
+ * account by using the instance of a {@link Region} or by building an
+ * instance with additional {@link HolidayRule}s. All the holidays are compiled
+ * into the same per-year index, so the cost of each check doesn't depend on
+ * the number of rules. <br>
+ * <br>
  * Here's a table with all official holidays for reference:
  * 
  * <table>
@@ -114,31 +137,29 @@ import java.util.Calendar;
 public class ItalianHolidays {
 
 	/**
-	 * Formatter for the italian format "dd/MM/yyyy" (UNI EN 28601). <br>
-	 * <br>
-	 * <b>Access to this object must be synchronized externally since it's not
-	 * thread safe.</b> For this reason, it's not exposed by the public API. Use
-	 * the thread safe {@link #formatDateToItalianFormat(Calendar)} method
-	 * instead.
+	 * Length of a date in the italian format "dd/MM/yyyy" (UNI EN 28601).
 	 */
-	private final SimpleDateFormat ITALIAN_DATE_FORMAT = new SimpleDateFormat(
-			"dd/MM/yyyy");
+	public static final int ITALIAN_FORMAT_LENGTH = 10;
 
 	/**
-	 * Formatter for the italian short format "dd/MM/yy". <br>
-	 * <br>
-	 * <b>Access to this object must be synchronized externally since it's not
-	 * thread safe.</b> For this reason, it's not exposed by the public API. Use
-	 * the thread safe {@link #formatDateToItalianShortFormat(Calendar)} method
-	 * instead.
+	 * Length of a date in the italian short format "dd/MM/yy".
 	 */
-	private final SimpleDateFormat ITALIAN_SHORT_DATE_FORMAT = new SimpleDateFormat(
-			"dd/MM/yy");
+	public static final int ITALIAN_SHORT_FORMAT_LENGTH = 8;
+
+	/**
+	 * First year of the century used to parse the two digits years of the
+	 * italian short format "dd/MM/yy". As {@link java.text.SimpleDateFormat}
+	 * does, the century starts 80 years before the current one.
+	 */
+	private static final int SHORT_FORMAT_CENTURY_START = LocalDate.now()
+			.getYear() - 80;
 
 	/**
 	 * Fixed italian holidays in a year. This array contains all holidays except
 	 * Easter (Pasqua) and Easter Monday (Pasquetta) which are computed for each
-	 * year. <br>
+	 * year. Each holiday is packed in a short, with the day in the lowest 5
+	 * bits and the month (starting from 1) in the upper ones, so the array
+	 * doesn't depend on any year, time zone or time of the day. <br>
 	 * <br>
 	 * Here's a full list of holidays in this array:
 	 * 
@@ -205,310 +226,2669 @@ public class ItalianHolidays {
 	 * </tbody>
 	 * </table>
 	 */
-	public final Calendar[] fixedHolidays = { fromDate(1, Calendar.JANUARY),
-			fromDate(6, Calendar.JANUARY), fromDate(25, Calendar.APRIL),
-			fromDate(1, Calendar.MAY), fromDate(2, Calendar.JUNE),
-			fromDate(15, Calendar.AUGUST), fromDate(1, Calendar.NOVEMBER),
-			fromDate(8, Calendar.DECEMBER), fromDate(25, Calendar.DECEMBER),
-			fromDate(26, Calendar.DECEMBER) };
+	private static final short[] FIXED_HOLIDAYS = { 1 << 5 | 1, 1 << 5 | 6,
+			4 << 5 | 25, 5 << 5 | 1, 6 << 5 | 2, 8 << 5 | 15, 11 << 5 | 1,
+			12 << 5 | 8, 12 << 5 | 25, 12 << 5 | 26 };
 
 	/**
-	 * Holder for an instance of this object, used for the
-	 * initialization-on-demand holder singleton idiom.
-	 * 
-	 * @author Donato Rimenti
-	 *
+	 * First year checked by {@link #main(String[])}.
 	 */
-	private static class InstanceHolder {
-
-		/**
-		 * An instance of this object.
-		 */
-		private static final ItalianHolidays INSTANCE = new ItalianHolidays();
-	}
+	private static final int SELF_CHECK_FIRST_YEAR = 1900;
 
 	/**
-	 * Private constructor for utility class.
+	 * Last year checked by {@link #main(String[])}.
 	 */
-	private ItalianHolidays() {
-	}
+	private static final int SELF_CHECK_LAST_YEAR = 2200;
 
 	/**
-	 * Returns a new or an existing instance of this {@link ItalianHolidays}
-	 * object. This method is thread safe.
-	 * 
-	 * @return an existing or a new instance of this object
+	 * Known fixed holidays used by {@link #main(String[])}, as month (starting
+	 * from 1) and day pairs. This is kept apart from {@link #FIXED_HOLIDAYS}
+	 * on purpose, so that a mistake in the packed table is caught.
 	 */
-	public static ItalianHolidays getInstance() {
-		return InstanceHolder.INSTANCE;
-	}
+	private static final int[][] KNOWN_FIXED_HOLIDAYS = { { 1, 1 }, { 1, 6 },
+			{ 4, 25 }, { 5, 1 }, { 6, 2 }, { 8, 15 }, { 11, 1 }, { 12, 8 },
+			{ 12, 25 }, { 12, 26 } };
 
 	/**
-	 * Returns a calendar object for a specified day and month of this year.
-	 * 
-	 * @param day
-	 *            the day of the calendar
-	 * @param month
-	 *            the month of the calendar
-	 * @return a calendar object with this year and the day and month passed as
-	 *         argument
+	 * Known Easter dates from {@link #SELF_CHECK_FIRST_YEAR} to
+	 * {@link #SELF_CHECK_LAST_YEAR} used by {@link #main(String[])}, one
+	 * character per year. Each character is the number of days between the
+	 * 22nd March and Easter, added to '0'. The dates were computed outside
+	 * of this class with the Oudin algorithm and cross checked with the
+	 * Meeus/Jones/Butcher one.
 	 */
-	public Calendar fromDate(int day, int month) {
-		Calendar calendar = Calendar.getInstance();
-		calendar.set(Calendar.MONTH, month - 1);
-		calendar.set(Calendar.DAY_OF_MONTH, day);
-		return calendar;
-	}
+	private static final String KNOWN_EASTER_DATES = "H@8E<PH9LD5I@1E=PA9M=5I:ME=JA9M>5I:NE6JB2F>RB:N?6J"
+			+ "B3F>KC:N?7J;OG7KC4G?7D;OG8KC4H?LD<O@8L<4H9LD<I@8E="
+			+ "PH9MD5IA1E=QA9M>5I:NE=JB9M>6I:NF6JB3F>RC:N?7JB3G>K"
+			+ "C;N?7K;OG8KC4H?7D<OG8LC4H@LD<P@8L=4H9MD<IA8E=QH9ME"
+			+ "6JB3F>KC:N?7J;OG7KC4G?7D;OG8KC4H?LD<O@8L<4H9LD<I@8"
+			+ "E=PH9MD5IA1E=QA9M>5I:NE=JB9M>6I:NF6JB3F>RC:N?7JB3G"
+			+ "?";
 
 	/**
-	 * Checks if a given date is an holiday.
-	 * 
-	 * @param date
-	 *            the date to check
-	 * @return true if the date passed as argument is an holiday, false
-	 *         otherwise
+	 * Value written by {@link #classify(int[], byte[])} for a working day.
 	 */
-	public boolean isHoliday(Calendar date) {
-		// Check if it's a fixed holiday.
-		for (Calendar holiday : fixedHolidays) {
-			if (sameDayAndMonth(date, holiday)) {
-				return true;
-			}
-		}
-
-		// Check if it's Easter of monday after Easter.
-		Calendar easter = getEasterForYear(date.get(Calendar.YEAR));
-		Calendar mondayAfterEaster = getMondayAfterEasterFromEaster(easter);
-		if (sameDayAndMonth(date, easter)
-				|| sameDayAndMonth(date, mondayAfterEaster)) {
-			return true;
-		}
-
-		// Not an holiday.
-		return false;
-	}
+	public static final byte WORKING_DAY = 0;
 
 	/**
-	 * Checks if a given date is a weekend day.
-	 * 
-	 * @param date
-	 *            the date to check
-	 * @return true if the given date is a weekend day, false otherwise
+	 * Flag set by {@link #classify(int[], byte[])} for an holiday.
 	 */
-	public boolean isWeekend(Calendar date) {
-		return date.get(Calendar.DAY_OF_WEEK) > 5;
-	}
+	public static final byte HOLIDAY = 1;
 
 	/**
-	 * Checks if a given date is a weekend day or an holiday.
-	 * 
-	 * @param date
-	 *            the date to check
-	 * @return true if the given date is a weekend day or an holiday, false
-	 *         otherwise
+	 * Flag set by {@link #classify(int[], byte[])} for a weekend day. An
+	 * holiday which falls on a weekend has both this flag and
+	 * {@link #HOLIDAY} set.
 	 */
-	public boolean isWeekendOrHoliday(Calendar date) {
-		return isWeekend(date) || isHoliday(date);
-	}
+	public static final byte WEEKEND = 2;
 
 	/**
-	 * Checks if a given date is a working day.
-	 * 
-	 * @param date
-	 *            the date to check
-	 * @return true if the given date is a working day, false if it's a weekend
-	 *         or holiday
+	 * Number of dates below which {@link #parallelClassify(int[], byte[])}
+	 * stops splitting the work between threads.
 	 */
-	public boolean isWorkingDay(Calendar date) {
-		return !isWeekendOrHoliday(date);
-	}
+	private static final int PARALLEL_CLASSIFY_THRESHOLD = 1 << 15;
 
 	/**
-	 * Computes the Easter date for the year passed as argument by using the
-	 * Gauss algorithm.
-	 * 
-	 * @param year
-	 *            the year whose Easter needs to be computed
-	 * @return the Easter date for the year passed as argument
+	 * First year whose Easter is precomputed in {@link EasterTableHolder}. This
+	 * is the first full year of the Gregorian calendar.
 	 */
-	public Calendar getEasterForYear(int year) {
-		int a = year % 19;
-		int b = (int) (year / 100);
-		int c = year % 100;
-		int d = (int) (b / 4);
-		int e = b % 4;
-		int f = (int) ((b + 8) / 25);
-		int g = (int) ((b - f + 1) / 3);
-		int h = (19 * a + b - d - g + 15) % 30;
-		int i = (int) (c / 4);
-		int k = c % 4;
-		int l = (32 + 2 * e + 2 * i - h - k) % 7;
-		int m = (int) ((a + 11 * h - 221) / 451);
-		int n = (int) (h + l - 7 * m + 114) / 31;
-		int p = (h + l - 7 * m + 114) % 31;
+	private static final int EASTER_TABLE_FIRST_YEAR = 1583;
 
-		// Actual day and month.
-		int day = p + 1;
-		int month = n;
+	/**
+	 * Last year whose Easter is precomputed in {@link EasterTableHolder}.
+	 */
+	private static final int EASTER_TABLE_LAST_YEAR = 4099;
 
-		// Returns a calendar.
-		Calendar calendar = Calendar.getInstance();
-		calendar.set(year, month - 1, day);
-		return calendar;
-	}
+	/**
+	 * First year covered by {@link #workingDaysBeforeYear}.
+	 */
+	private static final int WORKING_DAYS_TABLE_FIRST_YEAR = 1583;
 
 	/**
-	 * Returns the date of the monday after Easter, computed by getting the
-	 * Easter date through {@link #getEasterForYear(int)} and adding one day.
-	 * 
-	 * @param year
-	 *            the year whose monday after Easter needs to be computed
-	 * @return the date of monday after Easter for the year passed as argument
+	 * Last year covered by {@link #workingDaysBeforeYear}.
 	 */
-	public Calendar getMondayAfterEasterForYear(int year) {
-		Calendar mondayAfterEaster = getEasterForYear(year);
-		mondayAfterEaster.add(Calendar.DAY_OF_MONTH, 1);
-		return mondayAfterEaster;
-	}
+	private static final int WORKING_DAYS_TABLE_LAST_YEAR = 4099;
 
 	/**
-	 * Utility method for returning the monday after Easter from an Easter date.
-	 * The date is computed by adding one day to the date passed as argument. <br>
-	 * <br>
-	 * <b>N.B. : the calendar passed as argument to this method is not modified
-	 * but cloned instead</b>
-	 * 
-	 * @param easter
-	 *            the Easter date. This calendar is not modified but cloned
-	 *            instead.
-	 * @return the monday after the Easter passed as argument
+	 * Number of years whose {@link YearIndex} is kept in {@link #yearIndexCache}.
+	 * Must be a power of two since it's used as a mask.
 	 */
-	public Calendar getMondayAfterEasterFromEaster(Calendar easter) {
-		Calendar mondayAfterEaster = Calendar.getInstance();
-		mondayAfterEaster.setTime(easter.getTime());
-		mondayAfterEaster.add(Calendar.DAY_OF_MONTH, 1);
-		return mondayAfterEaster;
-	}
+	private static final int YEAR_INDEX_CACHE_SIZE = 512;
 
 	/**
-	 * Alias for {@link #getMondayAfterEasterForYear(int)}.
-	 * 
-	 * @param year
-	 *            the year whose Pasquetta needs to be computed
-	 * @return the date of Pasquetta for the year passed as argument
+	 * Number of days before the first day of each month in a non-leap year.
 	 */
-	public Calendar getPasquettaForYear(int year) {
-		return getMondayAfterEasterForYear(year);
-	}
+	private static final int[] DAYS_BEFORE_MONTH = { 0, 31, 59, 90, 120, 151,
+			181, 212, 243, 273, 304, 334 };
 
 	/**
-	 * Alias for {@link #getMondayAfterEasterFromEaster(Calendar)}.
-	 * 
-	 * @param pasqua
-	 *            the Pasqua date. This calendar is not modified but cloned
-	 *            instead.
-	 * @return the Pasquetta after the Pasqua passed as argument
+	 * Direct-mapped cache of the per-year holiday indexes, keyed by the year
+	 * modulo {@link #YEAR_INDEX_CACHE_SIZE}. Indexes are immutable, so a
+	 * concurrent rebuild of the same slot is harmless and the last writer
+	 * simply wins.
 	 */
-	public Calendar getPasquettaFromPasqua(Calendar pasqua) {
-		return getMondayAfterEasterFromEaster(pasqua);
-	}
+	private final AtomicReferenceArray<YearIndex> yearIndexCache = new AtomicReferenceArray<YearIndex>(
+			YEAR_INDEX_CACHE_SIZE);
 
 	/**
-	 * Checks if two calendars refers to the same day and month.
-	 * 
-	 * @param firstDate
-	 *            the first date to check
-	 * @param secondDate
-	 *            the second date to check
-	 * @return true if the calendars passed as arguments have the same day and
-	 *         month, false otherwise
+	 * Cumulative count of the working days across years, built the first
+	 * time an operation spans more than one year. The element at index n is
+	 * the number of working days from the 1st January of
+	 * {@link #WORKING_DAYS_TABLE_FIRST_YEAR} to the 31st December of the year
+	 * before {@link #WORKING_DAYS_TABLE_FIRST_YEAR} + n. The table is
+	 * immutable once published, so a concurrent build is harmless.
 	 */
-	public boolean sameDayAndMonth(Calendar firstDate, Calendar secondDate) {
-		return firstDate.get(Calendar.MONTH) == secondDate.get(Calendar.MONTH)
-				&& firstDate.get(Calendar.DAY_OF_MONTH) == secondDate
-						.get(Calendar.DAY_OF_MONTH);
-	}
+	private volatile int[] workingDaysBeforeYear;
 
 	/**
-	 * Adds the working days passed as arguments to the given calendar. For
-	 * subtraction, you can either pass a negative number or call the more
-	 * straightforward {@link #subtractWorkingDays(Calendar, int)} method.
-	 * 
-	 * <b>Note that the calendar passed as argument to this method is actually
-	 * modified</b>.
+	 * Immutable index of the non-working days of a year. Each day is
+	 * represented by a bit (day of year minus one) in bitmaps of 6 longs, so
+	 * any query is a single array lookup.
 	 * 
-	 * @param date
-	 *            the date whose days needs to be incremented
-	 * @param workingDays
-	 *            the working days to add to the given date
-	 * @return the same calendar object with the working days passed as argument
-	 *         added
+	 * @author Donato Rimenti
+	 *
 	 */
-	public Calendar addWorkingDays(Calendar date, int workingDays) {
-		int counter = 0;
-		while (counter < workingDays) {
-			date.add(Calendar.DAY_OF_MONTH, 1);
+	private static final class YearIndex {
+
+		/**
+		 * The year this index refers to.
+		 */
+		private final int year;
+
+		/**
+		 * The epoch day of the 1st January of the year.
+		 */
+		private final long firstEpochDay;
+
+		/**
+		 * Bitmap of the holidays in the year.
+		 */
+		private final long[] holidays;
+
+		/**
+		 * Bitmap of the saturdays and sundays in the year.
+		 */
+		private final long[] weekends;
+
+		/**
+		 * Bitmap of the holidays and weekend days in the year.
+		 */
+		private final long[] nonWorkingDays;
+
+		/**
+		 * Cumulative count of the working days in the year. The element at
+		 * index n is the number of working days from the 1st January to the
+		 * n-th day of the year included, so the element at index 0 is always
+		 * 0 and the last one is the number of working days in the year.
+		 */
+		private final short[] workingDaysUntil;
 
-			// A day is considered added only if it's a working day.
-			if (isWorkingDay(date)) {
-				counter++;
+		/**
+		 * Builds a new index.
+		 * 
+		 * @param year
+		 *            the year this index refers to
+		 * @param firstEpochDay
+		 *            the epoch day of the 1st January of the year
+		 * @param daysInYear
+		 *            the number of days in the year
+		 * @param holidays
+		 *            the bitmap of the holidays in the year
+		 * @param weekends
+		 *            the bitmap of the weekend days in the year
+		 */
+		private YearIndex(int year, long firstEpochDay, int daysInYear,
+				long[] holidays, long[] weekends) {
+			this.year = year;
+			this.firstEpochDay = firstEpochDay;
+			this.holidays = holidays;
+			this.weekends = weekends;
+			this.nonWorkingDays = new long[holidays.length];
+			for (int i = 0; i < holidays.length; i++) {
+				this.nonWorkingDays[i] = holidays[i] | weekends[i];
+			}
+			this.workingDaysUntil = new short[daysInYear + 1];
+			for (int day = 1; day <= daysInYear; day++) {
+				this.workingDaysUntil[day] = (short) (this.workingDaysUntil[day - 1] + (isSet(
+						nonWorkingDays, day) ? 0 : 1));
 			}
 		}
-		return date;
-	}
 
-	/**
-	 * Subtracts the working days passed as arguments from the given calendar.
-	 * For addiction, you can either pass a negative number or call the more
-	 * straightforward {@link #addWorkingDays(Calendar, int)} method.
-	 * 
-	 * <b>Note that the calendar passed as argument to this method is actually
-	 * modified</b>.
-	 * 
-	 * @param date
-	 *            the date whose days needs to be decremented
-	 * @param workingDays
-	 *            the working days to subtract from the given date
-	 * @return the same calendar object with the working days passed as argument
-	 *         subtracted
-	 */
-	public Calendar subtractWorkingDays(Calendar date, int workingDays) {
-		return addWorkingDays(date, -workingDays);
-	}
+		/**
+		 * Returns the number of days in the year.
+		 * 
+		 * @return the number of days in the year
+		 */
+		private int daysInYear() {
+			return workingDaysUntil.length - 1;
+		}
 
-	/**
-	 * Formats a date in the italian format "dd/MM/yyyy" (UNI EN 28601). This
-	 * method is thread safe and guarded by the lock on
-	 * {@link #ITALIAN_DATE_FORMAT}.
-	 * 
-	 * @param date
-	 *            the date to format
-	 * @return a date formatted as a "dd/MM/yyyy" string
-	 */
-	public String formatDateToItalianFormat(Calendar date) {
-		// No need to acquire the whole object lock. This also prevents
-		// client code degrading the performance if for some reasons a lock on
-		// the object instance is acquired.
-		synchronized (ITALIAN_DATE_FORMAT) {
-			return ITALIAN_DATE_FORMAT.format(date);
+		/**
+		 * Returns the number of working days in the year.
+		 * 
+		 * @return the number of working days in the year
+		 */
+		private int workingDays() {
+			return workingDaysUntil[workingDaysUntil.length - 1];
+		}
+
+		/**
+		 * Returns the day of the year of the n-th working day of the year, by
+		 * binary searching the cumulative working days count.
+		 * 
+		 * @param ordinal
+		 *            the ordinal of the working day, between 1 and
+		 *            {@link #workingDays()}
+		 * @return the day of the year of the working day, starting from 1
+		 */
+		private int dayOfWorkingDay(int ordinal) {
+			int low = 1;
+			int high = workingDaysUntil.length - 1;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (workingDaysUntil[middle] < ordinal) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Returns the first working day of the year after the given one, by
+		 * scanning the non-working days bitmap one word at a time.
+		 * 
+		 * @param dayOfYear
+		 *            the day of the year after which the search starts,
+		 *            between 0 and {@link #daysInYear()}
+		 * @return the day of the year of the next working day, or 0 if there
+		 *         are no more working days in the year
+		 */
+		private int nextWorkingDay(int dayOfYear) {
+			// The bit of the next day is the day of the year itself.
+			int bit = dayOfYear;
+			for (int word = bit >>> 6; word < nonWorkingDays.length; word++) {
+				long workingBits = ~nonWorkingDays[word];
+				if (word == bit >>> 6) {
+					workingBits &= -1L << bit;
+				}
+				if (workingBits != 0) {
+					int day = (word << 6)
+							+ Long.numberOfTrailingZeros(workingBits) + 1;
+					return day <= daysInYear() ? day : 0;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Returns the last working day of the year before the given one, by
+		 * scanning the non-working days bitmap one word at a time.
+		 * 
+		 * @param dayOfYear
+		 *            the day of the year before which the search starts,
+		 *            between 1 and {@link #daysInYear()} + 1
+		 * @return the day of the year of the previous working day, or 0 if
+		 *         there are no more working days in the year
+		 */
+		private int previousWorkingDay(int dayOfYear) {
+			// The bit of the previous day.
+			int bit = dayOfYear - 2;
+			if (bit < 0) {
+				return 0;
+			}
+			for (int word = bit >>> 6; word >= 0; word--) {
+				long workingBits = ~nonWorkingDays[word];
+				if (word == bit >>> 6) {
+					workingBits &= -1L >>> (63 - (bit & 63));
+				}
+				if (workingBits != 0) {
+					return (word << 6) + 64
+							- Long.numberOfLeadingZeros(workingBits);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Checks whether a bit is set in a bitmap.
+		 * 
+		 * @param bitmap
+		 *            the bitmap to check
+		 * @param dayOfYear
+		 *            the day of the year, starting from 1
+		 * @return true if the bit for the given day is set, false otherwise
+		 */
+		private static boolean isSet(long[] bitmap, int dayOfYear) {
+			int bit = dayOfYear - 1;
+			return (bitmap[bit >>> 6] & (1L << bit)) != 0;
 		}
 	}
 
 	/**
-	 * Formats a date in the italian format "dd/MM/yy". This method is thread
-	 * safe and guarded by the lock on {@link #ITALIAN_SHORT_DATE_FORMAT}.
+	 * Task used by {@link ItalianHolidays#parallelClassify(int[], byte[])}
+	 * to split the classification of a large array between the threads of
+	 * the common fork/join pool.
 	 * 
-	 * @param date
-	 *            the date to format
-	 * @return a date formatted as a "dd/MM/yy" string
+	 * @author Donato Rimenti
+	 *
 	 */
-	public String formatDateToItalianShortFormat(Calendar date) {
-		// No need to acquire the whole object lock. This also prevents
-		// client code degrading the performance if for some reasons a lock on
-		// the object instance is acquired.
-		synchronized (ITALIAN_SHORT_DATE_FORMAT) {
-			return ITALIAN_SHORT_DATE_FORMAT.format(date);
+	private final class ClassifyTask extends RecursiveAction {
+
+		/**
+		 * Serial version UID.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The epoch days to classify.
+		 */
+		private final int[] epochDays;
+
+		/**
+		 * Where the classification of the epoch days is written.
+		 */
+		private final byte[] out;
+
+		/**
+		 * Index of the first element to classify, included.
+		 */
+		private final int from;
+
+		/**
+		 * Index of the last element to classify, excluded.
+		 */
+		private final int to;
+
+		/**
+		 * Builds a new task.
+		 * 
+		 * @param epochDays
+		 *            the epoch days to classify
+		 * @param out
+		 *            where the classification of the epoch days is written
+		 * @param from
+		 *            index of the first element to classify, included
+		 * @param to
+		 *            index of the last element to classify, excluded
+		 */
+		private ClassifyTask(int[] epochDays, byte[] out, int from, int to) {
+			this.epochDays = epochDays;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_CLASSIFY_THRESHOLD) {
+				classify(epochDays, out, from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ClassifyTask(epochDays, out, from, middle),
+					new ClassifyTask(epochDays, out, middle, to));
+		}
+	}
+
+	/**
+	 * Spliterator over the working days in a range of epoch days, used by
+	 * {@link ItalianHolidays#workingDays(long, long)}. Weekends and holidays
+	 * are skipped by scanning the year index bitmaps, so iterating the
+	 * working days of a year is a sequential scan of a few words.
+	 * 
+	 * @author Donato Rimenti
+	 *
+	 */
+	private final class WorkingDaySpliterator implements Spliterator.OfInt {
+
+		/**
+		 * The last epoch day already examined.
+		 */
+		private long position;
+
+		/**
+		 * The last epoch day of the range, included.
+		 */
+		private final long end;
+
+		/**
+		 * Builds a new spliterator.
+		 * 
+		 * @param fromEpochDay
+		 *            the first epoch day of the range, included
+		 * @param toEpochDay
+		 *            the last epoch day of the range, included
+		 */
+		private WorkingDaySpliterator(long fromEpochDay, long toEpochDay) {
+			this.position = fromEpochDay - 1;
+			this.end = toEpochDay;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Spliterator.OfInt#tryAdvance(java.util.function.
+		 * IntConsumer)
+		 */
+		@Override
+		public boolean tryAdvance(IntConsumer action) {
+			if (position >= end) {
+				return false;
+			}
+			long next = nextWorkingDay(position);
+			if (next > end) {
+				position = end;
+				return false;
+			}
+			position = next;
+			action.accept((int) next);
+			return true;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Spliterator.OfInt#forEachRemaining(java.util.function.
+		 * IntConsumer)
+		 */
+		@Override
+		public void forEachRemaining(IntConsumer action) {
+			while (position < end) {
+				// Scans the rest of the current year.
+				YearIndex index = yearIndex(yearOfEpochDay(position + 1));
+				int lastDayOfYear = (int) Math.min(index.daysInYear(), end
+						- index.firstEpochDay + 1);
+				int day = (int) (position - index.firstEpochDay) + 1;
+				while ((day = index.nextWorkingDay(day)) != 0
+						&& day <= lastDayOfYear) {
+					action.accept((int) (index.firstEpochDay + day - 1));
+				}
+				position = index.firstEpochDay + lastDayOfYear - 1;
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Spliterator.OfInt#trySplit()
+		 */
+		@Override
+		public Spliterator.OfInt trySplit() {
+			long remaining = end - position;
+			if (remaining < 64) {
+				return null;
+			}
+			long middle = position + remaining / 2;
+			WorkingDaySpliterator prefix = new WorkingDaySpliterator(
+					position + 1, middle);
+			position = middle;
+			return prefix;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Spliterator#estimateSize()
+		 */
+		@Override
+		public long estimateSize() {
+			// Roughly 5 days out of 7 are working days.
+			return (end - position) * 5 / 7 + 1;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Spliterator#characteristics()
+		 */
+		@Override
+		public int characteristics() {
+			return ORDERED | DISTINCT | SORTED | NONNULL | IMMUTABLE;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Spliterator#getComparator()
+		 */
+		@Override
+		public Comparator<? super Integer> getComparator() {
+			// Natural order.
+			return null;
+		}
+	}
+
+	/**
+	 * Rule which defines when an holiday falls in a given year. Rules are
+	 * only evaluated when the index of a year is built, so they don't need to
+	 * be fast. Implementations must be thread safe.
+	 * 
+	 * @author Donato Rimenti
+	 *
+	 */
+	public interface HolidayRule {
+
+		/**
+		 * Returns the day of the year of this holiday in the given year.
+		 * 
+		 * @param year
+		 *            the year whose holiday is needed
+		 * @return the day of the year of this holiday, starting from 1, or 0
+		 *         if this holiday doesn't fall in the given year
+		 */
+		int dayOfYear(int year);
+	}
+
+	/**
+	 * Rule for an holiday which falls on the same day every year.
+	 * 
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class FixedDateRule implements HolidayRule {
+
+		/**
+		 * The month of the holiday, starting from 1.
+		 */
+		private final int month;
+
+		/**
+		 * The day of the month of the holiday.
+		 */
+		private final int day;
+
+		/**
+		 * Builds a new rule.
+		 * 
+		 * @param month
+		 *            the month of the holiday, starting from 1
+		 * @param day
+		 *            the day of the month of the holiday
+		 */
+		private FixedDateRule(int month, int day) {
+			this.month = month;
+			this.day = day;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see co.aurasphere.scripts.ItalianHolidays.HolidayRule#dayOfYear(int)
+		 */
+		@Override
+		public int dayOfYear(int year) {
+			// The 29th February only exists in leap years.
+			if (day > daysInMonth(year, month)) {
+				return 0;
+			}
+			return ItalianHolidays.dayOfYear(year, month, day);
+		}
+	}
+
+	/**
+	 * Rule for an holiday which falls a fixed number of days before or after
+	 * Easter.
+	 * 
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class EasterRelativeRule implements HolidayRule {
+
+		/**
+		 * Number of days between Easter and the holiday.
+		 */
+		private final int daysFromEaster;
+
+		/**
+		 * Builds a new rule.
+		 * 
+		 * @param daysFromEaster
+		 *            number of days between Easter and the holiday, negative
+		 *            if the holiday is before Easter
+		 */
+		private EasterRelativeRule(int daysFromEaster) {
+			this.daysFromEaster = daysFromEaster;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see co.aurasphere.scripts.ItalianHolidays.HolidayRule#dayOfYear(int)
+		 */
+		@Override
+		public int dayOfYear(int year) {
+			int easter = easter(year);
+			return ItalianHolidays.dayOfYear(year, easter >>> 5, easter & 31)
+					+ daysFromEaster;
+		}
+	}
+
+	/**
+	 * Rule for an holiday which falls on the n-th occurrence of a day of the
+	 * week in a month, like the first sunday of June.
+	 * 
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class NthWeekdayRule implements HolidayRule {
+
+		/**
+		 * The month of the holiday, starting from 1.
+		 */
+		private final int month;
+
+		/**
+		 * The day of the week of the holiday.
+		 */
+		private final DayOfWeek dayOfWeek;
+
+		/**
+		 * The occurrence of the day of the week in the month. Negative values
+		 * count from the end of the month.
+		 */
+		private final int ordinal;
+
+		/**
+		 * Builds a new rule.
+		 * 
+		 * @param month
+		 *            the month of the holiday, starting from 1
+		 * @param dayOfWeek
+		 *            the day of the week of the holiday
+		 * @param ordinal
+		 *            the occurrence of the day of the week in the month,
+		 *            negative values count from the end of the month
+		 */
+		private NthWeekdayRule(int month, DayOfWeek dayOfWeek, int ordinal) {
+			this.month = month;
+			this.dayOfWeek = dayOfWeek;
+			this.ordinal = ordinal;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see co.aurasphere.scripts.ItalianHolidays.HolidayRule#dayOfYear(int)
+		 */
+		@Override
+		public int dayOfYear(int year) {
+			int daysInMonth = daysInMonth(year, month);
+			int firstDayOfMonth = ItalianHolidays.dayOfYear(year, month, 1);
+			// Days of the week start from 0 (monday) as DayOfWeek.ordinal.
+			int firstDayOfWeek = (int) Math.floorMod(epochDayOfYearStart(year)
+					+ firstDayOfMonth - 1 + 3, 7L);
+			int day;
+			if (ordinal > 0) {
+				day = 1 + Math.floorMod(dayOfWeek.ordinal() - firstDayOfWeek, 7)
+						+ 7 * (ordinal - 1);
+			} else {
+				int lastDayOfWeek = (firstDayOfWeek + daysInMonth - 1) % 7;
+				day = daysInMonth
+						- Math.floorMod(lastDayOfWeek - dayOfWeek.ordinal(), 7)
+						- 7 * (-ordinal - 1);
+			}
+			if (day < 1 || day > daysInMonth) {
+				return 0;
+			}
+			return firstDayOfMonth + day - 1;
+		}
+	}
+
+	/**
+	 * Italian cities which close on their patron saint day, in addition to the
+	 * national holidays. Use {@link ItalianHolidays#getInstance(Region)} to
+	 * get the holidays of a region.
+	 * 
+	 * @author Donato Rimenti
+	 *
+	 */
+	public enum Region {
+
+		/**
+		 * National holidays only.
+		 */
+		NATIONAL,
+
+		/**
+		 * Bari, San Nicola on 6 December.
+		 */
+		BARI(fixedDate(12, 6)),
+
+		/**
+		 * Bologna, San Petronio on 4 October.
+		 */
+		BOLOGNA(fixedDate(10, 4)),
+
+		/**
+		 * Cagliari, San Saturnino on 30 October.
+		 */
+		CAGLIARI(fixedDate(10, 30)),
+
+		/**
+		 * Florence, San Giovanni Battista on 24 June.
+		 */
+		FLORENCE(fixedDate(6, 24)),
+
+		/**
+		 * Genoa, San Giovanni Battista on 24 June.
+		 */
+		GENOA(fixedDate(6, 24)),
+
+		/**
+		 * Milan, Sant'Ambrogio on 7 December.
+		 */
+		MILAN(fixedDate(12, 7)),
+
+		/**
+		 * Naples, San Gennaro on 19 September.
+		 */
+		NAPLES(fixedDate(9, 19)),
+
+		/**
+		 * Palermo, Santa Rosalia on 15 July.
+		 */
+		PALERMO(fixedDate(7, 15)),
+
+		/**
+		 * Rome, Santi Pietro e Paolo on 29 June.
+		 */
+		ROME(fixedDate(6, 29)),
+
+		/**
+		 * Trieste, San Giusto on 3 November.
+		 */
+		TRIESTE(fixedDate(11, 3)),
+
+		/**
+		 * Turin, San Giovanni Battista on 24 June.
+		 */
+		TURIN(fixedDate(6, 24)),
+
+		/**
+		 * Venice, San Marco on 25 April, which is also Liberation Day.
+		 */
+		VENICE(fixedDate(4, 25));
+
+		/**
+		 * Holidays of this region in addition to the national ones.
+		 */
+		private final HolidayRule[] rules;
+
+		/**
+		 * Builds a new region.
+		 * 
+		 * @param rules
+		 *            holidays of this region in addition to the national ones
+		 */
+		private Region(HolidayRule... rules) {
+			this.rules = rules;
+		}
+	}
+
+	/**
+	 * Holder for the precomputed Easter dates, used for the
+	 * initialization-on-demand holder idiom so that the table is only built
+	 * the first time it's needed.
+	 * 
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static class EasterTableHolder {
+
+		/**
+		 * Easter dates from {@link ItalianHolidays#EASTER_TABLE_FIRST_YEAR} to
+		 * {@link ItalianHolidays#EASTER_TABLE_LAST_YEAR}, packed as returned
+		 * by {@link ItalianHolidays#computeEaster(int)}.
+		 */
+		private static final short[] EASTER_TABLE = new short[EASTER_TABLE_LAST_YEAR
+				- EASTER_TABLE_FIRST_YEAR + 1];
+
+		static {
+			for (int i = 0; i < EASTER_TABLE.length; i++) {
+				EASTER_TABLE[i] = (short) computeEaster(EASTER_TABLE_FIRST_YEAR
+						+ i);
+			}
+		}
+	}
+
+	/**
+	 * Holder for an instance of this object, used for the
+	 * initialization-on-demand holder singleton idiom.
+	 * 
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static class InstanceHolder {
+
+		/**
+		 * An instance of this object for each {@link Region}, indexed by the
+		 * region ordinal.
+		 */
+		private static final ItalianHolidays[] INSTANCES = new ItalianHolidays[Region
+				.values().length];
+
+		static {
+			for (Region region : Region.values()) {
+				INSTANCES[region.ordinal()] = new ItalianHolidays(region.rules);
+			}
+		}
+	}
+
+	/**
+	 * Fixed italian holidays of the year when this object was created.
+	 * 
+	 * @deprecated this array is a copy which is never read by this class, so
+	 *             it doesn't follow the current year and modifying it has no
+	 *             effect. Use {@link #getFixedHolidaysForYear(int)} instead.
+	 */
+	@Deprecated
+	public final Calendar[] fixedHolidays = getFixedHolidaysForYear(Calendar
+			.getInstance().get(Calendar.YEAR));
+
+	/**
+	 * Holidays in addition to the national ones.
+	 */
+	private final HolidayRule[] additionalRules;
+
+	/**
+	 * Private constructor for utility class.
+	 * 
+	 * @param additionalRules
+	 *            holidays in addition to the national ones
+	 */
+	private ItalianHolidays(HolidayRule[] additionalRules) {
+		this.additionalRules = additionalRules;
+	}
+
+	/**
+	 * Returns a new or an existing instance of this {@link ItalianHolidays}
+	 * object, which only takes into account the national holidays. This
+	 * method is thread safe.
+	 * 
+	 * @return an existing or a new instance of this object
+	 */
+	public static ItalianHolidays getInstance() {
+		return getInstance(Region.NATIONAL);
+	}
+
+	/**
+	 * Returns a new or an existing instance of this {@link ItalianHolidays}
+	 * object, which takes into account both the national holidays and the
+	 * ones of the given region. This method is thread safe.
+	 * 
+	 * @param region
+	 *            the region whose holidays are needed
+	 * @return an existing or a new instance of this object
+	 */
+	public static ItalianHolidays getInstance(Region region) {
+		return InstanceHolder.INSTANCES[region.ordinal()];
+	}
+
+	/**
+	 * Returns a new instance of this {@link ItalianHolidays} object, which
+	 * takes into account both the national holidays and the ones passed as
+	 * argument. Each instance has its own cache, so instances should be
+	 * reused as much as possible.
+	 * 
+	 * @param additionalRules
+	 *            holidays in addition to the national ones
+	 * @return a new instance of this object
+	 */
+	public static ItalianHolidays newInstance(HolidayRule... additionalRules) {
+		return new ItalianHolidays(additionalRules.clone());
+	}
+
+	/**
+	 * Returns a rule for an holiday which falls on the same day every year.
+	 * 
+	 * @param month
+	 *            the month of the holiday, starting from 1
+	 * @param day
+	 *            the day of the month of the holiday
+	 * @return a rule for the holiday
+	 */
+	public static HolidayRule fixedDate(int month, int day) {
+		if (month < 1 || month > 12 || day < 1
+				|| day > daysInMonth(2000, month)) {
+			throw new IllegalArgumentException("Invalid date: " + day + "/"
+					+ month);
+		}
+		return new FixedDateRule(month, day);
+	}
+
+	/**
+	 * Returns a rule for an holiday which falls a fixed number of days before
+	 * or after Easter. For instance, Easter Monday is 1 day after Easter.
+	 * 
+	 * @param daysFromEaster
+	 *            number of days between Easter and the holiday, negative if
+	 *            the holiday is before Easter
+	 * @return a rule for the holiday
+	 */
+	public static HolidayRule easterRelative(int daysFromEaster) {
+		// Easter is between 22 March and 25 April, the holiday must fall in
+		// the same year.
+		if (daysFromEaster < -80 || daysFromEaster > 250) {
+			throw new IllegalArgumentException(
+					"Invalid number of days from Easter: " + daysFromEaster);
+		}
+		return new EasterRelativeRule(daysFromEaster);
+	}
+
+	/**
+	 * Returns a rule for an holiday which falls on the n-th occurrence of a
+	 * day of the week in a month. For instance, the last monday of May is
+	 * <code>nthWeekday(5, DayOfWeek.MONDAY, -1)</code>.
+	 * 
+	 * @param month
+	 *            the month of the holiday, starting from 1
+	 * @param dayOfWeek
+	 *            the day of the week of the holiday
+	 * @param ordinal
+	 *            the occurrence of the day of the week in the month, between
+	 *            1 and 5, or between -1 and -5 to count from the end of the
+	 *            month
+	 * @return a rule for the holiday
+	 */
+	public static HolidayRule nthWeekday(int month, DayOfWeek dayOfWeek,
+			int ordinal) {
+		if (month < 1 || month > 12 || ordinal == 0 || ordinal < -5
+				|| ordinal > 5) {
+			throw new IllegalArgumentException("Invalid rule: " + ordinal
+					+ " " + dayOfWeek + " of month " + month);
+		}
+		return new NthWeekdayRule(month, dayOfWeek, ordinal);
+	}
+
+	/**
+	 * Returns a calendar object for a specified day and month of this year.
+	 * 
+	 * @param day
+	 *            the day of the calendar
+	 * @param month
+	 *            the month of the calendar, as one of the
+	 *            {@link Calendar#JANUARY} style constants (starting from 0)
+	 * @return a calendar object with this year and the day and month passed as
+	 *         argument
+	 */
+	public Calendar fromDate(int day, int month) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(Calendar.MONTH, month);
+		calendar.set(Calendar.DAY_OF_MONTH, day);
+		return calendar;
+	}
+
+	/**
+	 * Returns the fixed holidays of a given year, that is all the national
+	 * holidays except Easter and Easter Monday. The returned calendars are
+	 * new objects which can be freely modified.
+	 * 
+	 * @param year
+	 *            the year whose fixed holidays are needed
+	 * @return the fixed holidays of the year passed as argument, in
+	 *         chronological order
+	 */
+	public Calendar[] getFixedHolidaysForYear(int year) {
+		Calendar[] fixedHolidays = new Calendar[FIXED_HOLIDAYS.length];
+		for (int i = 0; i < FIXED_HOLIDAYS.length; i++) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.clear();
+			calendar.set(year, (FIXED_HOLIDAYS[i] >>> 5) - 1,
+					FIXED_HOLIDAYS[i] & 31);
+			fixedHolidays[i] = calendar;
+		}
+		return fixedHolidays;
+	}
+
+	/**
+	 * Checks if a given date is an holiday.
+	 * 
+	 * @param date
+	 *            the date to check
+	 * @return true if the date passed as argument is an holiday, false
+	 *         otherwise
+	 */
+	public boolean isHoliday(Calendar date) {
+		return YearIndex.isSet(yearIndex(date.get(Calendar.YEAR)).holidays,
+				date.get(Calendar.DAY_OF_YEAR));
+	}
+
+	/**
+	 * Checks if a given date is a weekend day.
+	 * 
+	 * @param date
+	 *            the date to check
+	 * @return true if the given date is a weekend day, false otherwise
+	 */
+	public boolean isWeekend(Calendar date) {
+		return YearIndex.isSet(yearIndex(date.get(Calendar.YEAR)).weekends,
+				date.get(Calendar.DAY_OF_YEAR));
+	}
+
+	/**
+	 * Checks if a given date is a weekend day or an holiday.
+	 * 
+	 * @param date
+	 *            the date to check
+	 * @return true if the given date is a weekend day or an holiday, false
+	 *         otherwise
+	 */
+	public boolean isWeekendOrHoliday(Calendar date) {
+		return YearIndex.isSet(
+				yearIndex(date.get(Calendar.YEAR)).nonWorkingDays,
+				date.get(Calendar.DAY_OF_YEAR));
+	}
+
+	/**
+	 * Checks if a given date is a working day.
+	 * 
+	 * @param date
+	 *            the date to check
+	 * @return true if the given date is a working day, false if it's a weekend
+	 *         or holiday
+	 */
+	public boolean isWorkingDay(Calendar date) {
+		return !isWeekendOrHoliday(date);
+	}
+
+	/**
+	 * Checks if a given date is an holiday.
+	 * 
+	 * @param date
+	 *            the date to check
+	 * @return true if the date passed as argument is an holiday, false
+	 *         otherwise
+	 */
+	public boolean isHoliday(LocalDate date) {
+		return YearIndex.isSet(yearIndex(date.getYear()).holidays,
+				date.getDayOfYear());
+	}
+
+	/**
+	 * Checks if a given date is a weekend day.
+	 * 
+	 * @param date
+	 *            the date to check
+	 * @return true if the given date is a weekend day, false otherwise
+	 */
+	public boolean isWeekend(LocalDate date) {
+		return YearIndex.isSet(yearIndex(date.getYear()).weekends,
+				date.getDayOfYear());
+	}
+
+	/**
+	 * Checks if a given date is a weekend day or an holiday.
+	 * 
+	 * @param date
+	 *            the date to check
+	 * @return true if the given date is a weekend day or an holiday, false
+	 *         otherwise
+	 */
+	public boolean isWeekendOrHoliday(LocalDate date) {
+		return YearIndex.isSet(yearIndex(date.getYear()).nonWorkingDays,
+				date.getDayOfYear());
+	}
+
+	/**
+	 * Checks if a given date is a working day.
+	 * 
+	 * @param date
+	 *            the date to check
+	 * @return true if the given date is a working day, false if it's a weekend
+	 *         or holiday
+	 */
+	public boolean isWorkingDay(LocalDate date) {
+		return !isWeekendOrHoliday(date);
+	}
+
+	/**
+	 * Checks if a given epoch day is an holiday. This method doesn't allocate
+	 * any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @return true if the date passed as argument is an holiday, false
+	 *         otherwise
+	 */
+	public boolean isHoliday(long epochDay) {
+		YearIndex index = yearIndex(yearOfEpochDay(epochDay));
+		return YearIndex.isSet(index.holidays,
+				(int) (epochDay - index.firstEpochDay) + 1);
+	}
+
+	/**
+	 * Checks if a given epoch day is a weekend day. This method doesn't
+	 * allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @return true if the given date is a weekend day, false otherwise
+	 */
+	public boolean isWeekend(long epochDay) {
+		YearIndex index = yearIndex(yearOfEpochDay(epochDay));
+		return YearIndex.isSet(index.weekends,
+				(int) (epochDay - index.firstEpochDay) + 1);
+	}
+
+	/**
+	 * Checks if a given epoch day is a weekend day or an holiday. This method
+	 * doesn't allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @return true if the given date is a weekend day or an holiday, false
+	 *         otherwise
+	 */
+	public boolean isWeekendOrHoliday(long epochDay) {
+		YearIndex index = yearIndex(yearOfEpochDay(epochDay));
+		return YearIndex.isSet(index.nonWorkingDays,
+				(int) (epochDay - index.firstEpochDay) + 1);
+	}
+
+	/**
+	 * Checks if a given epoch day is a working day. This method doesn't
+	 * allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @return true if the given date is a working day, false if it's a weekend
+	 *         or holiday
+	 */
+	public boolean isWorkingDay(long epochDay) {
+		return !isWeekendOrHoliday(epochDay);
+	}
+
+	/**
+	 * Returns the Easter date for the year passed as argument. The date is
+	 * read from a precomputed table for the years between 1583 and 4099 and
+	 * computed by using the anonymous Gregorian algorithm otherwise.
+	 * 
+	 * @param year
+	 *            the year whose Easter needs to be computed
+	 * @return the Easter date for the year passed as argument
+	 */
+	public Calendar getEasterForYear(int year) {
+		int easter = easter(year);
+
+		// Returns a calendar.
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(year, (easter >>> 5) - 1, easter & 31);
+		return calendar;
+	}
+
+	/**
+	 * Returns the Easter date for the year passed as argument, packed as
+	 * returned by {@link #computeEaster(int)}. Years between
+	 * {@link #EASTER_TABLE_FIRST_YEAR} and {@link #EASTER_TABLE_LAST_YEAR} are
+	 * read from a precomputed table, while the others are computed on the
+	 * fly.
+	 * 
+	 * @param year
+	 *            the year whose Easter is needed
+	 * @return the packed month and day of Easter for the year passed as
+	 *         argument
+	 */
+	private static int easter(int year) {
+		if (year >= EASTER_TABLE_FIRST_YEAR && year <= EASTER_TABLE_LAST_YEAR) {
+			return EasterTableHolder.EASTER_TABLE[year
+					- EASTER_TABLE_FIRST_YEAR];
+		}
+		return computeEaster(year);
+	}
+
+	/**
+	 * Computes the Easter date for the year passed as argument by using the
+	 * anonymous Gregorian algorithm (Meeus/Jones/Butcher), a refinement of the
+	 * Gauss algorithm which is valid for every Gregorian year. The result is
+	 * packed in a single int, with the day in the lowest 5 bits and the month
+	 * (starting from 1) in the upper ones.
+	 * 
+	 * @param year
+	 *            the year whose Easter needs to be computed
+	 * @return the packed month and day of Easter for the year passed as
+	 *         argument
+	 */
+	private static int computeEaster(int year) {
+		int a = year % 19;
+		int b = (int) (year / 100);
+		int c = year % 100;
+		int d = (int) (b / 4);
+		int e = b % 4;
+		int f = (int) ((b + 8) / 25);
+		int g = (int) ((b - f + 1) / 3);
+		int h = (19 * a + b - d - g + 15) % 30;
+		int i = (int) (c / 4);
+		int k = c % 4;
+		int l = (32 + 2 * e + 2 * i - h - k) % 7;
+		int m = (int) ((a + 11 * h + 22 * l) / 451);
+		int n = (int) (h + l - 7 * m + 114) / 31;
+		int p = (h + l - 7 * m + 114) % 31;
+
+		// Actual day and month.
+		int day = p + 1;
+		int month = n;
+		return month << 5 | day;
+	}
+
+	/**
+	 * Returns the date of the monday after Easter, computed by getting the
+	 * Easter date through {@link #getEasterForYear(int)} and adding one day.
+	 * 
+	 * @param year
+	 *            the year whose monday after Easter needs to be computed
+	 * @return the date of monday after Easter for the year passed as argument
+	 */
+	public Calendar getMondayAfterEasterForYear(int year) {
+		Calendar mondayAfterEaster = getEasterForYear(year);
+		mondayAfterEaster.add(Calendar.DAY_OF_MONTH, 1);
+		return mondayAfterEaster;
+	}
+
+	/**
+	 * Utility method for returning the monday after Easter from an Easter date.
+	 * The date is computed by adding one day to the date passed as argument. <br>
+	 * <br>
+	 * <b>N.B. : the calendar passed as argument to this method is not modified
+	 * but cloned instead</b>
+	 * 
+	 * @param easter
+	 *            the Easter date. This calendar is not modified but cloned
+	 *            instead.
+	 * @return the monday after the Easter passed as argument
+	 */
+	public Calendar getMondayAfterEasterFromEaster(Calendar easter) {
+		Calendar mondayAfterEaster = Calendar.getInstance();
+		mondayAfterEaster.setTime(easter.getTime());
+		mondayAfterEaster.add(Calendar.DAY_OF_MONTH, 1);
+		return mondayAfterEaster;
+	}
+
+	/**
+	 * Returns the Easter date for the year passed as argument as an epoch day.
+	 * This method doesn't allocate any object.
+	 * 
+	 * @param year
+	 *            the year whose Easter needs to be computed
+	 * @return the number of days between the 1st January 1970 and Easter of
+	 *         the year passed as argument
+	 */
+	public long easterEpochDay(int year) {
+		int easter = easter(year);
+		return epochDayOfYearStart(year)
+				+ dayOfYear(year, easter >>> 5, easter & 31) - 1;
+	}
+
+	/**
+	 * Returns the date of the monday after Easter for the year passed as
+	 * argument as an epoch day. This method doesn't allocate any object.
+	 * 
+	 * @param year
+	 *            the year whose monday after Easter needs to be computed
+	 * @return the number of days between the 1st January 1970 and the monday
+	 *         after Easter of the year passed as argument
+	 */
+	public long mondayAfterEasterEpochDay(int year) {
+		return easterEpochDay(year) + 1;
+	}
+
+	/**
+	 * Alias for {@link #getMondayAfterEasterForYear(int)}.
+	 * 
+	 * @param year
+	 *            the year whose Pasquetta needs to be computed
+	 * @return the date of Pasquetta for the year passed as argument
+	 */
+	public Calendar getPasquettaForYear(int year) {
+		return getMondayAfterEasterForYear(year);
+	}
+
+	/**
+	 * Alias for {@link #getMondayAfterEasterFromEaster(Calendar)}.
+	 * 
+	 * @param pasqua
+	 *            the Pasqua date. This calendar is not modified but cloned
+	 *            instead.
+	 * @return the Pasquetta after the Pasqua passed as argument
+	 */
+	public Calendar getPasquettaFromPasqua(Calendar pasqua) {
+		return getMondayAfterEasterFromEaster(pasqua);
+	}
+
+	/**
+	 * Returns the index of the non-working days for the given year, building
+	 * and caching it if it's not available yet. This method is thread safe.
+	 * 
+	 * @param year
+	 *            the year whose index is needed
+	 * @return the index for the year passed as argument
+	 */
+	private YearIndex yearIndex(int year) {
+		int slot = year & (YEAR_INDEX_CACHE_SIZE - 1);
+		YearIndex index = yearIndexCache.get(slot);
+		if (index == null || index.year != year) {
+			index = buildYearIndex(year);
+			yearIndexCache.set(slot, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Builds the index of the non-working days for the given year.
+	 * 
+	 * @param year
+	 *            the year whose index needs to be built
+	 * @return the index for the year passed as argument
+	 */
+	private YearIndex buildYearIndex(int year) {
+		int daysInYear = isLeapYear(year) ? 366 : 365;
+		long[] holidays = new long[6];
+		long[] weekends = new long[6];
+
+		// Fixed holidays.
+		for (short holiday : FIXED_HOLIDAYS) {
+			setBit(holidays, dayOfYear(year, holiday >>> 5, holiday & 31));
+		}
+
+		// Easter and monday after Easter.
+		int easter = easter(year);
+		int easterDayOfYear = dayOfYear(year, easter >>> 5, easter & 31);
+		setBit(holidays, easterDayOfYear);
+		setBit(holidays, easterDayOfYear + 1);
+
+		// Local holidays.
+		for (HolidayRule rule : additionalRules) {
+			int dayOfYear = rule.dayOfYear(year);
+			if (dayOfYear >= 1 && dayOfYear <= daysInYear) {
+				setBit(holidays, dayOfYear);
+			}
+		}
+
+		// Saturdays and sundays. The first day of the year is computed from
+		// the epoch day, where 0 (1st January 1970) was a thursday.
+		long firstEpochDay = epochDayOfYearStart(year);
+		int firstDayOfWeek = (int) Math.floorMod(firstEpochDay + 3, 7L);
+		int firstSaturday = (12 - firstDayOfWeek) % 7 + 1;
+		for (int day = firstSaturday; day <= daysInYear; day += 7) {
+			setBit(weekends, day);
+			if (day < daysInYear) {
+				setBit(weekends, day + 1);
+			}
+		}
+		// The year may start on a sunday.
+		if (firstSaturday == 7) {
+			setBit(weekends, 1);
+		}
+
+		return new YearIndex(year, firstEpochDay, daysInYear, holidays,
+				weekends);
+	}
+
+	/**
+	 * Moves a date by the given number of working days. The date is
+	 * identified by its year and day of the year and the result is found by
+	 * arithmetic on the cumulative working days counts of the year and by a
+	 * binary search on the cumulative counts across years, so the cost
+	 * doesn't depend on the number of working days added.
+	 * 
+	 * @param year
+	 *            the year of the date to move
+	 * @param dayOfYear
+	 *            the day of the year of the date to move
+	 * @param workingDays
+	 *            the working days to add, or to subtract if negative
+	 * @return the year of the resulting date in the upper 32 bits and its day
+	 *         of the year in the lower ones
+	 */
+	private long addWorkingDays(int year, int dayOfYear, int workingDays) {
+		if (workingDays == 0) {
+			return (long) year << 32 | dayOfYear;
+		}
+		YearIndex index = yearIndex(year);
+
+		// Ordinal within the year of the working day to reach. When going
+		// backwards, the date itself is not counted.
+		long ordinal;
+		if (workingDays > 0) {
+			ordinal = index.workingDaysUntil[dayOfYear] + (long) workingDays;
+		} else {
+			ordinal = index.workingDaysUntil[dayOfYear - 1]
+					+ (long) workingDays + 1;
+		}
+
+		// Jumps straight to the right year when the result is more than a
+		// year away, so that the cost doesn't depend on the years spanned.
+		if ((ordinal > index.workingDays() + 366 || ordinal < -366)
+				&& isInWorkingDaysTable(year)) {
+			int[] before = workingDaysBeforeYear();
+			long absolute = before[year - WORKING_DAYS_TABLE_FIRST_YEAR]
+					+ ordinal;
+			if (absolute > 0 && absolute <= before[before.length - 1]) {
+				int low = 0;
+				int high = before.length - 2;
+				while (low < high) {
+					int middle = (low + high + 1) >>> 1;
+					if (before[middle] < absolute) {
+						low = middle;
+					} else {
+						high = middle - 1;
+					}
+				}
+				year = WORKING_DAYS_TABLE_FIRST_YEAR + low;
+				index = yearIndex(year);
+				ordinal = absolute - before[low];
+			}
+		}
+
+		// Moves across years until the ordinal falls in the current one.
+		while (ordinal > index.workingDays()) {
+			ordinal -= index.workingDays();
+			index = yearIndex(++year);
+		}
+		while (ordinal <= 0) {
+			index = yearIndex(--year);
+			ordinal += index.workingDays();
+		}
+		return (long) year << 32 | index.dayOfWorkingDay((int) ordinal);
+	}
+
+	/**
+	 * Returns the first working day after a date, skipping whole years
+	 * without working days left.
+	 * 
+	 * @param year
+	 *            the year of the date
+	 * @param dayOfYear
+	 *            the day of the year of the date
+	 * @return the year of the resulting date in the upper 32 bits and its day
+	 *         of the year in the lower ones
+	 */
+	private long nextWorkingDay(int year, int dayOfYear) {
+		int day = yearIndex(year).nextWorkingDay(dayOfYear);
+		while (day == 0) {
+			day = yearIndex(++year).nextWorkingDay(0);
+		}
+		return (long) year << 32 | day;
+	}
+
+	/**
+	 * Returns the last working day before a date, skipping whole years
+	 * without working days left.
+	 * 
+	 * @param year
+	 *            the year of the date
+	 * @param dayOfYear
+	 *            the day of the year of the date
+	 * @return the year of the resulting date in the upper 32 bits and its day
+	 *         of the year in the lower ones
+	 */
+	private long previousWorkingDay(int year, int dayOfYear) {
+		int day = yearIndex(year).previousWorkingDay(dayOfYear);
+		while (day == 0) {
+			YearIndex index = yearIndex(--year);
+			day = index.previousWorkingDay(index.daysInYear() + 1);
+		}
+		return (long) year << 32 | day;
+	}
+
+	/**
+	 * Counts the working days after a date and up to another one included.
+	 * 
+	 * @param fromYear
+	 *            the year of the starting date
+	 * @param fromDayOfYear
+	 *            the day of the year of the starting date, excluded from the
+	 *            count
+	 * @param toYear
+	 *            the year of the ending date
+	 * @param toDayOfYear
+	 *            the day of the year of the ending date, included in the count
+	 * @return the number of working days in the range, negative if the ending
+	 *         date is before the starting one
+	 */
+	private long countWorkingDays(int fromYear, int fromDayOfYear, int toYear,
+			int toDayOfYear) {
+		if (toYear < fromYear
+				|| (toYear == fromYear && toDayOfYear < fromDayOfYear)) {
+			return -countWorkingDays(toYear, toDayOfYear, fromYear,
+					fromDayOfYear);
+		}
+		long count = yearIndex(toYear).workingDaysUntil[toDayOfYear]
+				- yearIndex(fromYear).workingDaysUntil[fromDayOfYear];
+		if (toYear - fromYear > 1 && isInWorkingDaysTable(fromYear)
+				&& isInWorkingDaysTable(toYear)) {
+			int[] before = workingDaysBeforeYear();
+			return count + before[toYear - WORKING_DAYS_TABLE_FIRST_YEAR]
+					- before[fromYear - WORKING_DAYS_TABLE_FIRST_YEAR];
+		}
+		for (int year = fromYear; year < toYear; year++) {
+			count += yearIndex(year).workingDays();
+		}
+		return count;
+	}
+
+	/**
+	 * Checks if a year is covered by {@link #workingDaysBeforeYear}.
+	 * 
+	 * @param year
+	 *            the year to check
+	 * @return true if the cumulative working days count across years is
+	 *         available for the year, false otherwise
+	 */
+	private static boolean isInWorkingDaysTable(int year) {
+		return year >= WORKING_DAYS_TABLE_FIRST_YEAR
+				&& year <= WORKING_DAYS_TABLE_LAST_YEAR;
+	}
+
+	/**
+	 * Returns the cumulative count of the working days across years, building
+	 * it if it's not available yet. This method is thread safe.
+	 * 
+	 * @return the number of working days before each year of the table, plus
+	 *         the total number of working days in the table as last element
+	 */
+	private int[] workingDaysBeforeYear() {
+		int[] before = workingDaysBeforeYear;
+		if (before == null) {
+			before = new int[WORKING_DAYS_TABLE_LAST_YEAR
+					- WORKING_DAYS_TABLE_FIRST_YEAR + 2];
+			for (int i = 1; i < before.length; i++) {
+				int year = WORKING_DAYS_TABLE_FIRST_YEAR + i - 1;
+				// Doesn't go through the cache to avoid evicting the years
+				// in use.
+				YearIndex index = yearIndexCache.get(year
+						& (YEAR_INDEX_CACHE_SIZE - 1));
+				if (index == null || index.year != year) {
+					index = buildYearIndex(year);
+				}
+				before[i] = before[i - 1] + index.workingDays();
+			}
+			workingDaysBeforeYear = before;
+		}
+		return before;
+	}
+
+	/**
+	 * Sets the bit of a day in a bitmap.
+	 * 
+	 * @param bitmap
+	 *            the bitmap to modify
+	 * @param dayOfYear
+	 *            the day of the year, starting from 1
+	 */
+	private static void setBit(long[] bitmap, int dayOfYear) {
+		int bit = dayOfYear - 1;
+		bitmap[bit >>> 6] |= 1L << bit;
+	}
+
+	/**
+	 * Checks if a year is a leap year according to the Gregorian calendar.
+	 * 
+	 * @param year
+	 *            the year to check
+	 * @return true if the year is a leap year, false otherwise
+	 */
+	private static boolean isLeapYear(int year) {
+		return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+
+	/**
+	 * Returns the day of the year of a date.
+	 * 
+	 * @param year
+	 *            the year of the date
+	 * @param month
+	 *            the month of the date, starting from 1
+	 * @param day
+	 *            the day of the month of the date
+	 * @return the day of the year, starting from 1
+	 */
+	private static int dayOfYear(int year, int month, int day) {
+		int dayOfYear = DAYS_BEFORE_MONTH[month - 1] + day;
+		if (month > 2 && isLeapYear(year)) {
+			dayOfYear++;
+		}
+		return dayOfYear;
+	}
+
+	/**
+	 * Returns the number of days in a month.
+	 * 
+	 * @param year
+	 *            the year of the month
+	 * @param month
+	 *            the month, starting from 1
+	 * @return the number of days in the month
+	 */
+	private static int daysInMonth(int year, int month) {
+		if (month == 2) {
+			return isLeapYear(year) ? 29 : 28;
+		}
+		return (month == 12 ? 365 : DAYS_BEFORE_MONTH[month])
+				- DAYS_BEFORE_MONTH[month - 1];
+	}
+
+	/**
+	 * Returns the number of days between the 1st January 1970 and the first
+	 * day of the given year, according to the proleptic Gregorian calendar.
+	 * 
+	 * @param year
+	 *            the year whose first day is needed
+	 * @return the epoch day of the 1st January of the given year
+	 */
+	private static long epochDayOfYearStart(int year) {
+		long previousYear = year - 1L;
+		long leapDays = Math.floorDiv(previousYear, 4)
+				- Math.floorDiv(previousYear, 100)
+				+ Math.floorDiv(previousYear, 400);
+		// 477 is the number of leap days before 1970.
+		return 365L * (year - 1970) + leapDays - 477;
+	}
+
+	/**
+	 * Returns the year of an epoch day, according to the proleptic Gregorian
+	 * calendar.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @return the year the epoch day belongs to
+	 */
+	private static int yearOfEpochDay(long epochDay) {
+		// Estimates the year from the average length of a year (146097 days
+		// every 400 years) and then fixes it by at most one year.
+		int year = (int) (1970 + Math.floorDiv(epochDay * 400, 146097));
+		if (epochDayOfYearStart(year) > epochDay) {
+			year--;
+		} else if (epochDayOfYearStart(year + 1) <= epochDay) {
+			year++;
+		}
+		return year;
+	}
+
+	/**
+	 * Returns the month and the day of the month of an epoch day, according
+	 * to the proleptic Gregorian calendar.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @return the day of the month in the lowest 5 bits and the month
+	 *         (starting from 1) in the upper ones
+	 */
+	private static int monthDayOfEpochDay(long epochDay) {
+		int year = yearOfEpochDay(epochDay);
+		int dayOfYear = (int) (epochDay - epochDayOfYearStart(year)) + 1;
+		int leapDay = isLeapYear(year) && dayOfYear > 59 ? 1 : 0;
+		// February 29th.
+		if (leapDay == 1 && dayOfYear == 60) {
+			return 2 << 5 | 29;
+		}
+		int month = 12;
+		while (DAYS_BEFORE_MONTH[month - 1] >= dayOfYear - leapDay) {
+			month--;
+		}
+		return month << 5 | (dayOfYear - leapDay - DAYS_BEFORE_MONTH[month - 1]);
+	}
+
+	/**
+	 * Checks if two calendars refers to the same day and month.
+	 * 
+	 * @param firstDate
+	 *            the first date to check
+	 * @param secondDate
+	 *            the second date to check
+	 * @return true if the calendars passed as arguments have the same day and
+	 *         month, false otherwise
+	 */
+	public boolean sameDayAndMonth(Calendar firstDate, Calendar secondDate) {
+		return firstDate.get(Calendar.MONTH) == secondDate.get(Calendar.MONTH)
+				&& firstDate.get(Calendar.DAY_OF_MONTH) == secondDate
+						.get(Calendar.DAY_OF_MONTH);
+	}
+
+	/**
+	 * Adds the working days passed as arguments to the given calendar. For
+	 * subtraction, you can either pass a negative number or call the more
+	 * straightforward {@link #subtractWorkingDays(Calendar, int)} method. <br>
+	 * <br>
+	 * The result is the n-th working day after (or before) the given date, so
+	 * the date passed as argument doesn't need to be a working day itself.
+	 * Adding 0 working days leaves the date unchanged. The time of the day is
+	 * preserved. <br>
+	 * <br>
+	 * The computation is done on the cumulative working days counts within
+	 * and across years, so its cost doesn't depend on the number of days
+	 * added.
+	 * 
+	 * <b>Note that the calendar passed as argument to this method is actually
+	 * modified</b>.
+	 * 
+	 * @param date
+	 *            the date whose days needs to be incremented
+	 * @param workingDays
+	 *            the working days to add to the given date
+	 * @return the same calendar object with the working days passed as argument
+	 *         added
+	 */
+	public Calendar addWorkingDays(Calendar date, int workingDays) {
+		long result = addWorkingDays(date.get(Calendar.YEAR),
+				date.get(Calendar.DAY_OF_YEAR), workingDays);
+		date.set(Calendar.YEAR, (int) (result >> 32));
+		date.set(Calendar.DAY_OF_YEAR, (int) result);
+		return date;
+	}
+
+	/**
+	 * Subtracts the working days passed as arguments from the given calendar.
+	 * For addiction, you can either pass a negative number or call the more
+	 * straightforward {@link #addWorkingDays(Calendar, int)} method.
+	 * 
+	 * <b>Note that the calendar passed as argument to this method is actually
+	 * modified</b>.
+	 * 
+	 * @param date
+	 *            the date whose days needs to be decremented
+	 * @param workingDays
+	 *            the working days to subtract from the given date
+	 * @return the same calendar object with the working days passed as argument
+	 *         subtracted
+	 */
+	public Calendar subtractWorkingDays(Calendar date, int workingDays) {
+		return addWorkingDays(date, -workingDays);
+	}
+
+	/**
+	 * Adds the working days passed as arguments to the given date. This
+	 * method behaves like {@link #addWorkingDays(Calendar, int)} but since
+	 * {@link LocalDate} is immutable, a new date is returned.
+	 * 
+	 * @param date
+	 *            the date whose days needs to be incremented
+	 * @param workingDays
+	 *            the working days to add to the given date, or to subtract if
+	 *            negative
+	 * @return a new date with the working days passed as argument added
+	 */
+	public LocalDate addWorkingDays(LocalDate date, int workingDays) {
+		long result = addWorkingDays(date.getYear(), date.getDayOfYear(),
+				workingDays);
+		return LocalDate.ofYearDay((int) (result >> 32), (int) result);
+	}
+
+	/**
+	 * Subtracts the working days passed as arguments from the given date.
+	 * This method behaves like {@link #subtractWorkingDays(Calendar, int)}
+	 * but since {@link LocalDate} is immutable, a new date is returned.
+	 * 
+	 * @param date
+	 *            the date whose days needs to be decremented
+	 * @param workingDays
+	 *            the working days to subtract from the given date
+	 * @return a new date with the working days passed as argument subtracted
+	 */
+	public LocalDate subtractWorkingDays(LocalDate date, int workingDays) {
+		return addWorkingDays(date, -workingDays);
+	}
+
+	/**
+	 * Adds the working days passed as arguments to the given epoch day. This
+	 * method behaves like {@link #addWorkingDays(Calendar, int)} but doesn't
+	 * allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param workingDays
+	 *            the working days to add to the given date, or to subtract if
+	 *            negative
+	 * @return the epoch day with the working days passed as argument added
+	 */
+	public long addWorkingDays(long epochDay, int workingDays) {
+		YearIndex index = yearIndex(yearOfEpochDay(epochDay));
+		long result = addWorkingDays(index.year,
+				(int) (epochDay - index.firstEpochDay) + 1, workingDays);
+		return yearIndex((int) (result >> 32)).firstEpochDay + (int) result
+				- 1;
+	}
+
+	/**
+	 * Subtracts the working days passed as arguments from the given epoch day.
+	 * This method behaves like {@link #subtractWorkingDays(Calendar, int)} but
+	 * doesn't allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param workingDays
+	 *            the working days to subtract from the given date
+	 * @return the epoch day with the working days passed as argument
+	 *         subtracted
+	 */
+	public long subtractWorkingDays(long epochDay, int workingDays) {
+		return addWorkingDays(epochDay, -workingDays);
+	}
+
+	/**
+	 * Moves the given calendar to the first working day after it. This is
+	 * the same as adding one working day, but the non-working days are
+	 * skipped by scanning the year index instead of counting. <br>
+	 * <br>
+	 * <b>Note that the calendar passed as argument to this method is actually
+	 * modified</b>.
+	 * 
+	 * @param date
+	 *            the date whose next working day is needed
+	 * @return the same calendar object moved to the next working day
+	 */
+	public Calendar nextWorkingDay(Calendar date) {
+		long result = nextWorkingDay(date.get(Calendar.YEAR),
+				date.get(Calendar.DAY_OF_YEAR));
+		date.set(Calendar.YEAR, (int) (result >> 32));
+		date.set(Calendar.DAY_OF_YEAR, (int) result);
+		return date;
+	}
+
+	/**
+	 * Moves the given calendar to the last working day before it. <br>
+	 * <br>
+	 * <b>Note that the calendar passed as argument to this method is actually
+	 * modified</b>.
+	 * 
+	 * @param date
+	 *            the date whose previous working day is needed
+	 * @return the same calendar object moved to the previous working day
+	 */
+	public Calendar previousWorkingDay(Calendar date) {
+		long result = previousWorkingDay(date.get(Calendar.YEAR),
+				date.get(Calendar.DAY_OF_YEAR));
+		date.set(Calendar.YEAR, (int) (result >> 32));
+		date.set(Calendar.DAY_OF_YEAR, (int) result);
+		return date;
+	}
+
+	/**
+	 * Returns the first working day after the given date.
+	 * 
+	 * @param date
+	 *            the date whose next working day is needed
+	 * @return the next working day
+	 */
+	public LocalDate nextWorkingDay(LocalDate date) {
+		long result = nextWorkingDay(date.getYear(), date.getDayOfYear());
+		return LocalDate.ofYearDay((int) (result >> 32), (int) result);
+	}
+
+	/**
+	 * Returns the last working day before the given date.
+	 * 
+	 * @param date
+	 *            the date whose previous working day is needed
+	 * @return the previous working day
+	 */
+	public LocalDate previousWorkingDay(LocalDate date) {
+		long result = previousWorkingDay(date.getYear(), date.getDayOfYear());
+		return LocalDate.ofYearDay((int) (result >> 32), (int) result);
+	}
+
+	/**
+	 * Returns the first working day after the given epoch day. This method
+	 * doesn't allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @return the epoch day of the next working day
+	 */
+	public long nextWorkingDay(long epochDay) {
+		YearIndex index = yearIndex(yearOfEpochDay(epochDay));
+		long result = nextWorkingDay(index.year,
+				(int) (epochDay - index.firstEpochDay) + 1);
+		return yearIndex((int) (result >> 32)).firstEpochDay + (int) result
+				- 1;
+	}
+
+	/**
+	 * Returns the last working day before the given epoch day. This method
+	 * doesn't allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @return the epoch day of the previous working day
+	 */
+	public long previousWorkingDay(long epochDay) {
+		YearIndex index = yearIndex(yearOfEpochDay(epochDay));
+		long result = previousWorkingDay(index.year,
+				(int) (epochDay - index.firstEpochDay) + 1);
+		return yearIndex((int) (result >> 32)).firstEpochDay + (int) result
+				- 1;
+	}
+
+	/**
+	 * Returns a lazy stream of the working days in a range of epoch days, in
+	 * chronological order. Non-working days are skipped by scanning the year
+	 * index bitmaps, so the stream doesn't allocate any object per element.
+	 * 
+	 * @param fromEpochDay
+	 *            the first epoch day of the range, included
+	 * @param toEpochDay
+	 *            the last epoch day of the range, included
+	 * @return the epoch days of the working days in the range
+	 */
+	public IntStream workingDays(long fromEpochDay, long toEpochDay) {
+		return StreamSupport.intStream(new WorkingDaySpliterator(fromEpochDay,
+				toEpochDay), false);
+	}
+
+	/**
+	 * Returns a lazy stream of the working days in a range of dates, in
+	 * chronological order.
+	 * 
+	 * @param from
+	 *            the first date of the range, included
+	 * @param to
+	 *            the last date of the range, included
+	 * @return the working days in the range
+	 */
+	public Stream<LocalDate> workingDays(LocalDate from, LocalDate to) {
+		return workingDays(from.toEpochDay(), to.toEpochDay()).mapToObj(
+				LocalDate::ofEpochDay);
+	}
+
+	/**
+	 * Counts the working days between two dates. The starting date is
+	 * excluded from the count while the ending one is included, so that if
+	 * the ending date is the n-th working day after the starting one, n is
+	 * returned. <br>
+	 * <br>
+	 * The computation is done on the cumulative working days counts within
+	 * and across years, so its cost doesn't depend on the distance between
+	 * the dates. Neither
+	 * of the calendars passed as argument is modified.
+	 * 
+	 * @param from
+	 *            the starting date, excluded from the count
+	 * @param to
+	 *            the ending date, included in the count
+	 * @return the number of working days between the two dates, negative if
+	 *         the ending date is before the starting one
+	 */
+	public long countWorkingDays(Calendar from, Calendar to) {
+		return countWorkingDays(from.get(Calendar.YEAR),
+				from.get(Calendar.DAY_OF_YEAR), to.get(Calendar.YEAR),
+				to.get(Calendar.DAY_OF_YEAR));
+	}
+
+	/**
+	 * Counts the working days between two dates. This method behaves like
+	 * {@link #countWorkingDays(Calendar, Calendar)}.
+	 * 
+	 * @param from
+	 *            the starting date, excluded from the count
+	 * @param to
+	 *            the ending date, included in the count
+	 * @return the number of working days between the two dates, negative if
+	 *         the ending date is before the starting one
+	 */
+	public long countWorkingDays(LocalDate from, LocalDate to) {
+		return countWorkingDays(from.getYear(), from.getDayOfYear(),
+				to.getYear(), to.getDayOfYear());
+	}
+
+	/**
+	 * Counts the working days between two epoch days. This method behaves
+	 * like {@link #countWorkingDays(Calendar, Calendar)} but doesn't allocate
+	 * any object.
+	 * 
+	 * @param fromEpochDay
+	 *            the starting epoch day, excluded from the count
+	 * @param toEpochDay
+	 *            the ending epoch day, included in the count
+	 * @return the number of working days between the two dates, negative if
+	 *         the ending date is before the starting one
+	 */
+	public long countWorkingDays(long fromEpochDay, long toEpochDay) {
+		YearIndex from = yearIndex(yearOfEpochDay(fromEpochDay));
+		YearIndex to = yearIndex(yearOfEpochDay(toEpochDay));
+		return countWorkingDays(from.year,
+				(int) (fromEpochDay - from.firstEpochDay) + 1, to.year,
+				(int) (toEpochDay - to.firstEpochDay) + 1);
+	}
+
+	/**
+	 * Classifies an array of epoch days at once. For each epoch day, the
+	 * element at the same index of the output array is set to
+	 * {@link #WORKING_DAY} or to a combination of the {@link #HOLIDAY} and
+	 * {@link #WEEKEND} flags. <br>
+	 * <br>
+	 * This is much faster than checking each date on its own, especially
+	 * when consecutive dates belong to the same year, since the year index
+	 * is only looked up when the year changes. This method doesn't allocate
+	 * any object. For very large arrays, see
+	 * {@link #parallelClassify(int[], byte[])}.
+	 * 
+	 * @param epochDays
+	 *            the dates to classify, as the number of days since the 1st
+	 *            January 1970
+	 * @param out
+	 *            where the classification of each date is written. Must be at
+	 *            least as long as the array of dates
+	 */
+	public void classify(int[] epochDays, byte[] out) {
+		checkClassifyArguments(epochDays, out);
+		classify(epochDays, out, 0, epochDays.length);
+	}
+
+	/**
+	 * Same as {@link #classify(int[], byte[])}, but splits the work between
+	 * the threads of the common fork/join pool when the array is large
+	 * enough.
+	 * 
+	 * @param epochDays
+	 *            the dates to classify, as the number of days since the 1st
+	 *            January 1970
+	 * @param out
+	 *            where the classification of each date is written. Must be at
+	 *            least as long as the array of dates
+	 */
+	public void parallelClassify(int[] epochDays, byte[] out) {
+		checkClassifyArguments(epochDays, out);
+		ForkJoinPool.commonPool().invoke(
+				new ClassifyTask(epochDays, out, 0, epochDays.length));
+	}
+
+	/**
+	 * Returns the working days in a range of dates as a bit set, where the
+	 * n-th bit is set if the n-th day after the first date of the range is a
+	 * working day. Use {@link BitSet#stream()} to iterate the working days or
+	 * {@link BitSet#cardinality()} to count them.
+	 * 
+	 * @param from
+	 *            the first date of the range, included
+	 * @param to
+	 *            the last date of the range, included
+	 * @return the working days in the range, relative to its first date
+	 */
+	public BitSet workingDaysIn(LocalDate from, LocalDate to) {
+		return workingDaysIn(from.toEpochDay(), to.toEpochDay());
+	}
+
+	/**
+	 * Returns the working days in a range of epoch days as a bit set, where
+	 * the n-th bit is set if the n-th day after the first date of the range
+	 * is a working day.
+	 * 
+	 * @param fromEpochDay
+	 *            the first epoch day of the range, included
+	 * @param toEpochDay
+	 *            the last epoch day of the range, included
+	 * @return the working days in the range, relative to its first date
+	 */
+	public BitSet workingDaysIn(long fromEpochDay, long toEpochDay) {
+		if (toEpochDay < fromEpochDay) {
+			throw new IllegalArgumentException(
+					"The end of the range must not be before its start");
+		}
+		BitSet workingDays = new BitSet((int) (toEpochDay - fromEpochDay + 1));
+		long epochDay = fromEpochDay;
+		while (epochDay <= toEpochDay) {
+			// Scans the part of the range in the current year.
+			YearIndex index = yearIndex(yearOfEpochDay(epochDay));
+			int dayOfYear = (int) (epochDay - index.firstEpochDay) + 1;
+			int lastDayOfYear = (int) Math.min(index.daysInYear(), toEpochDay
+					- index.firstEpochDay + 1);
+			int bit = (int) (epochDay - fromEpochDay);
+			for (; dayOfYear <= lastDayOfYear; dayOfYear++, bit++) {
+				if (!YearIndex.isSet(index.nonWorkingDays, dayOfYear)) {
+					workingDays.set(bit);
+				}
+			}
+			epochDay = index.firstEpochDay + index.daysInYear();
+		}
+		return workingDays;
+	}
+
+	/**
+	 * Classifies a portion of an array of epoch days.
+	 * 
+	 * @param epochDays
+	 *            the dates to classify
+	 * @param out
+	 *            where the classification of each date is written
+	 * @param from
+	 *            index of the first element to classify, included
+	 * @param to
+	 *            index of the last element to classify, excluded
+	 */
+	private void classify(int[] epochDays, byte[] out, int from, int to) {
+		// Forces a lookup on the first element.
+		YearIndex index = null;
+		long firstEpochDay = 0;
+		long nextYearEpochDay = 0;
+		for (int i = from; i < to; i++) {
+			int epochDay = epochDays[i];
+			if (epochDay < firstEpochDay || epochDay >= nextYearEpochDay
+					|| index == null) {
+				index = yearIndex(yearOfEpochDay(epochDay));
+				firstEpochDay = index.firstEpochDay;
+				nextYearEpochDay = firstEpochDay + index.daysInYear();
+			}
+			int bit = (int) (epochDay - firstEpochDay);
+			int word = bit >>> 6;
+			out[i] = (byte) ((index.holidays[word] >>> bit & 1)
+					| (index.weekends[word] >>> bit & 1) << 1);
+		}
+	}
+
+	/**
+	 * Checks the arguments of {@link #classify(int[], byte[])}.
+	 * 
+	 * @param epochDays
+	 *            the dates to classify
+	 * @param out
+	 *            where the classification of each date is written
+	 */
+	private static void checkClassifyArguments(int[] epochDays, byte[] out) {
+		if (out.length < epochDays.length) {
+			throw new IllegalArgumentException(
+					"The output array is shorter than the dates array");
+		}
+	}
+
+	/**
+	 * Formats a date in the italian format "dd/MM/yyyy" (UNI EN 28601). This
+	 * method is thread safe and lock free.
+	 * 
+	 * @param date
+	 *            the date to format
+	 * @return a date formatted as a "dd/MM/yyyy" string
+	 */
+	public String formatDateToItalianFormat(Calendar date) {
+		char[] chars = new char[ITALIAN_FORMAT_LENGTH];
+		writeItalianFormat(date.get(Calendar.YEAR),
+				date.get(Calendar.MONTH) + 1, date.get(Calendar.DAY_OF_MONTH),
+				false, chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Formats a date in the italian format "dd/MM/yyyy" (UNI EN 28601). This
+	 * method is thread safe and lock free.
+	 * 
+	 * @param date
+	 *            the date to format
+	 * @return a date formatted as a "dd/MM/yyyy" string
+	 */
+	public String formatDateToItalianFormat(LocalDate date) {
+		char[] chars = new char[ITALIAN_FORMAT_LENGTH];
+		writeItalianFormat(date.getYear(), date.getMonthValue(),
+				date.getDayOfMonth(), false, chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Formats an epoch day in the italian format "dd/MM/yyyy" (UNI EN 28601)
+	 * and appends it to a builder. This method is thread safe, lock free and
+	 * doesn't allocate any object other than the ones needed by the builder to
+	 * grow.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param builder
+	 *            where the formatted date is appended
+	 * @return the builder passed as argument
+	 */
+	public StringBuilder formatDateToItalianFormat(long epochDay,
+			StringBuilder builder) {
+		return appendItalianFormat(epochDay, false, builder);
+	}
+
+	/**
+	 * Formats an epoch day in the italian format "dd/MM/yyyy" (UNI EN 28601)
+	 * into a char array. This method is thread safe, lock free and doesn't
+	 * allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param destination
+	 *            where the formatted date is written
+	 * @param offset
+	 *            the index of the destination where the first character is
+	 *            written
+	 * @return the index of the destination after the last character written
+	 */
+	public int formatDateToItalianFormat(long epochDay, char[] destination,
+			int offset) {
+		int monthDay = monthDayOfEpochDay(epochDay);
+		return writeItalianFormat(yearOfEpochDay(epochDay), monthDay >>> 5,
+				monthDay & 31, false, destination, offset);
+	}
+
+	/**
+	 * Formats an epoch day in the italian format "dd/MM/yyyy" (UNI EN 28601)
+	 * into a byte buffer as ASCII characters, starting at its current
+	 * position. This method is thread safe, lock free and doesn't allocate
+	 * any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param destination
+	 *            where the formatted date is written
+	 * @return the buffer passed as argument
+	 */
+	public ByteBuffer formatDateToItalianFormat(long epochDay,
+			ByteBuffer destination) {
+		return putItalianFormat(epochDay, false, destination);
+	}
+
+	/**
+	 * Formats a date in the italian format "dd/MM/yy". This method is thread
+	 * safe and lock free.
+	 * 
+	 * @param date
+	 *            the date to format
+	 * @return a date formatted as a "dd/MM/yy" string
+	 */
+	public String formatDateToItalianShortFormat(Calendar date) {
+		char[] chars = new char[ITALIAN_SHORT_FORMAT_LENGTH];
+		writeItalianFormat(date.get(Calendar.YEAR),
+				date.get(Calendar.MONTH) + 1, date.get(Calendar.DAY_OF_MONTH),
+				true, chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Formats a date in the italian format "dd/MM/yy". This method is thread
+	 * safe and lock free.
+	 * 
+	 * @param date
+	 *            the date to format
+	 * @return a date formatted as a "dd/MM/yy" string
+	 */
+	public String formatDateToItalianShortFormat(LocalDate date) {
+		char[] chars = new char[ITALIAN_SHORT_FORMAT_LENGTH];
+		writeItalianFormat(date.getYear(), date.getMonthValue(),
+				date.getDayOfMonth(), true, chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Formats an epoch day in the italian format "dd/MM/yy" and appends it to
+	 * a builder. This method is thread safe, lock free and doesn't allocate
+	 * any object other than the ones needed by the builder to grow.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param builder
+	 *            where the formatted date is appended
+	 * @return the builder passed as argument
+	 */
+	public StringBuilder formatDateToItalianShortFormat(long epochDay,
+			StringBuilder builder) {
+		return appendItalianFormat(epochDay, true, builder);
+	}
+
+	/**
+	 * Formats an epoch day in the italian format "dd/MM/yy" into a char
+	 * array. This method is thread safe, lock free and doesn't allocate any
+	 * object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param destination
+	 *            where the formatted date is written
+	 * @param offset
+	 *            the index of the destination where the first character is
+	 *            written
+	 * @return the index of the destination after the last character written
+	 */
+	public int formatDateToItalianShortFormat(long epochDay,
+			char[] destination, int offset) {
+		int monthDay = monthDayOfEpochDay(epochDay);
+		return writeItalianFormat(yearOfEpochDay(epochDay), monthDay >>> 5,
+				monthDay & 31, true, destination, offset);
+	}
+
+	/**
+	 * Formats an epoch day in the italian format "dd/MM/yy" into a byte buffer
+	 * as ASCII characters, starting at its current position. This method is
+	 * thread safe, lock free and doesn't allocate any object.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param destination
+	 *            where the formatted date is written
+	 * @return the buffer passed as argument
+	 */
+	public ByteBuffer formatDateToItalianShortFormat(long epochDay,
+			ByteBuffer destination) {
+		return putItalianFormat(epochDay, true, destination);
+	}
+
+	/**
+	 * Parses a date in the italian format "dd/MM/yyyy" (UNI EN 28601). This
+	 * method is thread safe and lock free.
+	 * 
+	 * @param text
+	 *            the text to parse
+	 * @return the parsed date
+	 * @throws DateTimeParseException
+	 *             if the text is not a valid date in the "dd/MM/yyyy" format
+	 */
+	public LocalDate parseDateFromItalianFormat(CharSequence text) {
+		return LocalDate.ofEpochDay(parseEpochDayFromItalianFormat(text));
+	}
+
+	/**
+	 * Parses a date in the italian format "dd/MM/yyyy" (UNI EN 28601) into an
+	 * epoch day. This method is thread safe, lock free and doesn't allocate
+	 * any object unless the text is not valid.
+	 * 
+	 * @param text
+	 *            the text to parse
+	 * @return the number of days since the 1st January 1970 of the parsed date
+	 * @throws DateTimeParseException
+	 *             if the text is not a valid date in the "dd/MM/yyyy" format
+	 */
+	public long parseEpochDayFromItalianFormat(CharSequence text) {
+		return parseItalianFormat(text, false);
+	}
+
+	/**
+	 * Parses a date in the italian format "dd/MM/yy". Two digits years are
+	 * placed in the century starting 80 years before the current one, as
+	 * {@link java.text.SimpleDateFormat} does. This method is thread safe and
+	 * lock free.
+	 * 
+	 * @param text
+	 *            the text to parse
+	 * @return the parsed date
+	 * @throws DateTimeParseException
+	 *             if the text is not a valid date in the "dd/MM/yy" format
+	 */
+	public LocalDate parseDateFromItalianShortFormat(CharSequence text) {
+		return LocalDate.ofEpochDay(parseEpochDayFromItalianShortFormat(text));
+	}
+
+	/**
+	 * Parses a date in the italian format "dd/MM/yy" into an epoch day. Two
+	 * digits years are placed in the century starting 80 years before the
+	 * current one, as {@link java.text.SimpleDateFormat} does. This method is
+	 * thread safe, lock free and doesn't allocate any object unless the text
+	 * is not valid.
+	 * 
+	 * @param text
+	 *            the text to parse
+	 * @return the number of days since the 1st January 1970 of the parsed date
+	 * @throws DateTimeParseException
+	 *             if the text is not a valid date in the "dd/MM/yy" format
+	 */
+	public long parseEpochDayFromItalianShortFormat(CharSequence text) {
+		return parseItalianFormat(text, true);
+	}
+
+	/**
+	 * Writes a date in the italian format "dd/MM/yyyy" or "dd/MM/yy" into a
+	 * char array.
+	 * 
+	 * @param year
+	 *            the year of the date, between 0 and 9999
+	 * @param month
+	 *            the month of the date, starting from 1
+	 * @param day
+	 *            the day of the month of the date
+	 * @param shortFormat
+	 *            whether to use the "dd/MM/yy" format instead of the
+	 *            "dd/MM/yyyy" one
+	 * @param destination
+	 *            where the formatted date is written
+	 * @param offset
+	 *            the index of the destination where the first character is
+	 *            written
+	 * @return the index of the destination after the last character written
+	 */
+	private static int writeItalianFormat(int year, int month, int day,
+			boolean shortFormat, char[] destination, int offset) {
+		checkFormattableYear(year);
+		destination[offset++] = (char) ('0' + day / 10);
+		destination[offset++] = (char) ('0' + day % 10);
+		destination[offset++] = '/';
+		destination[offset++] = (char) ('0' + month / 10);
+		destination[offset++] = (char) ('0' + month % 10);
+		destination[offset++] = '/';
+		if (!shortFormat) {
+			destination[offset++] = (char) ('0' + year / 1000);
+			destination[offset++] = (char) ('0' + year / 100 % 10);
+		}
+		destination[offset++] = (char) ('0' + year / 10 % 10);
+		destination[offset++] = (char) ('0' + year % 10);
+		return offset;
+	}
+
+	/**
+	 * Appends an epoch day in the italian format "dd/MM/yyyy" or "dd/MM/yy"
+	 * to a builder.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param shortFormat
+	 *            whether to use the "dd/MM/yy" format instead of the
+	 *            "dd/MM/yyyy" one
+	 * @param builder
+	 *            where the formatted date is appended
+	 * @return the builder passed as argument
+	 */
+	private static StringBuilder appendItalianFormat(long epochDay,
+			boolean shortFormat, StringBuilder builder) {
+		int year = yearOfEpochDay(epochDay);
+		int monthDay = monthDayOfEpochDay(epochDay);
+		int month = monthDay >>> 5;
+		int day = monthDay & 31;
+		checkFormattableYear(year);
+		builder.append((char) ('0' + day / 10))
+				.append((char) ('0' + day % 10)).append('/')
+				.append((char) ('0' + month / 10))
+				.append((char) ('0' + month % 10)).append('/');
+		if (!shortFormat) {
+			builder.append((char) ('0' + year / 1000)).append(
+					(char) ('0' + year / 100 % 10));
+		}
+		return builder.append((char) ('0' + year / 10 % 10)).append(
+				(char) ('0' + year % 10));
+	}
+
+	/**
+	 * Puts an epoch day in the italian format "dd/MM/yyyy" or "dd/MM/yy" into
+	 * a byte buffer as ASCII characters.
+	 * 
+	 * @param epochDay
+	 *            the number of days since the 1st January 1970
+	 * @param shortFormat
+	 *            whether to use the "dd/MM/yy" format instead of the
+	 *            "dd/MM/yyyy" one
+	 * @param destination
+	 *            where the formatted date is written
+	 * @return the buffer passed as argument
+	 */
+	private static ByteBuffer putItalianFormat(long epochDay,
+			boolean shortFormat, ByteBuffer destination) {
+		int year = yearOfEpochDay(epochDay);
+		int monthDay = monthDayOfEpochDay(epochDay);
+		int month = monthDay >>> 5;
+		int day = monthDay & 31;
+		checkFormattableYear(year);
+		destination.put((byte) ('0' + day / 10)).put((byte) ('0' + day % 10))
+				.put((byte) '/').put((byte) ('0' + month / 10))
+				.put((byte) ('0' + month % 10)).put((byte) '/');
+		if (!shortFormat) {
+			destination.put((byte) ('0' + year / 1000)).put(
+					(byte) ('0' + year / 100 % 10));
+		}
+		return destination.put((byte) ('0' + year / 10 % 10)).put(
+				(byte) ('0' + year % 10));
+	}
+
+	/**
+	 * Checks that a year can be represented with four digits.
+	 * 
+	 * @param year
+	 *            the year to check
+	 */
+	private static void checkFormattableYear(int year) {
+		if (year < 0 || year > 9999) {
+			throw new IllegalArgumentException("Year " + year
+					+ " can't be formatted with four digits");
+		}
+	}
+
+	/**
+	 * Parses a date in the italian format "dd/MM/yyyy" or "dd/MM/yy" into an
+	 * epoch day.
+	 * 
+	 * @param text
+	 *            the text to parse
+	 * @param shortFormat
+	 *            whether to use the "dd/MM/yy" format instead of the
+	 *            "dd/MM/yyyy" one
+	 * @return the number of days since the 1st January 1970 of the parsed date
+	 * @throws DateTimeParseException
+	 *             if the text is not a valid date in the requested format
+	 */
+	private static long parseItalianFormat(CharSequence text,
+			boolean shortFormat) {
+		int length = shortFormat ? ITALIAN_SHORT_FORMAT_LENGTH
+				: ITALIAN_FORMAT_LENGTH;
+		if (text.length() != length) {
+			throw new DateTimeParseException("Wrong length for date \"" + text
+					+ "\", expected " + length, text, Math.min(length,
+					text.length()));
+		}
+		if (text.charAt(2) != '/') {
+			throw new DateTimeParseException("Expected '/' in date \"" + text
+					+ "\"", text, 2);
+		}
+		if (text.charAt(5) != '/') {
+			throw new DateTimeParseException("Expected '/' in date \"" + text
+					+ "\"", text, 5);
+		}
+		int day = parseDigits(text, 0, 2);
+		int month = parseDigits(text, 3, 5);
+		int year = parseDigits(text, 6, length);
+		if (shortFormat) {
+			year = SHORT_FORMAT_CENTURY_START
+					+ Math.floorMod(year - SHORT_FORMAT_CENTURY_START, 100);
+		}
+
+		if (month < 1 || month > 12) {
+			throw new DateTimeParseException("Invalid month in date \"" + text
+					+ "\"", text, 3);
+		}
+		if (day < 1 || day > daysInMonth(year, month)) {
+			throw new DateTimeParseException("Invalid day in date \"" + text
+					+ "\"", text, 0);
+		}
+		return epochDayOfYearStart(year) + dayOfYear(year, month, day) - 1;
+	}
+
+	/**
+	 * Parses a sequence of decimal digits.
+	 * 
+	 * @param text
+	 *            the text to parse
+	 * @param from
+	 *            the index of the first digit, included
+	 * @param to
+	 *            the index of the last digit, excluded
+	 * @return the parsed number
+	 * @throws DateTimeParseException
+	 *             if any of the characters is not a digit
+	 */
+	private static int parseDigits(CharSequence text, int from, int to) {
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new DateTimeParseException("Expected digit in date \""
+						+ text + "\"", text, i);
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Checks every day from {@link #SELF_CHECK_FIRST_YEAR} to
+	 * {@link #SELF_CHECK_LAST_YEAR} against the known national holidays,
+	 * through the {@link Calendar}, {@link LocalDate} and epoch day variants
+	 * of the API. The mismatches are printed on the standard error and the
+	 * exit code is 1 if there's any.
+	 * 
+	 * @param args
+	 *            not used
+	 */
+	public static void main(String[] args) {
+		ItalianHolidays holidays = getInstance();
+		int failures = 0;
+		for (int year = SELF_CHECK_FIRST_YEAR; year <= SELF_CHECK_LAST_YEAR; year++) {
+			LocalDate easter = LocalDate.of(year, 3, 22).plusDays(
+					KNOWN_EASTER_DATES.charAt(year - SELF_CHECK_FIRST_YEAR) - '0');
+			LocalDate easterMonday = easter.plusDays(1);
+
+			// Easter lookups.
+			Calendar easterCalendar = holidays.getEasterForYear(year);
+			failures += expect(
+					easterCalendar.get(Calendar.YEAR) == year
+							&& easterCalendar.get(Calendar.MONTH) + 1 == easter
+									.getMonthValue()
+							&& easterCalendar.get(Calendar.DAY_OF_MONTH) == easter
+									.getDayOfMonth(), "getEasterForYear", easter);
+			failures += expect(
+					holidays.easterEpochDay(year) == easter.toEpochDay(),
+					"easterEpochDay", easter);
+			failures += expect(
+					holidays.mondayAfterEasterEpochDay(year) == easterMonday
+							.toEpochDay(), "mondayAfterEasterEpochDay",
+					easterMonday);
+
+			// Fixed holidays.
+			Calendar[] fixedHolidays = holidays.getFixedHolidaysForYear(year);
+			failures += expect(
+					fixedHolidays.length == KNOWN_FIXED_HOLIDAYS.length,
+					"getFixedHolidaysForYear", LocalDate.of(year, 1, 1));
+			for (int i = 0; i < fixedHolidays.length
+					&& i < KNOWN_FIXED_HOLIDAYS.length; i++) {
+				LocalDate expected = LocalDate.of(year,
+						KNOWN_FIXED_HOLIDAYS[i][0], KNOWN_FIXED_HOLIDAYS[i][1]);
+				failures += expect(
+						fixedHolidays[i].get(Calendar.YEAR) == year
+								&& fixedHolidays[i].get(Calendar.MONTH) + 1 == expected
+										.getMonthValue()
+								&& fixedHolidays[i].get(Calendar.DAY_OF_MONTH) == expected
+										.getDayOfMonth(),
+						"getFixedHolidaysForYear", expected);
+			}
+
+			// Every day of the year.
+			Calendar calendar = Calendar.getInstance();
+			for (LocalDate date = LocalDate.of(year, 1, 1); date.getYear() == year; date = date
+					.plusDays(1)) {
+				boolean holiday = date.equals(easter)
+						|| date.equals(easterMonday);
+				for (int[] fixed : KNOWN_FIXED_HOLIDAYS) {
+					holiday |= date.getMonthValue() == fixed[0]
+							&& date.getDayOfMonth() == fixed[1];
+				}
+				boolean weekend = date.getDayOfWeek() == DayOfWeek.SATURDAY
+						|| date.getDayOfWeek() == DayOfWeek.SUNDAY;
+				calendar.clear();
+				calendar.set(year, date.getMonthValue() - 1,
+						date.getDayOfMonth());
+				long epochDay = date.toEpochDay();
+
+				failures += expect(holidays.isHoliday(date) == holiday,
+						"isHoliday(LocalDate)", date);
+				failures += expect(holidays.isHoliday(epochDay) == holiday,
+						"isHoliday(long)", date);
+				failures += expect(holidays.isHoliday(calendar) == holiday,
+						"isHoliday(Calendar)", date);
+				failures += expect(
+						holidays.isWorkingDay(date) == !(holiday || weekend),
+						"isWorkingDay(LocalDate)", date);
+				failures += expect(
+						holidays.isWorkingDay(epochDay) == !(holiday || weekend),
+						"isWorkingDay(long)", date);
+				failures += expect(
+						holidays.isWorkingDay(calendar) == !(holiday || weekend),
+						"isWorkingDay(Calendar)", date);
+			}
+		}
+
+		if (failures > 0) {
+			System.err.println(failures + " holiday checks failed");
+			System.exit(1);
+		}
+		System.out.println("All holidays from " + SELF_CHECK_FIRST_YEAR
+				+ " to " + SELF_CHECK_LAST_YEAR + " are correct");
+	}
+
+	/**
+	 * Reports a failed check of {@link #main(String[])}.
+	 * 
+	 * @param condition
+	 *            the result of the check
+	 * @param check
+	 *            the name of the check
+	 * @param date
+	 *            the date being checked
+	 * @return 0 if the check passed, 1 otherwise
+	 */
+	private static int expect(boolean condition, String check, LocalDate date) {
+		if (condition) {
+			return 0;
 		}
+		System.err.println("Check " + check + " failed for " + date);
+		return 1;
 	}
 
 }
@@ -0,0 +1,406 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Donato Rimenti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.aurasphere.scripts;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Benchmark for {@link ItalianHolidays}. Each operation is timed both on the
+ * current implementation and on a copy of the original one, which computed
+ * Easter, allocated calendars and walked one day at a time on every call. <br>
+ * <br>
+ * The dates are drawn with a fixed seed from 2000 to 2040 and the working
+ * days to add from 1 to 250, which is what most due date computations look
+ * like. Each benchmark runs for a warmup period and then records the time
+ * of batches of {@value #BATCH_SIZE} operations. The report shows the
+ * throughput, the average time per operation at several percentiles of the
+ * batches and the bytes allocated per operation, when the JVM can measure
+ * them. <br>
+ * <br>
+ * This file only depends on {@link ItalianHolidays}, so it can be run with:
+ *
+ * <pre>
+ * javac -encoding UTF-8 -d out ItalianHolidays.java ItalianHolidaysBenchmark.java
+ * java -cp out co.aurasphere.scripts.ItalianHolidaysBenchmark [seconds]
+ * </pre>
+ *
+ * @author Donato Rimenti
+ *
+ */
+public class ItalianHolidaysBenchmark {
+
+	/**
+	 * Number of operations timed together, so that the cost of reading the
+	 * clock doesn't hide the cost of the operation.
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * Number of random inputs, a power of two since it's used as a mask.
+	 */
+	private static final int INPUTS = 1 << 12;
+
+	/**
+	 * Default measurement time of each benchmark, in seconds. The warmup
+	 * lasts half of it.
+	 */
+	private static final int DEFAULT_SECONDS = 2;
+
+	/**
+	 * Sink for the results of the operations, so that the JIT can't drop
+	 * them.
+	 */
+	private static volatile long sink;
+
+	/**
+	 * An operation to benchmark.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private interface Operation {
+
+		/**
+		 * Runs the operation once.
+		 *
+		 * @param input
+		 *            the index of the input to use
+		 * @return a value depending on the result, to be consumed
+		 */
+		long run(int input);
+	}
+
+	/**
+	 * Copy of the original implementation of {@link ItalianHolidays}, used as
+	 * the baseline of the benchmarks. The month offset and the Easter term
+	 * which were wrong in the original are fixed, so both implementations
+	 * give the same results.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class Baseline {
+
+		/**
+		 * Fixed holidays as calendars of the current year, as the original
+		 * implementation kept them.
+		 */
+		private final Calendar[] fixedHolidays = { fromDate(1, Calendar.JANUARY),
+				fromDate(6, Calendar.JANUARY), fromDate(25, Calendar.APRIL),
+				fromDate(1, Calendar.MAY), fromDate(2, Calendar.JUNE),
+				fromDate(15, Calendar.AUGUST), fromDate(1, Calendar.NOVEMBER),
+				fromDate(8, Calendar.DECEMBER), fromDate(25, Calendar.DECEMBER),
+				fromDate(26, Calendar.DECEMBER) };
+
+		/**
+		 * Returns a calendar for a day and month of the current year.
+		 *
+		 * @param day
+		 *            the day of the month
+		 * @param month
+		 *            the month, starting from 0
+		 * @return a new calendar
+		 */
+		private static Calendar fromDate(int day, int month) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.set(Calendar.MONTH, month);
+			calendar.set(Calendar.DAY_OF_MONTH, day);
+			return calendar;
+		}
+
+		/**
+		 * Computes Easter with the Gauss algorithm on every call.
+		 *
+		 * @param year
+		 *            the year whose Easter is needed
+		 * @return a new calendar set to Easter
+		 */
+		private Calendar getEasterForYear(int year) {
+			int a = year % 19;
+			int b = year / 100;
+			int c = year % 100;
+			int d = b / 4;
+			int e = b % 4;
+			int f = (b + 8) / 25;
+			int g = (b - f + 1) / 3;
+			int h = (19 * a + b - d - g + 15) % 30;
+			int i = c / 4;
+			int k = c % 4;
+			int l = (32 + 2 * e + 2 * i - h - k) % 7;
+			int m = (a + 11 * h + 22 * l) / 451;
+			int n = (h + l - 7 * m + 114) / 31;
+			int p = (h + l - 7 * m + 114) % 31;
+			Calendar calendar = Calendar.getInstance();
+			calendar.set(year, n - 1, p + 1);
+			return calendar;
+		}
+
+		/**
+		 * Checks if a date is an holiday by comparing it with every fixed
+		 * holiday and with a freshly computed Easter.
+		 *
+		 * @param date
+		 *            the date to check
+		 * @return true if the date is an holiday, false otherwise
+		 */
+		private boolean isHoliday(Calendar date) {
+			for (Calendar holiday : fixedHolidays) {
+				if (sameDayAndMonth(date, holiday)) {
+					return true;
+				}
+			}
+			Calendar easter = getEasterForYear(date.get(Calendar.YEAR));
+			Calendar mondayAfterEaster = Calendar.getInstance();
+			mondayAfterEaster.setTime(easter.getTime());
+			mondayAfterEaster.add(Calendar.DAY_OF_MONTH, 1);
+			return sameDayAndMonth(date, easter)
+					|| sameDayAndMonth(date, mondayAfterEaster);
+		}
+
+		/**
+		 * Adds working days by moving one day at a time.
+		 *
+		 * @param date
+		 *            the date to move, which is modified
+		 * @param workingDays
+		 *            the working days to add, greater than 0
+		 * @return the same calendar
+		 */
+		private Calendar addWorkingDays(Calendar date, int workingDays) {
+			while (workingDays > 0) {
+				date.add(Calendar.DAY_OF_MONTH, 1);
+				int dayOfWeek = date.get(Calendar.DAY_OF_WEEK);
+				if (dayOfWeek != Calendar.SATURDAY
+						&& dayOfWeek != Calendar.SUNDAY && !isHoliday(date)) {
+					workingDays--;
+				}
+			}
+			return date;
+		}
+
+		/**
+		 * Checks if two calendars refer to the same day and month.
+		 *
+		 * @param first
+		 *            the first date
+		 * @param second
+		 *            the second date
+		 * @return true if the day and month are the same, false otherwise
+		 */
+		private static boolean sameDayAndMonth(Calendar first, Calendar second) {
+			return first.get(Calendar.DAY_OF_MONTH) == second
+					.get(Calendar.DAY_OF_MONTH)
+					&& first.get(Calendar.MONTH) == second.get(Calendar.MONTH);
+		}
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args
+	 *            optionally, the measurement time of each benchmark in seconds
+	 */
+	public static void main(String[] args) {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_SECONDS;
+		ItalianHolidays holidays = ItalianHolidays.getInstance();
+		Baseline baseline = new Baseline();
+
+		// Inputs.
+		Random random = new Random(42);
+		long first = LocalDate.of(2000, 1, 1).toEpochDay();
+		long last = LocalDate.of(2040, 12, 31).toEpochDay();
+		int[] years = new int[INPUTS];
+		long[] epochDays = new long[INPUTS];
+		Calendar[] calendars = new Calendar[INPUTS];
+		int[] workingDays = new int[INPUTS];
+		for (int i = 0; i < INPUTS; i++) {
+			epochDays[i] = first + random.nextInt((int) (last - first + 1));
+			LocalDate date = LocalDate.ofEpochDay(epochDays[i]);
+			years[i] = date.getYear();
+			calendars[i] = Calendar.getInstance();
+			calendars[i].clear();
+			calendars[i].set(date.getYear(), date.getMonthValue() - 1,
+					date.getDayOfMonth());
+			workingDays[i] = 1 + random.nextInt(250);
+		}
+		Calendar scratch = Calendar.getInstance();
+
+		// Both implementations must agree before being compared.
+		for (int i = 0; i < INPUTS; i++) {
+			scratch.setTimeInMillis(calendars[i].getTimeInMillis());
+			long expected = baseline.addWorkingDays(scratch, workingDays[i])
+					.getTimeInMillis();
+			scratch.setTimeInMillis(calendars[i].getTimeInMillis());
+			if (holidays.addWorkingDays(scratch, workingDays[i])
+					.getTimeInMillis() != expected
+					|| baseline.isHoliday(calendars[i]) != holidays
+							.isHoliday(calendars[i])) {
+				throw new IllegalStateException("Results differ for "
+						+ LocalDate.ofEpochDay(epochDays[i]));
+			}
+		}
+
+		System.out.println(header());
+		run("getEasterForYear baseline", seconds,
+				i -> baseline.getEasterForYear(years[i]).getTimeInMillis());
+		run("getEasterForYear", seconds, i -> holidays.getEasterForYear(years[i])
+				.getTimeInMillis());
+		run("easterEpochDay", seconds, i -> holidays.easterEpochDay(years[i]));
+		run("isHoliday baseline", seconds,
+				i -> baseline.isHoliday(calendars[i]) ? 1 : 0);
+		run("isHoliday(Calendar)", seconds,
+				i -> holidays.isHoliday(calendars[i]) ? 1 : 0);
+		run("isHoliday(long)", seconds,
+				i -> holidays.isHoliday(epochDays[i]) ? 1 : 0);
+		run("addWorkingDays baseline", seconds, i -> {
+			scratch.setTimeInMillis(calendars[i].getTimeInMillis());
+			return baseline.addWorkingDays(scratch, workingDays[i])
+					.getTimeInMillis();
+		});
+		run("addWorkingDays(Calendar)", seconds, i -> {
+			scratch.setTimeInMillis(calendars[i].getTimeInMillis());
+			return holidays.addWorkingDays(scratch, workingDays[i])
+					.getTimeInMillis();
+		});
+		run("addWorkingDays(long)", seconds,
+				i -> holidays.addWorkingDays(epochDays[i], workingDays[i]));
+	}
+
+	/**
+	 * Returns the header of the report.
+	 *
+	 * @return the header line
+	 */
+	private static String header() {
+		return String.format("%-28s %14s %10s %10s %10s %10s %12s",
+				"Benchmark", "ops/s", "p50 ns", "p90 ns", "p99 ns",
+				"p99.9 ns", "bytes/op");
+	}
+
+	/**
+	 * Warms up and measures an operation, then prints a line of the report.
+	 *
+	 * @param name
+	 *            the name of the benchmark
+	 * @param seconds
+	 *            the measurement time
+	 * @param operation
+	 *            the operation to measure
+	 */
+	private static void run(String name, int seconds, Operation operation) {
+		// Warmup.
+		long end = System.nanoTime() + seconds * 500_000_000L;
+		while (System.nanoTime() < end) {
+			batch(operation, 0);
+		}
+
+		// Measurement.
+		long[] samples = new long[1024];
+		int count = 0;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		end = start + seconds * 1_000_000_000L;
+		long now = start;
+		while (now < end) {
+			if (count == samples.length) {
+				samples = Arrays.copyOf(samples, count * 2);
+			}
+			long batchStart = now;
+			batch(operation, count * BATCH_SIZE);
+			now = System.nanoTime();
+			samples[count++] = now - batchStart;
+		}
+		long allocatedAfter = allocatedBytes();
+
+		Arrays.sort(samples, 0, count);
+		long operations = (long) count * BATCH_SIZE;
+		System.out.println(String.format(
+				"%-28s %14.0f %10.1f %10.1f %10.1f %10.1f %12s", name,
+				operations * 1e9 / (now - start),
+				percentile(samples, count, 0.5),
+				percentile(samples, count, 0.9),
+				percentile(samples, count, 0.99),
+				percentile(samples, count, 0.999),
+				allocatedBefore < 0 ? "n/a" : String.format("%.1f",
+						(double) (allocatedAfter - allocatedBefore)
+								/ operations)));
+	}
+
+	/**
+	 * Runs a batch of operations on consecutive inputs.
+	 *
+	 * @param operation
+	 *            the operation to run
+	 * @param offset
+	 *            the index of the first input
+	 */
+	private static void batch(Operation operation, int offset) {
+		long result = 0;
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			result += operation.run((offset + i) & (INPUTS - 1));
+		}
+		sink = result;
+	}
+
+	/**
+	 * Returns a percentile of the sorted batch times, per operation.
+	 *
+	 * @param samples
+	 *            the sorted batch times
+	 * @param count
+	 *            the number of samples
+	 * @param percentile
+	 *            the percentile, between 0 and 1
+	 * @return the average time of an operation in the batch at the given
+	 *         percentile, in nanoseconds
+	 */
+	private static double percentile(long[] samples, int count,
+			double percentile) {
+		int index = (int) Math.min(count - 1, Math.ceil(percentile * count) - 1);
+		return (double) samples[Math.max(0, index)] / BATCH_SIZE;
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread.
+	 *
+	 * @return the allocated bytes, or -1 if the JVM doesn't support this
+	 *         measurement
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+}
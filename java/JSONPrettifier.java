@@ -24,7 +24,35 @@
 
 package co.aurasphere.scripts;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 
@@ -47,19 +75,3031 @@ public class JSONPrettifier {
 	 */
 	private static final String INDENTATION_CHAR = "  ";
 
+	/**
+	 * Size of the buffers used by the prettifier.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Number of indentation levels initially precomputed by the prettifier.
+	 */
+	private static final int PRECOMPUTED_INDENTATION_LEVELS = 32;
+
+	/**
+	 * Size of the regions of a file which are memory-mapped at once.
+	 */
+	private static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Number of bytes of newline-delimited JSON records prettified by a
+	 * single thread.
+	 */
+	private static final int PARALLEL_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Milliseconds after which the daemon closes a connection which sends
+	 * nothing.
+	 */
+	private static final int DAEMON_READ_TIMEOUT = 30000;
+
+	/**
+	 * Maximum number of connections served at once by the daemon, each by its
+	 * own thread.
+	 */
+	private static final int DAEMON_MAX_CONNECTIONS = 64;
+
+	/**
+	 * Maximum length of a newline-delimited record sent to the daemon, which
+	 * bounds the memory taken by each connection.
+	 */
+	private static final int DAEMON_MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * Size of the buffer where newline-delimited records are read from a
+	 * stream before being formatted in parallel.
+	 */
+	private static final int LINES_BUFFER_SIZE = 4 * PARALLEL_CHUNK_SIZE;
+
+	/**
+	 * Options which control how the JSON is formatted. Instances are immutable
+	 * and can be shared between threads: each of the <code>with</code> methods
+	 * returns a copy of the options with one value changed, starting from
+	 * either {@link #DEFAULT} or {@link #MINIFIED}. All the formatting values
+	 * must be made of whitespaces only (apart from the colon), so that the
+	 * output is still valid JSON. The limits are disabled by default.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	public static final class Options {
+
+		/**
+		 * The options used when none is specified: two spaces of indentation,
+		 * a space before and after colons and a blank line after each JSON
+		 * document.
+		 */
+		public static final Options DEFAULT = new Options(INDENTATION_CHAR, " : ", "\n\n", false, Long.MAX_VALUE,
+				Integer.MAX_VALUE, Integer.MAX_VALUE, null);
+
+		/**
+		 * Options which remove all the whitespaces outside quotes, putting
+		 * each JSON document on a single line.
+		 */
+		public static final Options MINIFIED = new Options(null, ":", "\n", false, Long.MAX_VALUE, Integer.MAX_VALUE,
+				Integer.MAX_VALUE, null);
+
+		/**
+		 * String used to represent one indentation level or null to never
+		 * break lines.
+		 */
+		private final String indentation;
+
+		/**
+		 * What is written in place of a colon outside quotes.
+		 */
+		private final String colon;
+
+		/**
+		 * What is written after each JSON document.
+		 */
+		private final String documentSeparator;
+
+		/**
+		 * Whether the input is validated while it's formatted.
+		 */
+		private final boolean strict;
+
+		/**
+		 * Maximum length of the output, including the truncation marker.
+		 */
+		private final long maxOutputLength;
+
+		/**
+		 * Maximum number of nested objects and arrays which are formatted.
+		 */
+		private final int maxDepth;
+
+		/**
+		 * Maximum length of the content of a String.
+		 */
+		private final int maxStringLength;
+
+		/**
+		 * Path of the values which are formatted, or null to format the whole
+		 * input.
+		 */
+		private final PathFilter path;
+
+		/**
+		 * Builds new options.
+		 *
+		 * @param indentation
+		 *            string used to represent one indentation level or null
+		 *            to never break lines
+		 * @param colon
+		 *            what is written in place of a colon outside quotes
+		 * @param documentSeparator
+		 *            what is written after each JSON document
+		 * @param strict
+		 *            whether the input is validated while it's formatted
+		 * @param maxOutputLength
+		 *            maximum length of the output, including the truncation
+		 *            marker
+		 * @param maxDepth
+		 *            maximum number of nested objects and arrays which are
+		 *            formatted
+		 * @param maxStringLength
+		 *            maximum length of the content of a String
+		 * @param path
+		 *            path of the values which are formatted, or null to
+		 *            format the whole input
+		 */
+		private Options(String indentation, String colon, String documentSeparator, boolean strict,
+				long maxOutputLength, int maxDepth, int maxStringLength, PathFilter path) {
+			this.indentation = indentation;
+			this.colon = colon;
+			this.documentSeparator = documentSeparator;
+			this.strict = strict;
+			this.maxOutputLength = maxOutputLength;
+			this.maxDepth = maxDepth;
+			this.maxStringLength = maxStringLength;
+			this.path = path;
+		}
+
+		/**
+		 * Returns a copy of these options with a different indentation.
+		 *
+		 * @param indentation
+		 *            string used to represent one indentation level, like
+		 *            "\t" or four spaces, or null to never break lines
+		 * @return the new options
+		 * @throws IllegalArgumentException
+		 *             if the indentation contains anything but spaces and
+		 *             tabs
+		 */
+		public Options withIndentation(String indentation) {
+			if (indentation != null) {
+				checkWhitespaces(indentation, " \t", "indentation");
+			}
+			return new Options(indentation, colon, documentSeparator, strict, maxOutputLength, maxDepth, maxStringLength,
+					path);
+		}
+
+		/**
+		 * Returns a copy of these options with a different indentation made of
+		 * spaces.
+		 *
+		 * @param width
+		 *            the number of spaces of each indentation level
+		 * @return the new options
+		 * @throws IllegalArgumentException
+		 *             if the width is negative
+		 */
+		public Options withIndentation(int width) {
+			if (width < 0) {
+				throw new IllegalArgumentException("Indentation width can't be negative: " + width);
+			}
+			char[] spaces = new char[width];
+			Arrays.fill(spaces, ' ');
+			return withIndentation(new String(spaces));
+		}
+
+		/**
+		 * Returns a copy of these options with different spaces around
+		 * colons.
+		 *
+		 * @param colon
+		 *            what is written in place of a colon outside quotes, like
+		 *            ": " or ":"
+		 * @return the new options
+		 * @throws IllegalArgumentException
+		 *             if the colon is not a ":" surrounded by spaces and tabs
+		 */
+		public Options withColon(String colon) {
+			int colonIndex = colon.indexOf(':');
+			if (colonIndex < 0) {
+				throw new IllegalArgumentException("Colon must contain a \":\": [" + colon + "]");
+			}
+			checkWhitespaces(colon.substring(0, colonIndex) + colon.substring(colonIndex + 1), " \t", "colon");
+			return new Options(indentation, colon, documentSeparator, strict, maxOutputLength, maxDepth, maxStringLength,
+					path);
+		}
+
+		/**
+		 * Returns a copy of these options with a different separator between
+		 * JSON documents.
+		 *
+		 * @param documentSeparator
+		 *            what is written after each JSON document, like "\n" or
+		 *            "\n\n"
+		 * @return the new options
+		 * @throws IllegalArgumentException
+		 *             if the separator contains anything but whitespaces
+		 */
+		public Options withDocumentSeparator(String documentSeparator) {
+			checkWhitespaces(documentSeparator, " \t\r\n", "document separator");
+			return new Options(indentation, colon, documentSeparator, strict, maxOutputLength, maxDepth, maxStringLength,
+					path);
+		}
+
+		/**
+		 * Returns a copy of these options with strict mode enabled or
+		 * disabled. In strict mode the JSON grammar is validated in the same
+		 * pass used to format the input and a {@link MalformedJSONException}
+		 * is thrown at the first error. The input must be exactly one JSON
+		 * value, with any whitespace around it: empty input, blank input and
+		 * more values one after the other are errors, as are truncated JSONs,
+		 * even if they end with "...\n". Newline-delimited records must be
+		 * formatted with {@link JSONPrettifier#prettifyLines(byte[], Options)},
+		 * which validates each record on its own and skips the blank lines.
+		 * Strict mode is disabled by default.
+		 *
+		 * @param strict
+		 *            whether the input is validated while it's formatted
+		 * @return the new options
+		 */
+		public Options withStrict(boolean strict) {
+			return new Options(indentation, colon, documentSeparator, strict, maxOutputLength, maxDepth, maxStringLength,
+					path);
+		}
+
+		/**
+		 * Returns a copy of these options with a limit on the output length.
+		 * When the limit is reached, the output ends with the truncation
+		 * marker "...\n" (the same one recognized in the input) and the rest
+		 * of the input is not read at all. The limit includes the marker and
+		 * is counted in characters for text output and in bytes for UTF-8
+		 * output, without ever splitting a character. In strict mode, the
+		 * input which is not read is not validated.
+		 *
+		 * @param maxOutputLength
+		 *            maximum length of the output, including the truncation
+		 *            marker
+		 * @return the new options
+		 * @throws IllegalArgumentException
+		 *             if the limit is negative
+		 */
+		public Options withMaxOutputLength(long maxOutputLength) {
+			if (maxOutputLength < 0) {
+				throw new IllegalArgumentException("Max output length can't be negative: " + maxOutputLength);
+			}
+			return new Options(indentation, colon, documentSeparator, strict, maxOutputLength, maxDepth, maxStringLength,
+					path);
+		}
+
+		/**
+		 * Returns a copy of these options with a limit on the depth of the
+		 * formatted JSON. Objects and arrays nested deeper than the limit are
+		 * collapsed into "{...}" and "[...]" and their content is skipped
+		 * without being formatted. A depth of 0 collapses even the outermost
+		 * ones.
+		 *
+		 * @param maxDepth
+		 *            maximum number of nested objects and arrays which are
+		 *            formatted
+		 * @return the new options
+		 * @throws IllegalArgumentException
+		 *             if the depth is negative
+		 */
+		public Options withMaxDepth(int maxDepth) {
+			if (maxDepth < 0) {
+				throw new IllegalArgumentException("Max depth can't be negative: " + maxDepth);
+			}
+			return new Options(indentation, colon, documentSeparator, strict, maxOutputLength, maxDepth, maxStringLength,
+					path);
+		}
+
+		/**
+		 * Returns a copy of these options with a limit on the length of
+		 * Strings, both keys and values. Longer Strings are cut and end with
+		 * "..." before the closing quote, and the rest of their content is
+		 * skipped. The length is counted in characters (or bytes) of the
+		 * input, escape sequences included, and they are never split.
+		 *
+		 * @param maxStringLength
+		 *            maximum length of the content of a String
+		 * @return the new options
+		 * @throws IllegalArgumentException
+		 *             if the length is negative
+		 */
+		public Options withMaxStringLength(int maxStringLength) {
+			if (maxStringLength < 0) {
+				throw new IllegalArgumentException("Max String length can't be negative: " + maxStringLength);
+			}
+			return new Options(indentation, colon, documentSeparator, strict, maxOutputLength, maxDepth, maxStringLength,
+					path);
+		}
+
+		/**
+		 * Returns a copy of these options which format only the values found
+		 * at a path, each one as a separate JSON document. The path is
+		 * evaluated while the input is read: the values which don't match it
+		 * are skipped without being formatted. The supported syntax is a
+		 * subset of JSONPath: "$" for the root, followed by any number of
+		 * ".name", "['name']", ".*" (any key), "[n]" (an array index) and
+		 * "[*]" (any index), like "$.data.items[*].id". Keys are compared as
+		 * they are written in the JSON, without decoding escape sequences.
+		 * Limits are applied to each value on its own, apart from the output
+		 * length.
+		 *
+		 * @param path
+		 *            the path of the values to format or null to format the
+		 *            whole input
+		 * @return the new options
+		 * @throws IllegalArgumentException
+		 *             if the path is not valid
+		 */
+		public Options withPath(String path) {
+			return new Options(indentation, colon, documentSeparator, strict, maxOutputLength, maxDepth, maxStringLength,
+					path != null ? PathFilter.compile(path) : null);
+		}
+
+		/**
+		 * Checks that a value contains only the allowed characters.
+		 *
+		 * @param value
+		 *            the value to check
+		 * @param allowed
+		 *            the allowed characters
+		 * @param name
+		 *            the name of the value, used in the exception message
+		 * @throws IllegalArgumentException
+		 *             if the value contains any other character
+		 */
+		private static void checkWhitespaces(String value, String allowed, String name) {
+			for (int i = 0; i < value.length(); i++) {
+				if (allowed.indexOf(value.charAt(i)) < 0) {
+					throw new IllegalArgumentException("Invalid character in " + name + ": [" + value + "]");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Exception thrown in strict mode when the input is not valid JSON. It
+	 * reports the position of the first invalid character, or of the end of
+	 * the input if it ended too early. The output written before the error
+	 * is left as it is.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	public static final class MalformedJSONException extends IllegalArgumentException {
+
+		/**
+		 * Serial version UID.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * What's wrong with the input.
+		 */
+		private final String reason;
+
+		/**
+		 * Line of the error, starting from 1.
+		 */
+		private final long line;
+
+		/**
+		 * Column of the error, starting from 1.
+		 */
+		private final long column;
+
+		/**
+		 * Offset of the error from the start of the input, starting from 0.
+		 */
+		private final long offset;
+
+		/**
+		 * Builds a new exception.
+		 *
+		 * @param reason
+		 *            what's wrong with the input
+		 * @param line
+		 *            line of the error, starting from 1
+		 * @param column
+		 *            column of the error, starting from 1
+		 * @param offset
+		 *            offset of the error from the start of the input,
+		 *            starting from 0
+		 */
+		private MalformedJSONException(String reason, long line, long column, long offset) {
+			super(reason + " at line " + line + ", column " + column + " (offset " + offset + ")");
+			this.reason = reason;
+			this.line = line;
+			this.column = column;
+			this.offset = offset;
+		}
+
+		/**
+		 * Gets the {@link #line}.
+		 *
+		 * @return the {@link #line}
+		 */
+		public long getLine() {
+			return line;
+		}
+
+		/**
+		 * Gets the {@link #column}. It's counted in characters for text
+		 * input and in bytes for UTF-8 input.
+		 *
+		 * @return the {@link #column}
+		 */
+		public long getColumn() {
+			return column;
+		}
+
+		/**
+		 * Gets the {@link #offset}. It's counted in characters for text input
+		 * and in bytes for UTF-8 input.
+		 *
+		 * @return the {@link #offset}
+		 */
+		public long getOffset() {
+			return offset;
+		}
+	}
+
+	/**
+	 * Push-based validator of the JSON grammar, fed with the same characters
+	 * as the {@link PrettifierEngine} which owns it so that the input is
+	 * parsed only once. Accepts exactly one JSON value, with any whitespace
+	 * around it. UTF-8 multibyte sequences are accepted inside strings
+	 * without checking them. This class is not ThreadSafe.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class JSONValidator {
+
+		/**
+		 * A value is expected.
+		 */
+		private static final int VALUE = 0;
+
+		/**
+		 * A value or the end of the array is expected, after a "[".
+		 */
+		private static final int VALUE_OR_ARRAY_END = 1;
+
+		/**
+		 * A key or the end of the object is expected, after a "{".
+		 */
+		private static final int KEY_OR_OBJECT_END = 2;
+
+		/**
+		 * A key is expected, after a "," in an object.
+		 */
+		private static final int KEY = 3;
+
+		/**
+		 * A ":" is expected, after a key.
+		 */
+		private static final int COLON = 4;
+
+		/**
+		 * A "," or the end of the container is expected, after a value.
+		 */
+		private static final int COMMA_OR_END = 5;
+
+		/**
+		 * Inside a string which is a value.
+		 */
+		private static final int STRING_VALUE = 6;
+
+		/**
+		 * Inside a string which is a key.
+		 */
+		private static final int STRING_KEY = 7;
+
+		/**
+		 * Inside one of the literals true, false or null.
+		 */
+		private static final int LITERAL = 8;
+
+		/**
+		 * After the minus sign of a number.
+		 */
+		private static final int NUMBER_MINUS = 9;
+
+		/**
+		 * After a number's integer part made of a single 0.
+		 */
+		private static final int NUMBER_ZERO = 10;
+
+		/**
+		 * Inside a number's integer part.
+		 */
+		private static final int NUMBER_INTEGER = 11;
+
+		/**
+		 * After the dot of a number.
+		 */
+		private static final int NUMBER_DOT = 12;
+
+		/**
+		 * Inside a number's fraction part.
+		 */
+		private static final int NUMBER_FRACTION = 13;
+
+		/**
+		 * After the "e" or "E" of a number.
+		 */
+		private static final int NUMBER_EXPONENT_MARK = 14;
+
+		/**
+		 * After the sign of a number's exponent.
+		 */
+		private static final int NUMBER_EXPONENT_SIGN = 15;
+
+		/**
+		 * Inside a number's exponent.
+		 */
+		private static final int NUMBER_EXPONENT = 16;
+
+		/**
+		 * After the top-level value, where only whitespaces are expected.
+		 */
+		private static final int END = 17;
+
+		/**
+		 * Characters which can follow a backslash inside a string.
+		 */
+		private static final String ESCAPES = "\"\\/bfnrtu";
+
+		/**
+		 * The current state, one of the constants of this class.
+		 */
+		private int state = VALUE;
+
+		/**
+		 * Whether each open container is an object (true) or an array.
+		 */
+		private boolean[] containers = new boolean[PRECOMPUTED_INDENTATION_LEVELS];
+
+		/**
+		 * Number of open containers.
+		 */
+		private int depth;
+
+		/**
+		 * Whether an input made only of whitespaces is valid, as the blank
+		 * lines between newline-delimited records.
+		 */
+		private boolean allowBlank;
+
+		/**
+		 * Whether the previous character was a backslash inside a string.
+		 */
+		private boolean escaped;
+
+		/**
+		 * Number of hex digits left in a unicode escape sequence.
+		 */
+		private int unicodeDigits;
+
+		/**
+		 * The literal being parsed.
+		 */
+		private String literal;
+
+		/**
+		 * Number of characters of {@link #literal} already parsed.
+		 */
+		private int literalPosition;
+
+		/**
+		 * Offset of the current character from the start of the input.
+		 */
+		private long offset;
+
+		/**
+		 * Line of the current character, starting from 1.
+		 */
+		private long line = 1;
+
+		/**
+		 * Offset of the first character of the current line.
+		 */
+		private long lineStart;
+
+		/**
+		 * Checks whether the current character is inside a string and is not
+		 * part of an escape sequence, which means that any character but a
+		 * quote, a backslash or a control character is valid.
+		 *
+		 * @return true if inside a string and outside escape sequences, false
+		 *         otherwise
+		 */
+		private boolean inPlainString() {
+			return (state == STRING_VALUE || state == STRING_KEY) && !escaped && unicodeDigits == 0;
+		}
+
+		/**
+		 * Skips some characters already known to be valid. Must be called
+		 * only if {@link #inPlainString()} and with characters which are
+		 * neither quotes, backslashes nor control characters.
+		 *
+		 * @param length
+		 *            the number of characters to skip
+		 */
+		private void skip(int length) {
+			offset += length;
+		}
+
+		/**
+		 * Validates a character.
+		 *
+		 * @param character
+		 *            the character to validate, which for bytes is between 0
+		 *            and 255
+		 * @throws MalformedJSONException
+		 *             if the character is not valid here
+		 */
+		private void accept(char character) {
+			switch (state) {
+			case STRING_VALUE:
+			case STRING_KEY:
+				acceptInString(character);
+				break;
+			case LITERAL:
+				if (literalPosition < literal.length()) {
+					if (character != literal.charAt(literalPosition++)) {
+						throw error("Invalid literal");
+					}
+				} else {
+					endScalar(character);
+				}
+				break;
+			case NUMBER_MINUS:
+				if (character == '0') {
+					state = NUMBER_ZERO;
+				} else if (character >= '1' && character <= '9') {
+					state = NUMBER_INTEGER;
+				} else {
+					throw error("Invalid number");
+				}
+				break;
+			case NUMBER_ZERO:
+			case NUMBER_INTEGER:
+				if (character >= '0' && character <= '9') {
+					if (state == NUMBER_ZERO) {
+						throw error("Leading zero in number");
+					}
+				} else if (character == '.') {
+					state = NUMBER_DOT;
+				} else if (character == 'e' || character == 'E') {
+					state = NUMBER_EXPONENT_MARK;
+				} else {
+					endScalar(character);
+				}
+				break;
+			case NUMBER_DOT:
+			case NUMBER_EXPONENT_SIGN:
+				if (character < '0' || character > '9') {
+					throw error("Invalid number");
+				}
+				state = state == NUMBER_DOT ? NUMBER_FRACTION : NUMBER_EXPONENT;
+				break;
+			case NUMBER_FRACTION:
+				if (character == 'e' || character == 'E') {
+					state = NUMBER_EXPONENT_MARK;
+				} else if (character < '0' || character > '9') {
+					endScalar(character);
+				}
+				break;
+			case NUMBER_EXPONENT_MARK:
+				if (character == '+' || character == '-') {
+					state = NUMBER_EXPONENT_SIGN;
+				} else if (character >= '0' && character <= '9') {
+					state = NUMBER_EXPONENT;
+				} else {
+					throw error("Invalid number");
+				}
+				break;
+			case NUMBER_EXPONENT:
+				if (character < '0' || character > '9') {
+					endScalar(character);
+				}
+				break;
+			default:
+				acceptStructural(character);
+			}
+			offset++;
+			if (character == '\n') {
+				line++;
+				lineStart = offset;
+			}
+		}
+
+		/**
+		 * Validates a character inside a string.
+		 *
+		 * @param character
+		 *            the character to validate
+		 * @throws MalformedJSONException
+		 *             if the character is not valid here
+		 */
+		private void acceptInString(char character) {
+			if (unicodeDigits > 0) {
+				boolean hexDigit = (character >= '0' && character <= '9') || (character >= 'a' && character <= 'f')
+						|| (character >= 'A' && character <= 'F');
+				if (!hexDigit) {
+					throw error("Invalid unicode escape sequence");
+				}
+				unicodeDigits--;
+			} else if (escaped) {
+				if (ESCAPES.indexOf(character) < 0) {
+					throw error("Invalid escape sequence");
+				}
+				if (character == 'u') {
+					unicodeDigits = 4;
+				}
+				escaped = false;
+			} else if (character == '\\') {
+				escaped = true;
+			} else if (character == '"') {
+				if (state == STRING_KEY) {
+					state = COLON;
+				} else {
+					endValue();
+				}
+			} else if (character < 0x20) {
+				throw error("Control character in string");
+			}
+		}
+
+		/**
+		 * Validates a character outside strings, numbers and literals.
+		 *
+		 * @param character
+		 *            the character to validate
+		 * @throws MalformedJSONException
+		 *             if the character is not valid here
+		 */
+		private void acceptStructural(char character) {
+			if (character == ' ' || character == '\t' || character == '\n' || character == '\r') {
+				return;
+			}
+			switch (state) {
+			case VALUE:
+			case VALUE_OR_ARRAY_END:
+				if (character == ']' && state == VALUE_OR_ARRAY_END) {
+					endContainer();
+				} else {
+					acceptValueStart(character);
+				}
+				break;
+			case KEY:
+			case KEY_OR_OBJECT_END:
+				if (character == '}' && state == KEY_OR_OBJECT_END) {
+					endContainer();
+				} else if (character == '"') {
+					state = STRING_KEY;
+				} else {
+					throw error("Expected a key");
+				}
+				break;
+			case COLON:
+				if (character != ':') {
+					throw error("Expected \":\"");
+				}
+				state = VALUE;
+				break;
+			case END:
+				throw error("Unexpected character '" + character + "' after the JSON value");
+			default:
+				boolean object = containers[depth - 1];
+				if (character == ',') {
+					state = object ? KEY : VALUE;
+				} else if (character == (object ? '}' : ']')) {
+					endContainer();
+				} else {
+					throw error(object ? "Expected \",\" or \"}\"" : "Expected \",\" or \"]\"");
+				}
+			}
+		}
+
+		/**
+		 * Validates the first character of a value.
+		 *
+		 * @param character
+		 *            the character to validate
+		 * @throws MalformedJSONException
+		 *             if the character can't start a value
+		 */
+		private void acceptValueStart(char character) {
+			switch (character) {
+			case '{':
+			case '[':
+				if (depth == containers.length) {
+					containers = Arrays.copyOf(containers, depth * 2);
+				}
+				containers[depth++] = character == '{';
+				state = character == '{' ? KEY_OR_OBJECT_END : VALUE_OR_ARRAY_END;
+				break;
+			case '"':
+				state = STRING_VALUE;
+				break;
+			case '-':
+				state = NUMBER_MINUS;
+				break;
+			case '0':
+				state = NUMBER_ZERO;
+				break;
+			case 't':
+				startLiteral("true");
+				break;
+			case 'f':
+				startLiteral("false");
+				break;
+			case 'n':
+				startLiteral("null");
+				break;
+			default:
+				if (character < '1' || character > '9') {
+					throw error("Unexpected character '" + character + "'");
+				}
+				state = NUMBER_INTEGER;
+			}
+		}
+
+		/**
+		 * Starts parsing a literal, whose first character has already been
+		 * validated.
+		 *
+		 * @param value
+		 *            the literal
+		 */
+		private void startLiteral(String value) {
+			literal = value;
+			literalPosition = 1;
+			state = LITERAL;
+		}
+
+		/**
+		 * Terminates a number or a literal and validates the character which
+		 * follows it.
+		 *
+		 * @param character
+		 *            the character after the number or literal
+		 * @throws MalformedJSONException
+		 *             if the character is not valid here
+		 */
+		private void endScalar(char character) {
+			if (depth == 0 && character != ' ' && character != '\t' && character != '\n' && character != '\r') {
+				throw error("Unexpected character '" + character + "'");
+			}
+			endValue();
+			acceptStructural(character);
+		}
+
+		/**
+		 * Closes the innermost container.
+		 */
+		private void endContainer() {
+			depth--;
+			endValue();
+		}
+
+		/**
+		 * Updates the state after a value has been parsed.
+		 */
+		private void endValue() {
+			state = depth == 0 ? END : COMMA_OR_END;
+		}
+
+		/**
+		 * Checks that the input contained a whole value and didn't end in the
+		 * middle of it.
+		 *
+		 * @throws MalformedJSONException
+		 *             if the input ended too early or had no value at all
+		 */
+		private void finish() {
+			boolean scalarEnded = (state == LITERAL && literalPosition == literal.length()) || state == NUMBER_ZERO
+					|| state == NUMBER_INTEGER || state == NUMBER_FRACTION || state == NUMBER_EXPONENT;
+			if (scalarEnded && depth == 0) {
+				state = END;
+			}
+			if (state == VALUE && depth == 0) {
+				if (!allowBlank) {
+					throw error("No JSON value");
+				}
+			} else if (state != END) {
+				throw error("Unexpected end of input");
+			}
+		}
+
+		/**
+		 * Resets the grammar state so that a new document can be validated.
+		 * The position in the input is kept.
+		 */
+		private void reset() {
+			state = VALUE;
+			depth = 0;
+			escaped = false;
+			unicodeDigits = 0;
+		}
+
+		/**
+		 * Builds the exception for an error at the current character.
+		 *
+		 * @param reason
+		 *            what's wrong with the input
+		 * @return the exception
+		 */
+		private MalformedJSONException error(String reason) {
+			return new MalformedJSONException(reason, line, offset - lineStart + 1, offset);
+		}
+	}
+
+	/**
+	 * Compiled form of the path set with {@link Options#withPath(String)}:
+	 * one segment for each level of nesting below the root. Instances are
+	 * immutable.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class PathFilter {
+
+		/**
+		 * Value of {@link #indexes} for a segment which matches a key.
+		 */
+		private static final int PROPERTY = -2;
+
+		/**
+		 * Value of {@link #indexes} for a segment which matches any index.
+		 */
+		private static final int ANY_INDEX = -1;
+
+		/**
+		 * Key matched by each segment, or null if the segment matches any key
+		 * or an index.
+		 */
+		private final String[] names;
+
+		/**
+		 * Array index matched by each segment, {@link #ANY_INDEX} or
+		 * {@link #PROPERTY}.
+		 */
+		private final int[] indexes;
+
+		/**
+		 * Builds a new filter.
+		 *
+		 * @param names
+		 *            the key matched by each segment
+		 * @param indexes
+		 *            the array index matched by each segment
+		 */
+		private PathFilter(String[] names, int[] indexes) {
+			this.names = names;
+			this.indexes = indexes;
+		}
+
+		/**
+		 * Parses a path.
+		 *
+		 * @param path
+		 *            the path to parse, like "$.data.items[*].id"
+		 * @return the compiled path
+		 * @throws IllegalArgumentException
+		 *             if the path is not valid
+		 */
+		private static PathFilter compile(String path) {
+			if (!path.startsWith("$")) {
+				throw new IllegalArgumentException("Path must start with \"$\": [" + path + "]");
+			}
+			List<String> names = new ArrayList<String>();
+			List<Integer> indexes = new ArrayList<Integer>();
+			int i = 1;
+			while (i < path.length()) {
+				char current = path.charAt(i++);
+				if (current == '.') {
+					// Dot notation: a key or "*".
+					int end = i;
+					while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+						end++;
+					}
+					String name = path.substring(i, end);
+					if (name.isEmpty()) {
+						throw new IllegalArgumentException("Missing key at position " + i + " of path: [" + path + "]");
+					}
+					names.add(name.equals("*") ? null : name);
+					indexes.add(PROPERTY);
+					i = end;
+				} else if (current == '[') {
+					// Bracket notation: a quoted key, an index or "*".
+					int end = path.indexOf(']', i);
+					if (end < 0) {
+						throw new IllegalArgumentException("Missing \"]\" in path: [" + path + "]");
+					}
+					String content = path.substring(i, end);
+					if (content.equals("*")) {
+						names.add(null);
+						indexes.add(ANY_INDEX);
+					} else if (content.length() >= 2 && (content.charAt(0) == '\'' || content.charAt(0) == '"')
+							&& content.charAt(content.length() - 1) == content.charAt(0)) {
+						names.add(content.substring(1, content.length() - 1));
+						indexes.add(PROPERTY);
+					} else {
+						names.add(null);
+						indexes.add(parseIndex(content, path));
+					}
+					i = end + 1;
+				} else {
+					throw new IllegalArgumentException(
+							"Unexpected character at position " + (i - 1) + " of path: [" + path + "]");
+				}
+			}
+
+			int[] indexArray = new int[indexes.size()];
+			for (int j = 0; j < indexArray.length; j++) {
+				indexArray[j] = indexes.get(j);
+			}
+			return new PathFilter(names.toArray(new String[names.size()]), indexArray);
+		}
+
+		/**
+		 * Parses an array index of a path.
+		 *
+		 * @param index
+		 *            the index to parse
+		 * @param path
+		 *            the whole path, used in the exception message
+		 * @return the index
+		 * @throws IllegalArgumentException
+		 *             if the index is not a non-negative integer
+		 */
+		private static int parseIndex(String index, String path) {
+			for (int i = 0; i < index.length(); i++) {
+				if (index.charAt(i) < '0' || index.charAt(i) > '9') {
+					throw new IllegalArgumentException("Invalid index [" + index + "] in path: [" + path + "]");
+				}
+			}
+			try {
+				return Integer.parseInt(index);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid index [" + index + "] in path: [" + path + "]", e);
+			}
+		}
+
+		/**
+		 * Gets the number of segments.
+		 *
+		 * @return the number of segments
+		 */
+		private int length() {
+			return indexes.length;
+		}
+	}
+
+	/**
+	 * Push-based evaluator of a {@link PathFilter}, fed with the same
+	 * characters as the {@link PrettifierEngine} which owns it. It tracks
+	 * only the structure of the input (nesting, keys and array indexes) and
+	 * tells the engine which characters belong to a matched value. Keys are
+	 * compared one character at a time while they are read, so no object is
+	 * allocated. Invalid JSON is handled on a best effort basis. This class is
+	 * not ThreadSafe.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class PathMatcher {
+
+		/**
+		 * The character is not part of a matched value.
+		 */
+		private static final int SKIP = 0;
+
+		/**
+		 * The character is part of a matched value.
+		 */
+		private static final int EMIT = 1;
+
+		/**
+		 * The character is the first one of a matched value.
+		 */
+		private static final int START = 2;
+
+		/**
+		 * The character is the last one of a matched object, array or String.
+		 */
+		private static final int LAST = 3;
+
+		/**
+		 * The character ends a matched number or literal and it's not part of
+		 * it.
+		 */
+		private static final int END = 4;
+
+		/**
+		 * The path evaluated.
+		 */
+		private final PathFilter path;
+
+		/**
+		 * Key matched by each segment, with the same encoding of the input.
+		 */
+		private final char[][] names;
+
+		/**
+		 * Whether each open container is an object, by depth.
+		 */
+		private boolean[] objects = new boolean[PRECOMPUTED_INDENTATION_LEVELS];
+
+		/**
+		 * Index of the current element of each open array, by depth.
+		 */
+		private int[] arrayIndexes = new int[PRECOMPUTED_INDENTATION_LEVELS];
+
+		/**
+		 * Number of objects and arrays currently open.
+		 */
+		private int depth;
+
+		/**
+		 * Number of leading segments of the path matched by the keys and
+		 * indexes of the current value.
+		 */
+		private int matchedDepth;
+
+		/**
+		 * Whether a String is being read.
+		 */
+		private boolean inString;
+
+		/**
+		 * Whether the previous character was a backslash inside a String.
+		 */
+		private boolean escaped;
+
+		/**
+		 * Whether a number or literal is being read.
+		 */
+		private boolean inScalar;
+
+		/**
+		 * Whether the next String is a key.
+		 */
+		private boolean expectingKey;
+
+		/**
+		 * Whether the String being read is a key.
+		 */
+		private boolean inKey;
+
+		/**
+		 * Whether the key being read is compared with a segment.
+		 */
+		private boolean keyCompared;
+
+		/**
+		 * Whether the characters of the key read so far match the segment.
+		 */
+		private boolean keyMatches;
+
+		/**
+		 * Number of characters of the key read so far.
+		 */
+		private int keyLength;
+
+		/**
+		 * Whether a matched value is being read.
+		 */
+		private boolean emitting;
+
+		/**
+		 * Depth of the matched value being read.
+		 */
+		private int emittedDepth;
+
+		/**
+		 * Builds a new matcher.
+		 *
+		 * @param path
+		 *            the path to evaluate
+		 * @param utf8
+		 *            whether the input is made of UTF-8 bytes instead of
+		 *            chars
+		 */
+		private PathMatcher(PathFilter path, boolean utf8) {
+			this.path = path;
+			this.names = new char[path.length()][];
+			for (int i = 0; i < names.length; i++) {
+				String name = path.names[i];
+				if (name != null) {
+					names[i] = utf8 ? new String(name.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1)
+							.toCharArray() : name.toCharArray();
+				}
+			}
+		}
+
+		/**
+		 * Checks whether a matched value is being read.
+		 *
+		 * @return true if the characters are part of a matched value, false
+		 *         otherwise
+		 */
+		private boolean isEmitting() {
+			return emitting;
+		}
+
+		/**
+		 * Checks whether the characters inside quotes starting from the
+		 * current one can be skipped in bulk: they're neither part of a
+		 * matched value nor of a key compared with the path.
+		 *
+		 * @return true if a String which doesn't matter is being read, false
+		 *         otherwise
+		 */
+		private boolean canSkipString() {
+			return inString && !escaped && !emitting && !(inKey && keyCompared);
+		}
+
+		/**
+		 * Processes one character.
+		 *
+		 * @param character
+		 *            the character to process
+		 * @return what the engine should do with the character: {@link #SKIP},
+		 *         {@link #EMIT}, {@link #START}, {@link #LAST} or {@link #END}
+		 */
+		private int accept(char character) {
+			if (inString) {
+				if (escaped) {
+					escaped = false;
+				} else if (character == '\\') {
+					escaped = true;
+				} else if (character == '"') {
+					inString = false;
+					if (inKey) {
+						inKey = false;
+						endKey();
+						return emitting ? EMIT : SKIP;
+					}
+					if (emitting && depth == emittedDepth) {
+						emitting = false;
+						return LAST;
+					}
+					return emitting ? EMIT : SKIP;
+				}
+				if (inKey && keyMatches) {
+					char[] name = names[depth - 1];
+					keyMatches = keyLength < name.length && name[keyLength] == character;
+					keyLength++;
+				}
+				return emitting ? EMIT : SKIP;
+			}
+
+			// A number or a literal ends at the first structural character or
+			// whitespace, which is then processed as usual.
+			boolean scalarEnded = false;
+			if (inScalar) {
+				if (character != ',' && character != ']' && character != '}' && character != ':' && character != ' '
+						&& character != '\n' && character != '\t' && character != '\r') {
+					return emitting ? EMIT : SKIP;
+				}
+				inScalar = false;
+				if (emitting && depth == emittedDepth) {
+					emitting = false;
+					scalarEnded = true;
+				}
+			}
+
+			int action = emitting ? EMIT : SKIP;
+			switch (character) {
+			case ' ':
+			case '\n':
+			case '\t':
+			case '\r':
+				break;
+			case '"':
+				inString = true;
+				if (expectingKey) {
+					startKey();
+				} else {
+					action = startValue();
+				}
+				break;
+			case ':':
+				expectingKey = false;
+				break;
+			case ',':
+				if (depth > 0) {
+					if (objects[depth - 1]) {
+						expectingKey = true;
+						forgetMember();
+					} else {
+						arrayIndexes[depth - 1]++;
+						matchIndex();
+					}
+				}
+				break;
+			case '{':
+			case '[':
+				action = startValue();
+				open(character == '{');
+				break;
+			case '}':
+			case ']':
+				expectingKey = false;
+				if (depth > 0) {
+					depth--;
+					matchedDepth = Math.min(matchedDepth, depth);
+					if (emitting && depth == emittedDepth) {
+						emitting = false;
+						action = LAST;
+					}
+				}
+				break;
+			default:
+				inScalar = true;
+				action = startValue();
+				break;
+			}
+			return scalarEnded ? END : action;
+		}
+
+		/**
+		 * Starts a value, which is emitted if the path matches it.
+		 *
+		 * @return {@link #START} if the value is matched, what to do with its
+		 *         first character otherwise
+		 */
+		private int startValue() {
+			if (!emitting && depth == path.length() && matchedDepth == depth) {
+				emitting = true;
+				emittedDepth = depth;
+				return START;
+			}
+			return emitting ? EMIT : SKIP;
+		}
+
+		/**
+		 * Opens an object or an array.
+		 *
+		 * @param object
+		 *            true for an object, false for an array
+		 */
+		private void open(boolean object) {
+			if (depth == objects.length) {
+				objects = Arrays.copyOf(objects, depth * 2);
+				arrayIndexes = Arrays.copyOf(arrayIndexes, depth * 2);
+			}
+			objects[depth] = object;
+			arrayIndexes[depth] = 0;
+			depth++;
+			expectingKey = object;
+			if (object) {
+				forgetMember();
+			} else {
+				matchIndex();
+			}
+		}
+
+		/**
+		 * Marks the current member of the innermost object as not matched,
+		 * until its key is read.
+		 */
+		private void forgetMember() {
+			matchedDepth = Math.min(matchedDepth, depth - 1);
+		}
+
+		/**
+		 * Matches the index of the current element of the innermost array
+		 * against the path.
+		 */
+		private void matchIndex() {
+			int segment = depth - 1;
+			if (matchedDepth >= segment) {
+				boolean matches = segment < path.length() && path.indexes[segment] != PathFilter.PROPERTY
+						&& (path.indexes[segment] == PathFilter.ANY_INDEX
+								|| path.indexes[segment] == arrayIndexes[segment]);
+				matchedDepth = matches ? depth : segment;
+			}
+		}
+
+		/**
+		 * Starts reading a key, which is compared with the path only if the
+		 * parent value matched it.
+		 */
+		private void startKey() {
+			int segment = depth - 1;
+			inKey = true;
+			keyCompared = segment >= 0 && matchedDepth >= segment && segment < path.length()
+					&& names[segment] != null;
+			keyMatches = keyCompared;
+			keyLength = 0;
+		}
+
+		/**
+		 * Matches the key just read against the path.
+		 */
+		private void endKey() {
+			int segment = depth - 1;
+			if (segment >= 0 && matchedDepth >= segment) {
+				boolean matches;
+				if (keyCompared) {
+					matches = keyMatches && keyLength == names[segment].length;
+				} else {
+					matches = segment < path.length() && path.indexes[segment] == PathFilter.PROPERTY;
+				}
+				matchedDepth = matches ? depth : segment;
+			}
+		}
+
+		/**
+		 * Resets the state of this matcher so that it can be used for a new
+		 * document.
+		 */
+		private void reset() {
+			depth = 0;
+			matchedDepth = 0;
+			inString = false;
+			escaped = false;
+			inScalar = false;
+			expectingKey = false;
+			inKey = false;
+			emitting = false;
+		}
+	}
+
+	/**
+	 * Single-pass state machine which applies the formatting rules described
+	 * in {@link JSONPrettifier#prettify(String)} one character at a time.
+	 * Instead of rescanning the input around brackets and commas, it
+	 * remembers the last non-whitespace characters seen and defers the
+	 * separator which follows a closing bracket or a comma until the next
+	 * non-whitespace character is known. No object is allocated while
+	 * processing the characters.<br>
+	 * <br>
+	 * Since all the characters with a meaning in JSON are ASCII, the same
+	 * rules can be applied to UTF-8 bytes as they are: the subclasses of this
+	 * class handle the input and output of chars and bytes respectively. This
+	 * class is not ThreadSafe, a new instance is used for each document.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private abstract static class PrettifierEngine {
+
+		/**
+		 * Value of the history fields when there's no character to remember.
+		 * A whitespace is used since it's never matched against.
+		 */
+		private static final char NO_CHAR = ' ';
+
+		/**
+		 * Value passed to {@link #resolvePending(int)} at the end of the input.
+		 */
+		private static final int END_OF_INPUT = -1;
+
+		/**
+		 * Value of {@link #pending} when no separator is waiting to be written.
+		 */
+		private static final int NOTHING_PENDING = 0;
+
+		/**
+		 * Value of {@link #pending} after a closing bracket outside quotes.
+		 */
+		private static final int PENDING_CLOSING_BRACKET = 1;
+
+		/**
+		 * Value of {@link #pending} after a comma outside quotes.
+		 */
+		private static final int PENDING_COMMA = 2;
+
+		/**
+		 * Written in place of the skipped content of collapsed objects,
+		 * arrays and Strings.
+		 */
+		private static final char[] ELLIPSIS = { '.', '.', '.' };
+
+		/**
+		 * Written at the end of the output when its maximum length is
+		 * reached.
+		 */
+		private static final char[] TRUNCATION_MARKER = { '.', '.', '.', '\n' };
+
+		/**
+		 * The formatting options.
+		 */
+		protected final Options options;
+
+		/**
+		 * What is written in place of a colon outside quotes.
+		 */
+		private final char[] colon;
+
+		/**
+		 * What is written after a JSON document.
+		 */
+		private final char[] documentSeparator;
+
+		/**
+		 * Index of the character being processed.
+		 */
+		private long index;
+
+		/**
+		 * Last non-whitespace character before the current one.
+		 */
+		private char before = NO_CHAR;
+
+		/**
+		 * Last non-whitespace character before the previous one.
+		 */
+		private char beforePrevious = NO_CHAR;
+
+		/**
+		 * Last non-whitespace character before the one before the previous
+		 * one.
+		 */
+		private char beforeSecondPrevious = NO_CHAR;
+
+		/**
+		 * The current indentation level.
+		 */
+		private int indentationLevel;
+
+		/**
+		 * Whether I'm currently parsing a String or not. Used in order to
+		 * avoid indentation if I'm inside double quotes.
+		 */
+		private boolean outsideQuotes = true;
+
+		/**
+		 * Separator waiting for the next non-whitespace character to be
+		 * written.
+		 */
+		private int pending = NOTHING_PENDING;
+
+		/**
+		 * Whether the pending comma came right after a closing curly bracket.
+		 */
+		private boolean pendingCommaAfterObject;
+
+		/**
+		 * Whether the previous character was a backslash inside quotes, which
+		 * means that a quote doesn't end the String.
+		 */
+		private boolean escaped;
+
+		/**
+		 * Number of hex digits left in a unicode escape sequence.
+		 */
+		private int unicodeDigits;
+
+		/**
+		 * Number of objects and arrays currently open.
+		 */
+		private int depth;
+
+		/**
+		 * Number of objects and arrays open inside the collapsed one, itself
+		 * included, or 0 if not inside a collapsed one.
+		 */
+		private int collapsedDepth;
+
+		/**
+		 * Number of characters of the current String which can still be
+		 * written.
+		 */
+		private long stringRemaining;
+
+		/**
+		 * Whether the rest of the current String is being skipped.
+		 */
+		private boolean stringElided;
+
+		/**
+		 * Number of characters which can still be written before truncating
+		 * the output.
+		 */
+		private long outputRemaining;
+
+		/**
+		 * Whether the output has been truncated, which means that the rest of
+		 * the input is ignored.
+		 */
+		private boolean outputTruncated;
+
+		/**
+		 * Validator of the input, or null if not in strict mode.
+		 */
+		private final JSONValidator validator;
+
+		/**
+		 * Evaluator of the path of the values to format, or null if the whole
+		 * input is formatted.
+		 */
+		private final PathMatcher matcher;
+
+		/**
+		 * Builds a new engine.
+		 *
+		 * @param options
+		 *            the formatting options
+		 * @param utf8
+		 *            whether the input is made of UTF-8 bytes instead of
+		 *            chars
+		 */
+		protected PrettifierEngine(Options options, boolean utf8) {
+			this.options = options;
+			this.colon = options.colon.toCharArray();
+			this.documentSeparator = options.documentSeparator.toCharArray();
+			this.validator = options.strict ? new JSONValidator() : null;
+			this.matcher = options.path != null ? new PathMatcher(options.path, utf8) : null;
+			this.outputRemaining = outputAllowance();
+		}
+
+		/**
+		 * Computes how many characters can be written before the output is
+		 * truncated, leaving room for the truncation marker.
+		 *
+		 * @return the number of characters which can be written
+		 */
+		private long outputAllowance() {
+			if (options.maxOutputLength == Long.MAX_VALUE) {
+				return Long.MAX_VALUE;
+			}
+			return Math.max(0, options.maxOutputLength - TRUNCATION_MARKER.length);
+		}
+
+		/**
+		 * Checks whether the output has been truncated, in which case the
+		 * rest of the input doesn't need to be read.
+		 *
+		 * @return true if the output has been truncated, false otherwise
+		 */
+		protected boolean isDone() {
+			return outputTruncated;
+		}
+
+		/**
+		 * Checks whether the current characters are skipped, since they're
+		 * inside a collapsed object or array, at the end of a long String or
+		 * outside the values matched by the path.
+		 *
+		 * @return true if the current characters are not written, false
+		 *         otherwise
+		 */
+		protected boolean isSkipping() {
+			return collapsedDepth > 0 || stringElided || (matcher != null && !matcher.isEmitting());
+		}
+
+		/**
+		 * Consumes the space left in the output for some characters. If there
+		 * isn't enough space, the output is truncated.
+		 *
+		 * @param length
+		 *            the number of characters to write
+		 * @return the number of characters which can actually be written
+		 */
+		protected int allow(int length) {
+			if (length <= outputRemaining) {
+				outputRemaining -= length;
+				return length;
+			}
+			int allowed = (int) outputRemaining;
+			outputRemaining = 0;
+			outputTruncated = true;
+			return allowed;
+		}
+
+		/**
+		 * Checks whether the characters inside quotes starting from the
+		 * current one can be copied in bulk. The first two characters are
+		 * always handled one by one since the history rules are different for
+		 * them, and so are escaped characters. Strings outside the values
+		 * matched by the path are skipped in bulk as well, unless they're
+		 * keys compared with the path.
+		 *
+		 * @return true if a String literal is being parsed and can be copied
+		 *         in bulk, false otherwise
+		 */
+		protected boolean canCopyStringLiteral() {
+			if (validator != null && !validator.inPlainString()) {
+				return false;
+			}
+			if (matcher != null && !matcher.isEmitting()) {
+				return matcher.canSkipString();
+			}
+			return !outsideQuotes && index >= 2 && !escaped && unicodeDigits == 0;
+		}
+
+		/**
+		 * Computes how many of the next characters of a String literal can be
+		 * copied in bulk without exceeding the maximum length of the String.
+		 *
+		 * @param length
+		 *            the number of characters which could be copied
+		 * @return the number of characters which can be copied
+		 */
+		protected int bulkLength(int length) {
+			return isSkipping() ? length : (int) Math.min(length, stringRemaining);
+		}
+
+		/**
+		 * Checks whether a character inside quotes needs to be processed on
+		 * its own: a quote, a backslash, a newline, a control character in
+		 * strict mode or, if the indentation level is 0, a closing bracket.
+		 *
+		 * @param character
+		 *            the character to check
+		 * @return true if the character ends a portion of String literal
+		 *         which can be copied in bulk, false otherwise
+		 */
+		protected boolean endsStringLiteral(int character) {
+			return character == '"' || character == '\\' || character == '\n' || (validator != null && character < 0x20)
+					|| (indentationLevel == 0 && (character == ']' || character == '}'));
+		}
+
+		/**
+		 * Updates the state after a portion of String literal has been
+		 * copied, or skipped, in bulk. Only the last non-whitespace character is
+		 * remembered, since the next 3 characters are processed one by one
+		 * and replace the rest of the history.
+		 *
+		 * @param lastNonWhitespace
+		 *            the last non-whitespace character copied or
+		 *            {@link #NO_CHAR} if they were all whitespaces
+		 * @param length
+		 *            the number of characters copied
+		 */
+		protected void afterStringLiteral(char lastNonWhitespace, int length) {
+			if (lastNonWhitespace != NO_CHAR) {
+				before = lastNonWhitespace;
+			}
+			index += length;
+			escaped = false;
+			if (!isSkipping()) {
+				stringRemaining -= length;
+			}
+			if (validator != null) {
+				validator.skip(length);
+			}
+		}
+
+		/**
+		 * Processes one character.
+		 *
+		 * @param currentChar
+		 *            the character to process
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 * @throws MalformedJSONException
+		 *             if in strict mode and the character is not valid
+		 */
+		protected void process(char currentChar) throws IOException {
+			if (outputTruncated) {
+				return;
+			}
+			if (validator != null) {
+				validator.accept(currentChar);
+			}
+			if (matcher == null) {
+				format(currentChar);
+				return;
+			}
+
+			// Only the values matched by the path are formatted, each one as a
+			// new document.
+			switch (matcher.accept(currentChar)) {
+			case PathMatcher.SKIP:
+				break;
+			case PathMatcher.END:
+				endMatchedValue();
+				break;
+			case PathMatcher.START:
+				resetFormatting();
+				format(currentChar);
+				break;
+			case PathMatcher.LAST:
+				format(currentChar);
+				endMatchedValue();
+				break;
+			default:
+				format(currentChar);
+				break;
+			}
+		}
+
+		/**
+		 * Formats one character.
+		 *
+		 * @param currentChar
+		 *            the character to format
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void format(char currentChar) throws IOException {
+			// Skips the content of collapsed objects and arrays.
+			if (collapsedDepth > 0) {
+				skipCollapsed(currentChar);
+				advance(currentChar);
+				return;
+			}
+
+			// Skips the end of long Strings, but not their closing quote. The
+			// String is never cut in the middle of an escape sequence or of a
+			// character.
+			if (!outsideQuotes && currentChar != '\n' && (currentChar != '"' || escaped)) {
+				if (stringElided
+						|| (stringRemaining <= 0 && !escaped && unicodeDigits == 0 && !isContinuation(currentChar))) {
+					if (!stringElided) {
+						stringElided = true;
+						write(ELLIPSIS);
+					}
+					advance(currentChar);
+					return;
+				}
+				stringRemaining--;
+			}
+
+			// Now that the next character is known, writes the separator of
+			// the previous closing bracket or comma.
+			if (pending != NOTHING_PENDING && currentChar != ' ') {
+				resolvePending(currentChar);
+			}
+
+			switch (currentChar) {
+			// If the char is a "{" or a "[" then adds a newline and a level of
+			// indentation. If it's the first character of the stream, there's
+			// no need to add a newline at the beginning.
+			case '[':
+			case '{':
+				if (outsideQuotes) {
+					indentationLevel++;
+					writeIndentation(indentationLevel, index == 0);
+				}
+				write(currentChar);
+				if (outsideQuotes) {
+					indentationLevel++;
+					// Objects and arrays deeper than the limit are collapsed.
+					if (depth++ >= options.maxDepth) {
+						write(ELLIPSIS);
+						collapsedDepth = 1;
+					} else {
+						writeIndentation(indentationLevel, false);
+					}
+				}
+				break;
+			// If the char is a "}" or a "]" then adds a newline and removes a
+			// level of indentation. What follows depends on the next character
+			// so it's deferred.
+			case ']':
+			case '}':
+				if (outsideQuotes) {
+					indentationLevel--;
+					if (depth > 0) {
+						depth--;
+					}
+					writeIndentation(indentationLevel, false);
+				}
+				write(currentChar);
+				if (outsideQuotes) {
+					pending = PENDING_CLOSING_BRACKET;
+				} else if (indentationLevel == 0) {
+					write(documentSeparator);
+				}
+				break;
+			// If the char is a "," then the new line depends on the next
+			// character and it's deferred. Remembers whether the character
+			// before was a "}" (because they are sibling objects).
+			case ',':
+				write(currentChar);
+				if (outsideQuotes) {
+					pending = PENDING_COMMA;
+					pendingCommaAfterObject = before == '}';
+				}
+				break;
+			// If the char is a "\"" (quote) and it's not escaped, switches the
+			// outsideQuotes flag in order to prevent parsing commas and
+			// brackets inside quotes as if they were JSON. A quote is escaped
+			// only by an odd number of backslashes.
+			case '"':
+				if (outsideQuotes || !escaped) {
+					outsideQuotes = !outsideQuotes;
+					stringRemaining = options.maxStringLength;
+					stringElided = false;
+				}
+				write(currentChar);
+				break;
+			// If the char is a "\n" (newline) checks if the 3 character before
+			// where dots. If that's the case, the JSON has been truncated.
+			// Resets the indentation level and other flags and adds a newline
+			// to improve readability.
+			case '\n':
+				if (isTruncationMarker()) {
+					endTruncatedDocument();
+				}
+				break;
+			// Trims whitespaces in JSON if outside quotes.
+			case ' ':
+			case '\t':
+			case '\r':
+				if (!outsideQuotes) {
+					write(currentChar);
+				}
+				break;
+			// Adds the configured spaces between and after colon.
+			case ':':
+				if (outsideQuotes) {
+					write(colon);
+				} else {
+					write(currentChar);
+				}
+				break;
+			// If the char is anything else, just appends it.
+			default:
+				write(currentChar);
+			}
+
+			advance(currentChar);
+		}
+
+		/**
+		 * Processes a character inside a collapsed object or array, which is
+		 * skipped unless it's the closing bracket of the collapsed one.
+		 *
+		 * @param currentChar
+		 *            the character to process
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void skipCollapsed(char currentChar) throws IOException {
+			if (currentChar == '\n' && isTruncationMarker()) {
+				collapsedDepth = 0;
+				endTruncatedDocument();
+			} else if (!outsideQuotes) {
+				if (currentChar == '"' && !escaped) {
+					outsideQuotes = true;
+				}
+			} else if (currentChar == '"') {
+				outsideQuotes = false;
+			} else if (currentChar == '[' || currentChar == '{') {
+				collapsedDepth++;
+			} else if ((currentChar == ']' || currentChar == '}') && --collapsedDepth == 0) {
+				// Closes the collapsed one as if it was empty.
+				indentationLevel--;
+				depth--;
+				write(currentChar);
+				pending = PENDING_CLOSING_BRACKET;
+			}
+		}
+
+		/**
+		 * Checks whether the 3 characters before were dots, which means that
+		 * a newline truncates the JSON.
+		 *
+		 * @return true if the JSON has been truncated, false otherwise
+		 */
+		private boolean isTruncationMarker() {
+			return before == '.' && beforePrevious == '.' && beforeSecondPrevious == '.';
+		}
+
+		/**
+		 * Resets the indentation level and other flags after a truncated JSON
+		 * and adds a newline to improve readability.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void endTruncatedDocument() throws IOException {
+			indentationLevel = 0;
+			depth = 0;
+			outsideQuotes = true;
+			write(documentSeparator);
+		}
+
+		/**
+		 * Updates the escape sequence tracking and the history after a
+		 * character has been processed.
+		 *
+		 * @param currentChar
+		 *            the character processed
+		 */
+		private void advance(char currentChar) {
+			if (outsideQuotes) {
+				escaped = false;
+				unicodeDigits = 0;
+			} else if (escaped) {
+				escaped = false;
+				unicodeDigits = currentChar == 'u' ? 4 : 0;
+			} else if (unicodeDigits > 0 && Character.digit(currentChar, 16) >= 0) {
+				unicodeDigits--;
+			} else {
+				unicodeDigits = 0;
+				escaped = currentChar == '\\';
+			}
+
+			// Updates the history. The first character is always remembered,
+			// while the second one is forgotten if it's a whitespace since the
+			// first character is never looked at past a whitespace.
+			char next;
+			if (index == 0 || currentChar != ' ') {
+				next = currentChar;
+			} else {
+				next = index == 1 ? NO_CHAR : before;
+			}
+			beforeSecondPrevious = beforePrevious;
+			beforePrevious = before;
+			before = next;
+			index++;
+		}
+
+		/**
+		 * Writes the separator deferred after a closing bracket or a comma.
+		 *
+		 * @param next
+		 *            the next non-whitespace character or
+		 *            {@link #END_OF_INPUT}
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void resolvePending(int next) throws IOException {
+			if (pending == PENDING_CLOSING_BRACKET) {
+				// If the char after this is a "," it doesn't add another
+				// newline, and neither it does if it's another "}".
+				if (next != ',') {
+					indentationLevel--;
+					writeIndentation(indentationLevel, next == '}');
+				}
+				// If this JSON object has been closed, adds an extra newline
+				// in order to improve readability.
+				if (indentationLevel == 0) {
+					write(documentSeparator);
+				}
+			} else {
+				// If the char before the comma was a "}" then before it there
+				// was an object that has ended and thus removes a level of
+				// indentation. It doesn't add a new line if the next character
+				// is "{" since it will be added by the bracket itself.
+				if (pendingCommaAfterObject) {
+					indentationLevel--;
+				}
+				writeIndentation(indentationLevel, next == '{');
+			}
+			pending = NOTHING_PENDING;
+		}
+
+		/**
+		 * Terminates the processing, writing any pending separator and
+		 * flushing the output.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 * @throws MalformedJSONException
+		 *             if in strict mode and the input ended too early
+		 */
+		protected void finish() throws IOException {
+			if (!outputTruncated) {
+				if (validator != null) {
+					validator.finish();
+				}
+				if (matcher != null && matcher.isEmitting()) {
+					endMatchedValue();
+				} else if (pending != NOTHING_PENDING) {
+					resolvePending(END_OF_INPUT);
+				}
+			}
+			// Checked again since the pending separator may not fit.
+			if (outputTruncated) {
+				outputRemaining = Long.MAX_VALUE;
+				writeTruncationMarker();
+			}
+			flush();
+		}
+
+		/**
+		 * Ends a value matched by the path, writing the document separator
+		 * after it if the formatting rules didn't.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void endMatchedValue() throws IOException {
+			boolean separated = false;
+			if (pending != NOTHING_PENDING) {
+				separated = pending == PENDING_CLOSING_BRACKET;
+				resolvePending(END_OF_INPUT);
+				separated &= indentationLevel == 0;
+			}
+			if (!separated) {
+				write(documentSeparator);
+			}
+		}
+
+		/**
+		 * Checks whether a character continues the previous one, which means
+		 * that the two can't be split.
+		 *
+		 * @param character
+		 *            the character to check
+		 * @return true if the character continues the previous one, false
+		 *         otherwise
+		 */
+		protected abstract boolean isContinuation(char character);
+
+		/**
+		 * Writes the marker at the end of a truncated output.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		protected void writeTruncationMarker() throws IOException {
+			write(TRUNCATION_MARKER);
+		}
+
+		/**
+		 * Lets the validator, if any, accept documents made only of
+		 * whitespaces, as the blank lines between newline-delimited records.
+		 */
+		protected void allowBlankDocuments() {
+			if (validator != null) {
+				validator.allowBlank = true;
+			}
+		}
+
+		/**
+		 * Resets the state of this engine so that it can be used for a new
+		 * document. The output is kept.
+		 */
+		protected void reset() {
+			resetFormatting();
+			outputRemaining = outputAllowance();
+			outputTruncated = false;
+			if (validator != null) {
+				validator.reset();
+			}
+			if (matcher != null) {
+				matcher.reset();
+			}
+		}
+
+		/**
+		 * Resets the formatting state so that a new value can be formatted.
+		 * The output limit, the validator and the path matcher are kept.
+		 */
+		private void resetFormatting() {
+			index = 0;
+			before = NO_CHAR;
+			beforePrevious = NO_CHAR;
+			beforeSecondPrevious = NO_CHAR;
+			indentationLevel = 0;
+			outsideQuotes = true;
+			pending = NOTHING_PENDING;
+			pendingCommaAfterObject = false;
+			escaped = false;
+			unicodeDigits = 0;
+			depth = 0;
+			collapsedDepth = 0;
+			stringElided = false;
+		}
+
+		/**
+		 * Writes a new line if needed and the indentation for a level. If the
+		 * level is 0, doesn't add a newline. This is to prevent the case where
+		 * there are multiple commas outside the JSON String so that they don't
+		 * always go on a newline.
+		 *
+		 * @param level
+		 *            the indentation level
+		 * @param noNewLine
+		 *            whether to omit a new line character ("\n") before the
+		 *            indentation or not
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		protected abstract void writeIndentation(int level, boolean noNewLine) throws IOException;
+
+		/**
+		 * Writes a character to the output.
+		 *
+		 * @param character
+		 *            the character to write, which for bytes is between 0 and
+		 *            255
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		protected abstract void write(char character) throws IOException;
+
+		/**
+		 * Writes some characters to the output, one at a time.
+		 *
+		 * @param characters
+		 *            the characters to write
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void write(char[] characters) throws IOException {
+			for (char character : characters) {
+				write(character);
+			}
+		}
+
+		/**
+		 * Flushes the output, if needed.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		protected abstract void flush() throws IOException;
+
+		/**
+		 * Builds a newline followed by the indentation for the given number
+		 * of levels. Must not be called if the options don't allow newlines.
+		 *
+		 * @param levels
+		 *            the number of indentation levels
+		 * @return the newline and the indentation
+		 */
+		protected String buildIndentation(int levels) {
+			StringBuilder builder = new StringBuilder("\n");
+			for (int i = 0; i < levels; i++) {
+				builder.append(options.indentation);
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Prettifier engine which works on characters. The output is written to
+	 * an internal buffer which is flushed to a {@link Writer} when full or, if
+	 * no writer is given, grown as needed.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class CharPrettifierEngine extends PrettifierEngine {
+
+		/**
+		 * Where the output is flushed to, or null to keep it all in memory.
+		 */
+		private final Writer out;
+
+		/**
+		 * Buffer for the output.
+		 */
+		private char[] outputBuffer = new char[BUFFER_SIZE];
+
+		/**
+		 * Position of the next character to write in {@link #outputBuffer}.
+		 */
+		private int outputPosition;
+
+		/**
+		 * A newline followed by the indentation for many levels. The
+		 * indentation for a level is written by copying a prefix of this
+		 * array, starting from 0 or 1 whether a newline is needed or not. The
+		 * array is grown when a deeper level is reached. Null if the options
+		 * don't allow newlines.
+		 */
+		private char[] indentation;
+
+		/**
+		 * Builds a new engine.
+		 *
+		 * @param out
+		 *            where the output is flushed to, or null to keep it all in
+		 *            memory
+		 * @param options
+		 *            the formatting options
+		 */
+		private CharPrettifierEngine(Writer out, Options options) {
+			super(options, false);
+			this.out = out;
+			if (options.indentation != null) {
+				this.indentation = buildIndentation(PRECOMPUTED_INDENTATION_LEVELS).toCharArray();
+			}
+		}
+
+		/**
+		 * Processes a chunk of characters. The characters inside quotes are
+		 * copied in bulk up to the next character which needs to be processed
+		 * on its own, since they don't need any formatting.
+		 *
+		 * @param chunk
+		 *            the characters to process
+		 * @param from
+		 *            the index of the first character to process, included
+		 * @param to
+		 *            the index of the last character to process, excluded
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void process(char[] chunk, int from, int to) throws IOException {
+			int i = from;
+			while (i < to && !isDone()) {
+				if (canCopyStringLiteral()) {
+					int end = i;
+					while (end < to && !endsStringLiteral(chunk[end])) {
+						end++;
+					}
+					// The last 3 characters are processed one by one in order
+					// to keep the history updated.
+					int length = bulkLength(end - i - 3);
+					if (length > 0) {
+						copyStringLiteral(chunk, i, i + length);
+						i += length;
+					}
+				}
+				process(chunk[i++]);
+			}
+		}
+
+		/**
+		 * Copies a portion of a String literal to the output as it is, unless
+		 * it's skipped.
+		 *
+		 * @param chunk
+		 *            the characters to copy
+		 * @param from
+		 *            the index of the first character to copy, included
+		 * @param to
+		 *            the index of the last character to copy, excluded
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void copyStringLiteral(char[] chunk, int from, int to) throws IOException {
+			if (!isSkipping()) {
+				write(chunk, from, to - from);
+			}
+			int last = to - 1;
+			while (last >= from && chunk[last] == ' ') {
+				last--;
+			}
+			afterStringLiteral(last >= from ? chunk[last] : PrettifierEngine.NO_CHAR, to - from);
+		}
+
+		/**
+		 * Returns the output as a String. Only valid if no writer has been
+		 * given.
+		 *
+		 * @return the prettified JSON
+		 */
+		private String result() {
+			return new String(outputBuffer, 0, outputPosition);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#
+		 * writeIndentation(int, boolean)
+		 */
+		@Override
+		protected void writeIndentation(int level, boolean noNewLine) throws IOException {
+			if (level <= 0 || indentation == null) {
+				return;
+			}
+			int length = level * options.indentation.length();
+			if (length >= indentation.length) {
+				indentation = buildIndentation(level * 2).toCharArray();
+			}
+			if (noNewLine) {
+				write(indentation, 1, length);
+			} else {
+				write(indentation, 0, length + 1);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#write(char)
+		 */
+		@Override
+		protected void write(char character) throws IOException {
+			if (allow(1) == 0) {
+				return;
+			}
+			if (outputPosition == outputBuffer.length) {
+				if (out != null) {
+					out.write(outputBuffer, 0, outputPosition);
+					outputPosition = 0;
+				} else {
+					outputBuffer = Arrays.copyOf(outputBuffer, outputBuffer.length * 2);
+				}
+			}
+			outputBuffer[outputPosition++] = character;
+		}
+
+		/**
+		 * Writes a portion of an array of characters to the output buffer,
+		 * flushing or growing it if needed.
+		 *
+		 * @param characters
+		 *            the characters to write
+		 * @param offset
+		 *            the index of the first character to write
+		 * @param length
+		 *            the number of characters to write
+		 * @throws IOException
+		 *             if an I/O error occurs while flushing the output
+		 */
+		private void write(char[] characters, int offset, int length) throws IOException {
+			length = allow(length);
+			if (outputPosition + length > outputBuffer.length) {
+				if (out != null) {
+					out.write(outputBuffer, 0, outputPosition);
+					outputPosition = 0;
+					// Too big for the buffer, writes it directly.
+					if (length > outputBuffer.length) {
+						out.write(characters, offset, length);
+						return;
+					}
+				} else {
+					outputBuffer = Arrays.copyOf(outputBuffer, Math.max(outputBuffer.length * 2, outputPosition + length));
+				}
+			}
+			System.arraycopy(characters, offset, outputBuffer, outputPosition, length);
+			outputPosition += length;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#
+		 * isContinuation(char)
+		 */
+		@Override
+		protected boolean isContinuation(char character) {
+			return Character.isLowSurrogate(character);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#
+		 * writeTruncationMarker()
+		 */
+		@Override
+		protected void writeTruncationMarker() throws IOException {
+			// Drops half of a surrogate pair cut by the limit, if it's still
+			// in the buffer.
+			if (outputPosition > 0 && Character.isHighSurrogate(outputBuffer[outputPosition - 1])) {
+				outputPosition--;
+			}
+			super.writeTruncationMarker();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#flush()
+		 */
+		@Override
+		protected void flush() throws IOException {
+			if (out != null) {
+				out.write(outputBuffer, 0, outputPosition);
+				outputPosition = 0;
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Prettifier engine which works directly on UTF-8 bytes, without decoding
+	 * them. Multibyte sequences are never equal to any ASCII character, so
+	 * they are copied untouched. The output is written to a
+	 * {@link ByteBuffer} which, when full, is drained to a
+	 * {@link WritableByteChannel}, replaced by a bigger one or, if none of the
+	 * two is allowed, causes a {@link BufferOverflowException}.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class BytePrettifierEngine extends PrettifierEngine {
+
+		/**
+		 * Where the output is drained to, or null if it's not drained.
+		 */
+		private final WritableByteChannel channel;
+
+		/**
+		 * Whether the output buffer can be replaced by a bigger one when full.
+		 */
+		private final boolean growable;
+
+		/**
+		 * Buffer for the output.
+		 */
+		private ByteBuffer output;
+
+		/**
+		 * A newline followed by the indentation for many levels, as ASCII
+		 * bytes. See {@link CharPrettifierEngine#indentation}.
+		 */
+		private byte[] indentation;
+
+		/**
+		 * Builds a new engine.
+		 *
+		 * @param output
+		 *            the buffer where the output is written
+		 * @param channel
+		 *            where the output is drained to when the buffer is full,
+		 *            or null if it's not drained
+		 * @param growable
+		 *            whether the output buffer can be replaced by a bigger one
+		 *            when full
+		 * @param options
+		 *            the formatting options
+		 */
+		private BytePrettifierEngine(ByteBuffer output, WritableByteChannel channel, boolean growable,
+				Options options) {
+			super(options, true);
+			this.output = output;
+			this.channel = channel;
+			this.growable = growable;
+			if (options.indentation != null) {
+				this.indentation = buildIndentation(PRECOMPUTED_INDENTATION_LEVELS).getBytes(StandardCharsets.US_ASCII);
+			}
+		}
+
+		/**
+		 * Processes the remaining bytes of a buffer, leaving its position
+		 * unchanged. The bytes inside quotes are copied in bulk up to the next
+		 * byte which needs to be processed on its own, since they don't need
+		 * any formatting.
+		 *
+		 * @param chunk
+		 *            the bytes to process
+		 * @throws IOException
+		 *             if an I/O error occurs while draining the output
+		 */
+		private void process(ByteBuffer chunk) throws IOException {
+			int i = chunk.position();
+			int to = chunk.limit();
+			while (i < to && !isDone()) {
+				if (canCopyStringLiteral()) {
+					int end = i;
+					while (end < to && !endsStringLiteral(chunk.get(end) & 0xFF)) {
+						end++;
+					}
+					// The last 3 bytes are processed one by one in order to
+					// keep the history updated.
+					int length = bulkLength(end - i - 3);
+					if (length > 0) {
+						copyStringLiteral(chunk, i, i + length);
+						i += length;
+					}
+				}
+				process((char) (chunk.get(i++) & 0xFF));
+			}
+		}
+
+		/**
+		 * Processes the remaining bytes of a buffer as newline-delimited
+		 * records, each one prettified on its own as if it was a separate
+		 * document. The position of the buffer is moved to its limit.
+		 *
+		 * @param records
+		 *            the records to process
+		 * @throws IOException
+		 *             if an I/O error occurs while draining the output
+		 */
+		private void processLines(ByteBuffer records) throws IOException {
+			allowBlankDocuments();
+			int limit = records.limit();
+			while (records.position() < limit) {
+				// Each record includes its newline, so that the truncation
+				// marker "...\n" is handled as usual.
+				records.limit(nextLine(records, records.position(), limit));
+				process(records);
+				finish();
+				reset();
+				records.position(records.limit()).limit(limit);
+			}
+		}
+
+		/**
+		 * Copies a portion of a String literal to the output as it is, unless
+		 * it's skipped.
+		 *
+		 * @param chunk
+		 *            the bytes to copy
+		 * @param from
+		 *            the index of the first byte to copy, included
+		 * @param to
+		 *            the index of the last byte to copy, excluded
+		 * @throws IOException
+		 *             if an I/O error occurs while draining the output
+		 */
+		private void copyStringLiteral(ByteBuffer chunk, int from, int to) throws IOException {
+			if (!isSkipping()) {
+				// Copies from the chunk itself, restoring its bounds after.
+				int position = chunk.position();
+				int limit = chunk.limit();
+				chunk.limit(to);
+				chunk.position(from);
+				write(chunk);
+				chunk.limit(limit);
+				chunk.position(position);
+			}
+			int last = to - 1;
+			while (last >= from && chunk.get(last) == ' ') {
+				last--;
+			}
+			afterStringLiteral(last >= from ? (char) (chunk.get(last) & 0xFF) : PrettifierEngine.NO_CHAR, to - from);
+		}
+
+		/**
+		 * Returns the output buffer, which may have been replaced if
+		 * growable.
+		 *
+		 * @return the output buffer
+		 */
+		private ByteBuffer output() {
+			return output;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#
+		 * writeIndentation(int, boolean)
+		 */
+		@Override
+		protected void writeIndentation(int level, boolean noNewLine) throws IOException {
+			if (level <= 0 || indentation == null) {
+				return;
+			}
+			int length = level * options.indentation.length();
+			if (length >= indentation.length) {
+				indentation = buildIndentation(level * 2).getBytes(StandardCharsets.US_ASCII);
+			}
+			if (noNewLine) {
+				write(indentation, 1, length);
+			} else {
+				write(indentation, 0, length + 1);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#write(char)
+		 */
+		@Override
+		protected void write(char character) throws IOException {
+			if (allow(1) == 0) {
+				return;
+			}
+			if (!output.hasRemaining()) {
+				makeRoom(1);
+			}
+			output.put((byte) character);
+		}
+
+		/**
+		 * Writes the remaining bytes of a buffer to the output, draining or
+		 * growing it if needed.
+		 *
+		 * @param bytes
+		 *            the bytes to write
+		 * @throws IOException
+		 *             if an I/O error occurs while draining the output
+		 */
+		private void write(ByteBuffer bytes) throws IOException {
+			bytes.limit(bytes.position() + allow(bytes.remaining()));
+			while (bytes.remaining() > output.remaining()) {
+				if (channel == null) {
+					makeRoom(bytes.remaining());
+					break;
+				}
+				// Fills the buffer and drains it.
+				int limit = bytes.limit();
+				bytes.limit(bytes.position() + output.remaining());
+				output.put(bytes);
+				bytes.limit(limit);
+				makeRoom(bytes.remaining());
+			}
+			output.put(bytes);
+		}
+
+		/**
+		 * Writes a range of an array to the output, draining or growing it if
+		 * needed.
+		 *
+		 * @param bytes
+		 *            the array which contains the bytes to write
+		 * @param offset
+		 *            the index of the first byte to write
+		 * @param length
+		 *            the number of bytes to write
+		 * @throws IOException
+		 *             if an I/O error occurs while draining the output
+		 */
+		private void write(byte[] bytes, int offset, int length) throws IOException {
+			length = allow(length);
+			while (length > output.remaining()) {
+				if (channel == null) {
+					makeRoom(length);
+					break;
+				}
+				// Fills the buffer and drains it.
+				int part = output.remaining();
+				output.put(bytes, offset, part);
+				offset += part;
+				length -= part;
+				makeRoom(length);
+			}
+			output.put(bytes, offset, length);
+		}
+
+		/**
+		 * Makes room in the output buffer by draining it to the channel or by
+		 * replacing it with a bigger one.
+		 *
+		 * @param needed
+		 *            the number of bytes which need to be written
+		 * @throws IOException
+		 *             if an I/O error occurs while draining the output
+		 * @throws BufferOverflowException
+		 *             if the output buffer can be neither drained nor grown
+		 */
+		private void makeRoom(int needed) throws IOException {
+			if (channel != null) {
+				drain();
+			} else if (growable) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + needed));
+				output.flip();
+				bigger.put(output);
+				output = bigger;
+			} else {
+				throw new BufferOverflowException();
+			}
+		}
+
+		/**
+		 * Writes all the content of the output buffer to the channel.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs while draining the output
+		 */
+		private void drain() throws IOException {
+			output.flip();
+			while (output.hasRemaining()) {
+				channel.write(output);
+			}
+			output.clear();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#
+		 * isContinuation(char)
+		 */
+		@Override
+		protected boolean isContinuation(char character) {
+			return (character & 0xC0) == 0x80;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#
+		 * writeTruncationMarker()
+		 */
+		@Override
+		protected void writeTruncationMarker() throws IOException {
+			// Drops the bytes of a multibyte character cut by the limit, if
+			// they're still in the buffer.
+			int end = output.position();
+			int start = end;
+			while (start > 0 && end - start < 3 && (output.get(start - 1) & 0xC0) == 0x80) {
+				start--;
+			}
+			if (start > 0 && (output.get(start - 1) & 0xC0) == 0xC0) {
+				int lead = output.get(start - 1) & 0xFF;
+				int length = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+				if (end - start + 1 < length) {
+					output.position(start - 1);
+				}
+			}
+			super.writeTruncationMarker();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see co.aurasphere.scripts.JSONPrettifier.PrettifierEngine#flush()
+		 */
+		@Override
+		protected void flush() throws IOException {
+			if (channel != null) {
+				drain();
+			}
+		}
+	}
+
+	/**
+	 * Task used by {@link JSONPrettifier#prettifyLines(byte[])} to prettify
+	 * chunks of newline-delimited records between the threads of the common
+	 * fork/join pool. Each chunk is prettified into its own buffer so that the
+	 * output can be reassembled in the original order.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class LinesTask extends RecursiveAction {
+
+		/**
+		 * Serial version UID.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The records to prettify.
+		 */
+		private final ByteBuffer data;
+
+		/**
+		 * Indexes of the chunks of records in {@link #data}. Chunk i starts at
+		 * boundaries[i] and ends at boundaries[i + 1].
+		 */
+		private final int[] boundaries;
+
+		/**
+		 * Where the prettified chunks are stored, in the same order.
+		 */
+		private final ByteBuffer[] results;
+
+		/**
+		 * Index of the first chunk to prettify, included.
+		 */
+		private final int from;
+
+		/**
+		 * Index of the last chunk to prettify, excluded.
+		 */
+		private final int to;
+
+		/**
+		 * The formatting options.
+		 */
+		private final Options options;
+
+		/**
+		 * Builds a new task.
+		 *
+		 * @param data
+		 *            the records to prettify
+		 * @param boundaries
+		 *            indexes of the chunks of records in the data
+		 * @param results
+		 *            where the prettified chunks are stored
+		 * @param from
+		 *            index of the first chunk to prettify, included
+		 * @param to
+		 *            index of the last chunk to prettify, excluded
+		 * @param options
+		 *            the formatting options
+		 */
+		private LinesTask(ByteBuffer data, int[] boundaries, ByteBuffer[] results, int from, int to,
+				Options options) {
+			this.data = data;
+			this.boundaries = boundaries;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+			this.options = options;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				ByteBuffer chunk = data.duplicate();
+				chunk.limit(boundaries[to]).position(boundaries[from]);
+				BytePrettifierEngine engine = new BytePrettifierEngine(ByteBuffer.allocate(chunk.remaining() * 2),
+						null, true, options);
+				try {
+					engine.processLines(chunk);
+				} catch (IOException e) {
+					// Can't happen since the output is kept in memory.
+					throw new IllegalStateException(e);
+				} catch (MalformedJSONException e) {
+					// The engine only knows the position in this chunk.
+					throw locate(e, data, data.position(), boundaries[from] + e.getOffset());
+				}
+				ByteBuffer output = engine.output();
+				output.flip();
+				results[from] = output;
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new LinesTask(data, boundaries, results, from, middle, options),
+					new LinesTask(data, boundaries, results, middle, to, options));
+		}
+	}
+
+	/**
+	 * Task used by the command line to format a file in the common fork/join
+	 * pool. The file is read through its channel and formatted into its own
+	 * buffer, so that many files can be formatted at once while the results
+	 * are still printed in the original order.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class FileTask extends RecursiveAction {
+
+		/**
+		 * Serial version UID.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Path of the file to format.
+		 */
+		private final String file;
+
+		/**
+		 * The formatting options.
+		 */
+		private final Options options;
+
+		/**
+		 * Whether the file contains newline-delimited records.
+		 */
+		private final boolean lines;
+
+		/**
+		 * Where the formatted file is written to.
+		 */
+		private final ByteArrayOutputStream result = new ByteArrayOutputStream(BUFFER_SIZE);
+
+		/**
+		 * The error which prevented the file from being formatted, if any.
+		 */
+		private Exception error;
+
+		/**
+		 * Builds a new task.
+		 *
+		 * @param file
+		 *            path of the file to format
+		 * @param options
+		 *            the formatting options
+		 * @param lines
+		 *            whether the file contains newline-delimited records
+		 */
+		private FileTask(String file, Options options, boolean lines) {
+			this.file = file;
+			this.options = options;
+			this.lines = lines;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			try (FileChannel in = FileChannel.open(Paths.get(file))) {
+				WritableByteChannel out = Channels.newChannel(result);
+				if (lines) {
+					prettifyLines(in, out, options);
+				} else {
+					prettify(in, out, options);
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				error = e;
+			}
+		}
+	}
+
 	/**
 	 * Formats the JSON into different readable rows. The applied algorithm adds
 	 * one or more escape characters to the JSON String following this rules:
-	 * 
+	 *
 	 * <pre>
 	 * - "{" || "[": adds \n, adds a level of indentation
 	 * - "}" || "]": adds \n, removes a level of indentation
 	 * - ",": adds \n
-	 * - " ": trimmed if outside quotes
+	 * - " ", "\t", "\r": trimmed if outside quotes
 	 * - ":": adds " " after and before if outside quotes
 	 * - any other character: adds that character
 	 * </pre>
-	 * 
+	 *
 	 * This method supports parsing multiple JSON's lines at once and also can
 	 * parse truncated JSON as far as it ends with the "...\n" String. Please
 	 * notice that the truncation may happen both inside or outside a JSON
@@ -67,346 +3107,808 @@ public class JSONPrettifier {
 	 * have to escape the newline character in order to avoid to truncate the
 	 * JSON. <br>
 	 * <br>
-	 * The algorithm applied is slow for large inputs since the String is parsed
-	 * character by character and thus has a complexity of O(n)(linear).
-	 * 
+	 * The String is parsed in a single pass, character by character, and thus
+	 * has a complexity of O(n)(linear). The indentation, the spaces around
+	 * colons and the blank line after each JSON document can be changed by
+	 * passing {@link Options}.
+	 *
 	 * @param data
 	 *            the JSON string to prettify.
 	 * @return the JSON string prettified.
 	 */
 	public static String prettify(String data) {
-		if (data == null || data == "") {
+		return prettify(data, Options.DEFAULT);
+	}
+
+	/**
+	 * Formats a JSON String with the given options. See
+	 * {@link #prettify(String)} for details.
+	 *
+	 * @param data
+	 *            the JSON string to format
+	 * @param options
+	 *            the formatting options
+	 * @return the JSON string formatted
+	 */
+	public static String prettify(String data, Options options) {
+		// An empty input is still validated in strict mode.
+		if (data == null || (data.isEmpty() && !options.strict)) {
 			return "";
 		}
-		StringBuilder builder = new StringBuilder();
-		// Whether I'm currently parsing a String or not. Used in order to avoid
-		// indentation if I'm inside double quotes.
-		boolean outsideQuotes = true;
-		// Handles the current indentation within the method instead of using
-		// an instance field in order to make the class ThreadSafe at the cost
-		// of some code cleanliness.
-		AtomicInteger currentIndentationLevel = new AtomicInteger();
-		char currentChar;
-		// Cycles all characters in the JSON String.
-		for (int i = 0; i < data.length(); i++) {
-			currentChar = data.charAt(i);
-			switch (currentChar) {
-			// If the char is a "{" or a "[" then adds a newline and a level of
-			// indentation. If i == 0, then we are at the first character of the
-			// stream, no need to add a newline at the beginning.
-			case '[':
-			case '{':
-				conditionalIndent(builder, currentIndentationLevel, i == 0, outsideQuotes);
-				builder.append(currentChar);
-				conditionalIndent(builder, currentIndentationLevel, false, outsideQuotes);
-				break;
-			// If the char is a "}" or a "]" then adds a newline and removes a
-			// level of
-			// indentation.
-			case ']':
-			case '}':
-				conditionalDeindent(builder, currentIndentationLevel, false, outsideQuotes);
-				builder.append(currentChar);
-				// If the char after this is another "}" or a "," it doesn't had
-				// another newline.
-				conditionalDeindent(builder, currentIndentationLevel, charAfter(data, i, '}'), outsideQuotes,
-						!charAfter(data, i, ','));
-				// If this JSON object has been closed, adds an extra newline in
-				// order to improve readability.
-				conditionalAppend(builder, "\n\n", currentIndentationLevel.get() == 0);
-				break;
-			// If the char is a "," then removes a level of indentation if the
-			// character before was a "}" (because they are sibling objects).
-			case ',':
-				builder.append(currentChar);
-				// Since the two statements in this case checks both on the char
-				// before this only one of them is executed.
-				boolean wasTokenBeforeAnObject = charBefore(data, i, '}');
-				boolean isTokenAfterAnObject = charAfter(data, i, '{');
-
-				// If the char before this was a "}" then before this comma
-				// there was an object that has ended and thus removes a level
-				// of indentation. It doesn't add a new line if the next
-				// character is "{" since it will be added on the next round of
-				// parsing.
-				conditionalDeindent(builder, currentIndentationLevel, isTokenAfterAnObject, outsideQuotes,
-						wasTokenBeforeAnObject);
-
-				// If the char before this one was not a "}" then we didn't
-				// parse an object before but just a String or an array. In that
-				// case, I don't remove any level of indentation and I append
-				// the current indentation level plus a newline if the next
-				// character is not a "{" for the same reason as above.
-				conditionalAppend(builder, currentIndentationToString(isTokenAfterAnObject, currentIndentationLevel),
-						outsideQuotes, !wasTokenBeforeAnObject);
-				break;
-			// If the char is a "\"" (quote) and it's not escaped, switches the
-			// outsideQuotes flag in order to prevent parsing commas and
-			// brackets inside quotes as if they were JSON.
-			case '"':
-				if (!charBefore(data, i, '\\')) {
-					outsideQuotes = !outsideQuotes;
-				}
-				builder.append(currentChar);
-				break;
-			// If the char is a "\n" (newline) checks if the 3 character before
-			// where dots. If that's the case, the JSON has been truncated.
-			// Resets the indentation level and other flags and adds a newline
-			// to improve readability. Notice that the truncation may happen
-			// inside one of the JSON fields as well, so make sure to escape any
-			// newline character inside the JSON before parsing it.
-			case '\n':
-				if (charBefore(data, i, '.') && charBefore(data, i - 1, '.') && charBefore(data, i - 2, '.')) {
-					currentIndentationLevel.set(0);
-					outsideQuotes = true;
-					builder.append("\n\n");
-				}
-				break;
-			// Trims whitespaces in JSON if outside quotes.
-			case ' ':
-				if (!outsideQuotes) {
-					builder.append(currentChar);
-				}
-				break;
-			// Adds spaces between and after colon.
-			case ':':
-				if (outsideQuotes) {
-					builder.append(" ").append(currentChar).append(" ");
-				} else {
-					builder.append(currentChar);
-				}
-				break;
-			// If the char is anything else, just appends it.
-			default:
-				builder.append(currentChar);
+		CharPrettifierEngine engine = new CharPrettifierEngine(null, options);
+		char[] chunk = new char[Math.min(data.length(), BUFFER_SIZE)];
+		try {
+			for (int i = 0; i < data.length() && !engine.isDone(); i += chunk.length) {
+				int end = Math.min(data.length(), i + chunk.length);
+				data.getChars(i, end, chunk, 0);
+				engine.process(chunk, 0, end - i);
 			}
+			engine.finish();
+		} catch (IOException e) {
+			// Can't happen since the output is kept in memory.
+			throw new IllegalStateException(e);
+		}
+		return engine.result();
+	}
+
+	/**
+	 * Prettifies a JSON read from a {@link Reader}, writing the result to a
+	 * {@link Writer} as the input is parsed. The rules applied are the same
+	 * as {@link #prettify(String)} but the input is never loaded in memory, so
+	 * this method can be used for inputs of any size. Neither the reader nor
+	 * the writer are closed, but the writer is flushed at the end.
+	 *
+	 * @param in
+	 *            where the JSON to prettify is read from
+	 * @param out
+	 *            where the prettified JSON is written to
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void prettify(Reader in, Writer out) throws IOException {
+		prettify(in, out, Options.DEFAULT);
+	}
+
+	/**
+	 * Formats a JSON read from a {@link Reader} with the given options. See
+	 * {@link #prettify(Reader, Writer)} for details.
+	 *
+	 * @param in
+	 *            where the JSON to format is read from
+	 * @param out
+	 *            where the formatted JSON is written to
+	 * @param options
+	 *            the formatting options
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void prettify(Reader in, Writer out, Options options) throws IOException {
+		CharPrettifierEngine engine = new CharPrettifierEngine(out, options);
+		char[] inputBuffer = new char[BUFFER_SIZE];
+		int read;
+		while (!engine.isDone() && (read = in.read(inputBuffer)) != -1) {
+			engine.process(inputBuffer, 0, read);
 		}
+		engine.finish();
+	}
+
+	/**
+	 * Prettifies a UTF-8 encoded JSON read from an {@link InputStream},
+	 * writing the result to an {@link OutputStream} with the same encoding.
+	 * The bytes are formatted as they are, without decoding them. See
+	 * {@link #prettify(Reader, Writer)} for details. Neither of the streams is
+	 * closed, but the output one is flushed at the end.
+	 *
+	 * @param in
+	 *            where the JSON to prettify is read from
+	 * @param out
+	 *            where the prettified JSON is written to
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void prettify(InputStream in, OutputStream out) throws IOException {
+		prettify(in, out, Options.DEFAULT);
+	}
 
-		return builder.toString();
+	/**
+	 * Formats a UTF-8 encoded JSON read from an {@link InputStream} with the
+	 * given options. See {@link #prettify(InputStream, OutputStream)} for
+	 * details.
+	 *
+	 * @param in
+	 *            where the JSON to format is read from
+	 * @param out
+	 *            where the formatted JSON is written to
+	 * @param options
+	 *            the formatting options
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void prettify(InputStream in, OutputStream out, Options options) throws IOException {
+		BytePrettifierEngine engine = new BytePrettifierEngine(ByteBuffer.allocate(BUFFER_SIZE),
+				Channels.newChannel(out), false, options);
+		byte[] inputBuffer = new byte[BUFFER_SIZE];
+		int read;
+		while (!engine.isDone() && (read = in.read(inputBuffer)) != -1) {
+			engine.process(ByteBuffer.wrap(inputBuffer, 0, read));
+		}
+		engine.finish();
+		out.flush();
 	}
 
 	/**
-	 * Returns the current indentation level as a String. The String will be
-	 * made of n {@link JSONPrettifier#INDENTATION_CHAR} with n being the
-	 * currentIndentation argument passed.
-	 * 
-	 * @param noNewLine
-	 *            whether to omit a new line character ("\n") at the beginning
-	 *            of the returned String or not.
-	 * @param currentIndentationLevel
-	 *            the current indentation level or the number of
-	 *            {@link #INDENTATION_CHAR} to append to the returned String.
-	 * @return a String representing the current indentation level.
+	 * Prettifies a UTF-8 encoded JSON without decoding it. See
+	 * {@link #prettify(String)} for details.
+	 *
+	 * @param data
+	 *            the UTF-8 encoded JSON to prettify
+	 * @return the UTF-8 encoded JSON prettified
 	 */
-	private static String currentIndentationToString(boolean noNewLine, AtomicInteger currentIndentationLevel) {
-		StringBuilder builder = new StringBuilder();
-		int indentation = currentIndentationLevel.get();
-		// If the current indentation is 0, doesn't add a newline. This is to
-		// prevent the case where there are multiple commas outside the JSON
-		// String so that they don't always go on a newline.
-		if (indentation > 0 && !noNewLine) {
-			builder.append("\n");
+	public static byte[] prettify(byte[] data) {
+		return prettify(data, Options.DEFAULT);
+	}
+
+	/**
+	 * Formats a UTF-8 encoded JSON with the given options, without decoding
+	 * it. See {@link #prettify(String)} for details.
+	 *
+	 * @param data
+	 *            the UTF-8 encoded JSON to format
+	 * @param options
+	 *            the formatting options
+	 * @return the UTF-8 encoded JSON formatted
+	 */
+	public static byte[] prettify(byte[] data, Options options) {
+		// An empty input is still validated in strict mode.
+		if (data == null || (data.length == 0 && !options.strict)) {
+			return new byte[0];
 		}
-		for (int i = 0; i < indentation; i++) {
-			builder.append(INDENTATION_CHAR);
+		BytePrettifierEngine engine = new BytePrettifierEngine(ByteBuffer.allocate(data.length * 2), null, true, options);
+		try {
+			engine.process(ByteBuffer.wrap(data));
+			engine.finish();
+		} catch (IOException e) {
+			// Can't happen since the output is kept in memory.
+			throw new IllegalStateException(e);
 		}
-		return builder.toString();
+		ByteBuffer output = engine.output();
+		return Arrays.copyOf(output.array(), output.position());
 	}
 
 	/**
-	 * Adds a level of indentation and returns the current indentation level.
-	 * 
-	 * @param noNewLine
-	 *            whether to omit a new line character ("\n") at the beginning
-	 *            of the returned String or not.
-	 * @param currentIndentationLevel
-	 *            the current indentation level or the number of
-	 *            {@link #INDENTATION_CHAR} to append to the returned String.
-	 * @return a String representing the current indentation level.
+	 * Prettifies the remaining bytes of a buffer containing a UTF-8 encoded
+	 * JSON, writing the result into another buffer starting from its current
+	 * position. The bytes are formatted as they are, without decoding them,
+	 * so both heap and direct buffers can be used without any copy. The
+	 * position of the input buffer is moved to its limit. See
+	 * {@link #prettify(String)} for details.
+	 *
+	 * @param in
+	 *            the UTF-8 encoded JSON to prettify
+	 * @param out
+	 *            where the prettified JSON is written
+	 * @throws BufferOverflowException
+	 *             if there's not enough room in the output buffer
 	 */
-	private static String indent(boolean noNewLine, AtomicInteger currentIndentationLevel) {
-		currentIndentationLevel.incrementAndGet();
-		return currentIndentationToString(noNewLine, currentIndentationLevel);
+	public static void prettify(ByteBuffer in, ByteBuffer out) {
+		prettify(in, out, Options.DEFAULT);
 	}
 
 	/**
-	 * Removes a level of indentation and returns the current indentation level.
-	 * 
-	 * @param noNewLine
-	 *            whether to omit a new line character ("\n") at the beginning
-	 *            of the returned String or not.
-	 * @param currentIndentationLevel
-	 *            the current indentation level or the number of
-	 *            {@link #INDENTATION_CHAR} to append to the returned String.
-	 * @return a String representing the current indentation level.
+	 * Formats the remaining bytes of a buffer containing a UTF-8 encoded JSON
+	 * with the given options. See {@link #prettify(ByteBuffer, ByteBuffer)}
+	 * for details.
+	 *
+	 * @param in
+	 *            the UTF-8 encoded JSON to format
+	 * @param out
+	 *            where the formatted JSON is written
+	 * @param options
+	 *            the formatting options
+	 * @throws BufferOverflowException
+	 *             if there's not enough room in the output buffer
+	 */
+	public static void prettify(ByteBuffer in, ByteBuffer out, Options options) {
+		BytePrettifierEngine engine = new BytePrettifierEngine(out, null, false, options);
+		try {
+			engine.process(in);
+			engine.finish();
+		} catch (IOException e) {
+			// Can't happen since the output is not drained.
+			throw new IllegalStateException(e);
+		}
+		in.position(in.limit());
+	}
+
+	/**
+	 * Prettifies a UTF-8 encoded JSON file, writing the result to a channel.
+	 * The file is memory-mapped one region at a time and formatted without
+	 * decoding it, so this method is suited for very large files. The file
+	 * is read from its current position to its end, but the position of the
+	 * file channel is not changed. Neither of the channels is closed.
+	 *
+	 * @param in
+	 *            the UTF-8 encoded JSON file to prettify
+	 * @param out
+	 *            where the prettified JSON is written to
+	 * @throws IOException
+	 *             if an I/O error occurs
 	 */
-	private static String deindent(boolean noNewLine, AtomicInteger currentIndentationLevel) {
-		currentIndentationLevel.decrementAndGet();
-		return currentIndentationToString(noNewLine, currentIndentationLevel);
+	public static void prettify(FileChannel in, WritableByteChannel out) throws IOException {
+		prettify(in, out, Options.DEFAULT);
 	}
 
 	/**
-	 * Checks whether the character before the one at the index passed (ignoring
-	 * whitespace characters) is equal to the character passed.
-	 * 
-	 * @param data
-	 *            the String where to perform the check.
-	 * @param index
-	 *            the index of the character whose preceding character has to be
-	 *            checked.
-	 * @param character
-	 *            the character to match.
-	 * @return true if data.charAt(index - 1) == character (ignoring whitespace
-	 *         characters), false otherwise
+	 * Formats a UTF-8 encoded JSON file with the given options. See
+	 * {@link #prettify(FileChannel, WritableByteChannel)} for details.
+	 *
+	 * @param in
+	 *            the UTF-8 encoded JSON file to format
+	 * @param out
+	 *            where the formatted JSON is written to
+	 * @param options
+	 *            the formatting options
+	 * @throws IOException
+	 *             if an I/O error occurs
 	 */
-	private static boolean charBefore(String data, int index, char character) {
-		if (index - 1 < 0 || data.length() <= index - 1) {
-			return false;
+	public static void prettify(FileChannel in, WritableByteChannel out, Options options) throws IOException {
+		BytePrettifierEngine engine = new BytePrettifierEngine(ByteBuffer.allocateDirect(BUFFER_SIZE * 8), out, false,
+				options);
+		long size = in.size();
+		for (long position = in.position(); position < size && !engine.isDone(); position += MAPPED_REGION_SIZE) {
+			engine.process(in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_REGION_SIZE, size - position)));
 		}
-		// Trims whitespace characters.
-		do {
-			index--;
-		} while (index - 1 > 0 && data.charAt(index) == ' ');
+		engine.finish();
+	}
 
-		return character == data.charAt(index);
+	/**
+	 * Removes all the whitespaces outside quotes from a JSON String, putting
+	 * each JSON document on a single line. Same as calling
+	 * {@link #prettify(String, Options)} with {@link Options#MINIFIED}.
+	 *
+	 * @param data
+	 *            the JSON string to minify
+	 * @return the JSON string minified
+	 */
+	public static String minify(String data) {
+		return prettify(data, Options.MINIFIED);
 	}
 
 	/**
-	 * Checks whether the character after the one at the index passed (ignoring
-	 * whitespace characters) is equal to the character passed.
-	 * 
+	 * Removes all the whitespaces outside quotes from a UTF-8 encoded JSON,
+	 * putting each JSON document on a single line. Same as calling
+	 * {@link #prettify(byte[], Options)} with {@link Options#MINIFIED}.
+	 *
 	 * @param data
-	 *            the String where to perform the check.
-	 * @param index
-	 *            the index of the character whose subsequent character has to
-	 *            be checked.
-	 * @param character
-	 *            the character to match.
-	 * @return true if data.charAt(index + 1) == character (ignoring whitespace
-	 *         characters), false otherwise
-	 */
-	private static boolean charAfter(String data, int index, char character) {
-		if (index + 1 < 0 || data.length() <= index + 1) {
-			return false;
-		}
-		// Trims whitespace characters.
-		do {
-			index++;
-		} while (data.length() > index + 1 && data.charAt(index) == ' ');
+	 *            the UTF-8 encoded JSON to minify
+	 * @return the UTF-8 encoded JSON minified
+	 */
+	public static byte[] minify(byte[] data) {
+		return prettify(data, Options.MINIFIED);
+	}
 
-		return character == data.charAt(index);
+	/**
+	 * Prettifies newline-delimited JSON records (one JSON per line) in
+	 * parallel, using the common fork/join pool. Each record, together with
+	 * its newline, is prettified on its own as {@link #prettify(byte[])}
+	 * does, so a malformed or truncated record doesn't affect the others. The
+	 * output is the concatenation of the prettified records in their original
+	 * order.
+	 *
+	 * @param data
+	 *            the UTF-8 encoded records to prettify
+	 * @return the UTF-8 encoded records prettified
+	 */
+	public static byte[] prettifyLines(byte[] data) {
+		return prettifyLines(data, Options.DEFAULT);
 	}
 
 	/**
-	 * Appends a String to a StringBuilder only if ALL the conditions passed are
-	 * met. If no conditions are passed, appends the String.
-	 * 
-	 * @param builder
-	 *            the StringBuilder where to append the String.
-	 * @param string
-	 *            the String to append.
-	 * @param conditions
-	 *            the conditions to check before appending the String. If no
-	 *            conditions are passed, the String is appended by default.
-	 * @return the StringBuilder passed as argument.
+	 * Formats newline-delimited JSON records in parallel with the given
+	 * options. See {@link #prettifyLines(byte[])} for details. The limits of
+	 * the options, if any, apply to each record on its own.
+	 *
+	 * @param data
+	 *            the UTF-8 encoded records to format
+	 * @param options
+	 *            the formatting options
+	 * @return the UTF-8 encoded records formatted
 	 */
-	private static StringBuilder conditionalAppend(StringBuilder builder, String string, boolean... conditions) {
-		boolean append = true;
-		// Checks all the conditions.
-		for (boolean b : conditions) {
-			append = append && b;
+	public static byte[] prettifyLines(byte[] data, Options options) {
+		if (data == null || data.length == 0) {
+			return new byte[0];
+		}
+		ByteBuffer[] chunks = prettifyLinesInParallel(ByteBuffer.wrap(data), options);
+		int length = 0;
+		for (ByteBuffer chunk : chunks) {
+			length += chunk.remaining();
 		}
-		if (append) {
-			builder.append(string);
+		ByteBuffer output = ByteBuffer.allocate(length);
+		for (ByteBuffer chunk : chunks) {
+			output.put(chunk);
 		}
-		return builder;
+		return output.array();
 	}
 
 	/**
-	 * Adds a level of indentation to a StringBuilder only if ALL the conditions
-	 * passed are met. If no conditions are passed, adds an indentation level.
-	 * 
-	 * @param builder
-	 *            the StringBuilder where to append the indentation.
-	 * @param noNewLine
-	 *            whether to omit a new line character ("\n") at the beginning
-	 *            of the appended indentation.
-	 * @param currentIndentationLevel
-	 *            the current indentation level or the number of
-	 *            {@link #INDENTATION_CHAR} to append when indenting.
-	 * @param conditions
-	 *            the conditions to check before adding the indentation. If no
-	 *            conditions are passed, the indentation is added by default.
-	 * @return the StringBuilder passed as argument.
+	 * Prettifies a file of UTF-8 encoded, newline-delimited JSON records,
+	 * writing the result to a channel. The file is memory-mapped one region
+	 * at a time and the records of each region are prettified in parallel as
+	 * {@link #prettifyLines(byte[])} does. The file is read from its current
+	 * position to its end, but the position of the file channel is not
+	 * changed. Neither of the channels is closed.
+	 *
+	 * @param in
+	 *            the file of UTF-8 encoded records to prettify
+	 * @param out
+	 *            where the prettified records are written to
+	 * @throws IOException
+	 *             if an I/O error occurs or a record is longer than
+	 *             {@link Integer#MAX_VALUE} bytes
+	 */
+	public static void prettifyLines(FileChannel in, WritableByteChannel out) throws IOException {
+		prettifyLines(in, out, Options.DEFAULT);
+	}
+
+	/**
+	 * Formats a file of UTF-8 encoded, newline-delimited JSON records with
+	 * the given options. See
+	 * {@link #prettifyLines(FileChannel, WritableByteChannel)} for details.
+	 *
+	 * @param in
+	 *            the file of UTF-8 encoded records to format
+	 * @param out
+	 *            where the formatted records are written to
+	 * @param options
+	 *            the formatting options
+	 * @throws IOException
+	 *             if an I/O error occurs or a record is longer than
+	 *             {@link Integer#MAX_VALUE} bytes
 	 */
-	private static StringBuilder conditionalIndent(StringBuilder builder, AtomicInteger currentIndentationLevel,
-			boolean noNewLine, boolean... conditions) {
-		boolean append = true;
-		// Checks all the conditions.
-		for (boolean b : conditions) {
-			append = append && b;
+	public static void prettifyLines(FileChannel in, WritableByteChannel out, Options options)
+			throws IOException {
+		long size = in.size();
+		long start = in.position();
+		long position = start;
+		long regionSize = MAPPED_REGION_SIZE;
+		while (position < size) {
+			ByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(regionSize, size - position));
+			// Cuts the region after its last newline, so that no record is
+			// split. If there's none, the record is bigger than the region
+			// and a bigger one is mapped.
+			int end = region.limit();
+			if (position + end < size) {
+				while (end > 0 && region.get(end - 1) != '\n') {
+					end--;
+				}
+				if (end == 0) {
+					if (regionSize == Integer.MAX_VALUE) {
+						// A region can't be mapped any bigger.
+						throw new IOException("Record at offset " + (position - start) + " is longer than "
+								+ Integer.MAX_VALUE + " bytes");
+					}
+					regionSize = Math.min(regionSize * 2, Integer.MAX_VALUE);
+					continue;
+				}
+				region.limit(end);
+			}
+			ByteBuffer[] chunks;
+			try {
+				chunks = prettifyLinesInParallel(region, options);
+			} catch (MalformedJSONException e) {
+				// The position is relative to the region, which always starts
+				// at the beginning of a line.
+				long lines = 0;
+				for (long i = start; i < position; i += MAPPED_REGION_SIZE) {
+					ByteBuffer previous = in.map(FileChannel.MapMode.READ_ONLY, i, Math.min(MAPPED_REGION_SIZE, position - i));
+					for (int j = 0; j < previous.limit(); j++) {
+						if (previous.get(j) == '\n') {
+							lines++;
+						}
+					}
+				}
+				throw new MalformedJSONException(e.reason, lines + e.line, e.column, position - start + e.offset);
+			}
+			for (ByteBuffer chunk : chunks) {
+				while (chunk.hasRemaining()) {
+					out.write(chunk);
+				}
+			}
+			position += end;
+			regionSize = MAPPED_REGION_SIZE;
 		}
+	}
 
-		if (append) {
-			builder.append(indent(noNewLine, currentIndentationLevel));
+	/**
+	 * Splits the remaining bytes of a buffer in chunks of newline-delimited
+	 * records and prettifies them in parallel.
+	 *
+	 * @param data
+	 *            the records to prettify
+	 * @param options
+	 *            the formatting options
+	 * @return the prettified chunks, in the original order, ready to be read
+	 */
+	private static ByteBuffer[] prettifyLinesInParallel(ByteBuffer data, Options options) {
+		int chunks = (data.remaining() + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+		int[] boundaries = new int[chunks + 1];
+		boundaries[0] = data.position();
+		// Each chunk is extended up to the end of its last record. Records
+		// longer than a chunk make for fewer chunks, but never for more.
+		int count = 0;
+		while (boundaries[count] < data.limit()) {
+			int end = (int) Math.min((long) boundaries[count] + PARALLEL_CHUNK_SIZE, data.limit());
+			boundaries[count + 1] = nextLine(data, end, data.limit());
+			count++;
 		}
-		return builder;
+		ByteBuffer[] results = new ByteBuffer[count];
+		ForkJoinPool.commonPool().invoke(new LinesTask(data, boundaries, results, 0, count, options));
+		return results;
 	}
 
 	/**
-	 * Removes a level of indentation to a StringBuilder only if ALL the
-	 * conditions passed are met. If no conditions are passed, removes an
-	 * indentation level.
-	 * 
-	 * Please notice that this method removes a level of indentation by actually
-	 * appending a new indentation that is one level below the one passed as
-	 * argument.
-	 * 
-	 * @param builder
-	 *            the StringBuilder where to remove the indentation.
-	 * @param noNewLine
-	 *            whether to omit a new line character ("\n") at the beginning
-	 *            of the appended indentation.
-	 * @param currentIndentationLevel
-	 *            the current indentation level or the number of
-	 *            {@link #INDENTATION_CHAR} to append when indenting.
-	 * @param conditions
-	 *            the conditions to check before removing. If no conditions are
-	 *            passed, the indentation is removed by default.
-	 * @return the StringBuilder passed as argument.
+	 * Computes the line and column of an error in a buffer of
+	 * newline-delimited records, given its index.
+	 *
+	 * @param e
+	 *            the error, whose position is not relative to the buffer
+	 * @param data
+	 *            the records
+	 * @param from
+	 *            the index of the first byte of the records
+	 * @param index
+	 *            the index of the error in the buffer
+	 * @return the error with the position relative to the first record
+	 */
+	private static MalformedJSONException locate(MalformedJSONException e, ByteBuffer data, int from, long index) {
+		long line = 1;
+		long lineStart = from;
+		for (int i = from; i < index; i++) {
+			if (data.get(i) == '\n') {
+				line++;
+				lineStart = i + 1;
+			}
+		}
+		return new MalformedJSONException(e.reason, line, index - lineStart + 1, index - from);
+	}
+
+	/**
+	 * Finds the end of the record containing the given index, that is the
+	 * index right after the next newline.
+	 *
+	 * @param data
+	 *            the records
+	 * @param from
+	 *            the index where the search starts
+	 * @param limit
+	 *            the index where the search stops
+	 * @return the index after the next newline or the limit if there's none
+	 */
+	private static int nextLine(ByteBuffer data, int from, int limit) {
+		for (int i = from; i < limit; i++) {
+			if (data.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * Formats a stream for the command line, either as a single document or
+	 * as newline-delimited records. Records are read into a bounded buffer
+	 * and formatted in parallel up to its last newline, so that the whole
+	 * stream is never held in memory. The buffer only grows for a record
+	 * longer than it, up to the given length.
+	 *
+	 * @param in
+	 *            where the JSON is read from
+	 * @param out
+	 *            where the formatted JSON is written to
+	 * @param options
+	 *            the formatting options
+	 * @param lines
+	 *            whether the input contains newline-delimited records
+	 * @param maxRecordLength
+	 *            the maximum length of a record, in bytes
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IllegalArgumentException
+	 *             if the input can't be formatted or a record is longer than
+	 *             the maximum length
+	 */
+	private static void format(InputStream in, OutputStream out, Options options, boolean lines, int maxRecordLength)
+			throws IOException {
+		if (!lines) {
+			prettify(in, out, options);
+			return;
+		}
+		byte[] buffer = new byte[Math.min(LINES_BUFFER_SIZE, maxRecordLength)];
+		int length = 0;
+		long previousLines = 0;
+		long offset = 0;
+		boolean ended = false;
+		while (!ended) {
+			int read = in.read(buffer, length, buffer.length - length);
+			if (read == -1) {
+				ended = true;
+			} else {
+				length += read;
+			}
+			if (!ended && length < buffer.length) {
+				continue;
+			}
+			// Cuts the buffer after its last newline, so that no record is
+			// split, unless the stream is over.
+			int end = length;
+			if (!ended) {
+				while (end > 0 && buffer[end - 1] != '\n') {
+					end--;
+				}
+				if (end == 0) {
+					if (buffer.length >= maxRecordLength) {
+						throw new IllegalArgumentException(
+								"Record at offset " + offset + " is longer than " + maxRecordLength + " bytes");
+					}
+					buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, maxRecordLength));
+					continue;
+				}
+			}
+			ByteBuffer[] chunks;
+			try {
+				chunks = prettifyLinesInParallel(ByteBuffer.wrap(buffer, 0, end), options);
+			} catch (MalformedJSONException e) {
+				// The position is relative to the buffer, which always starts
+				// at the beginning of a line.
+				throw new MalformedJSONException(e.reason, previousLines + e.line, e.column, offset + e.offset);
+			}
+			for (ByteBuffer chunk : chunks) {
+				out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+			}
+			for (int i = 0; i < end; i++) {
+				if (buffer[i] == '\n') {
+					previousLines++;
+				}
+			}
+			offset += end;
+			System.arraycopy(buffer, end, buffer, 0, length - end);
+			length -= end;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Formats many files in parallel, printing the results in the same order
+	 * of the arguments. Each result is printed as soon as it and all the
+	 * previous ones are ready. Files which can't be formatted are reported on
+	 * the standard error and skipped.
+	 *
+	 * @param files
+	 *            paths of the files to format
+	 * @param out
+	 *            where the formatted files are written to
+	 * @param options
+	 *            the formatting options
+	 * @param lines
+	 *            whether each file contains newline-delimited records
+	 * @return true if all the files have been formatted, false otherwise
+	 * @throws IOException
+	 *             if an I/O error occurs while writing the output
 	 */
-	private static StringBuilder conditionalDeindent(StringBuilder builder, AtomicInteger currentIndentationLevel,
-			boolean noNewLine, boolean... conditions) {
-		boolean append = true;
-		// Checks all the conditions.
-		for (boolean b : conditions) {
-			append = append && b;
+	private static boolean formatFiles(String[] files, OutputStream out, Options options, boolean lines)
+			throws IOException {
+		// Only a few files are formatted ahead of the one being printed, so
+		// that the threads are kept busy without holding every result.
+		int ahead = ForkJoinPool.getCommonPoolParallelism() * 2;
+		FileTask[] tasks = new FileTask[files.length];
+		int submitted = 0;
+		boolean success = true;
+		for (int i = 0; i < files.length; i++) {
+			while (submitted < files.length && submitted <= i + ahead) {
+				tasks[submitted] = new FileTask(files[submitted], options, lines);
+				ForkJoinPool.commonPool().execute(tasks[submitted]);
+				submitted++;
+			}
+			FileTask task = tasks[i];
+			tasks[i] = null;
+			task.join();
+			if (task.error != null) {
+				System.err.println(files[i] + ": " + task.error);
+				success = false;
+			} else {
+				task.result.writeTo(out);
+				out.flush();
+			}
 		}
+		return success;
+	}
+
+	/**
+	 * Runs a daemon which formats each JSON sent to a local port and sends
+	 * it back, so that repeated invocations don't pay for the startup of the
+	 * JVM. The port is bound to the loopback address only. A client sends the
+	 * JSON, shuts down its output and reads the result until the connection
+	 * is closed, like <code>nc -N localhost 7777 &lt; file.json</code>.
+	 * Each connection is served by its own thread, up to
+	 * {@link #DAEMON_MAX_CONNECTIONS} at once: further connections are
+	 * refused with an error until one ends. A connection which sends nothing
+	 * for {@link #DAEMON_READ_TIMEOUT} milliseconds is closed, so that idle
+	 * clients can't hold the threads. Newline-delimited records longer than
+	 * {@link #DAEMON_MAX_RECORD_LENGTH} are refused with an error, so that a
+	 * client can't take all the memory. This method never returns.
+	 *
+	 * @param port
+	 *            the port to listen on
+	 * @param options
+	 *            the formatting options
+	 * @param lines
+	 *            whether each request contains newline-delimited records
+	 * @throws IOException
+	 *             if the port can't be bound
+	 */
+	private static void serve(int port, final Options options, final boolean lines) throws IOException {
+		ExecutorService executor = new ThreadPoolExecutor(0, DAEMON_MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>());
+		try (ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+			System.err.println("Listening on " + server.getLocalSocketAddress());
+			while (true) {
+				final Socket client = server.accept();
+				Runnable connection = new Runnable() {
 
-		if (append) {
-			builder.append(deindent(noNewLine, currentIndentationLevel));
+					/*
+					 * (non-Javadoc)
+					 *
+					 * @see java.lang.Runnable#run()
+					 */
+					@Override
+					public void run() {
+						try (Socket socket = client) {
+							socket.setSoTimeout(DAEMON_READ_TIMEOUT);
+							OutputStream out = socket.getOutputStream();
+							try {
+								format(socket.getInputStream(), out, options, lines, DAEMON_MAX_RECORD_LENGTH);
+							} catch (IllegalArgumentException e) {
+								out.write(("\nError: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+							}
+						} catch (SocketTimeoutException e) {
+							System.err.println("Closing idle connection from " + client.getRemoteSocketAddress());
+						} catch (IOException e) {
+							System.err.println("Connection error: " + e.getMessage());
+						}
+					}
+				};
+				try {
+					executor.execute(connection);
+				} catch (RejectedExecutionException e) {
+					try (Socket socket = client) {
+						socket.getOutputStream().write("Error: too many connections\n".getBytes(StandardCharsets.UTF_8));
+					} catch (IOException ignored) {
+						// The client is refused anyway.
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
 		}
-		return builder;
 	}
 
 	/**
-	 * Checks that only one argument, a JSON string, is passed to this
-	 * application and then prettifies it.
+	 * Prints how to use this application and exits with an error.
+	 */
+	private static void usage() {
+		System.out.println("Usage: JSONPrettifier [options] [json | - | --files file... | --daemon port]");
+		System.out.println("  json              prettifies the argument and prints it");
+		System.out.println("  - or nothing      prettifies the standard input");
+		System.out.println("  --files file...   prettifies many files in parallel, printed in order");
+		System.out.println("  --daemon port     serves each connection to localhost:port with the options");
+		System.out.println("Options:");
+		System.out.println("  --minify          removes all the whitespaces");
+		System.out.println("  --strict          fails if the input is not valid JSON");
+		System.out.println("  --lines           formats each line as a separate JSON");
+		System.out.println("  --path path       formats only the values at a path, like $.items[*].id");
+		System.exit(1);
+	}
+
+	/**
+	 * Parses the command line and prettifies the JSON passed as the only
+	 * argument, the standard input, a list of files or the requests of a
+	 * local daemon. See {@link #usage()} for the syntax. A single argument
+	 * which is not an option is prettified as before, for compatibility.
+	 * Exits with 1 if the arguments are wrong and with 2 if the input can't
+	 * be formatted.
 	 * 
 	 * @param args
-	 *            contains the JSON string to prettify
+	 *            the options followed by the JSON string to prettify, the
+	 *            files or the daemon port
 	 */
 	public static void main(String[] args) {
-		if (args == null || args.length != 1) {
-			// Error if zero or more than one arguments.
-			System.out.println(
-					"Wrong arguments number. You must pass exactly one argument, the JSON string to prettify.");
+		boolean minify = false;
+		boolean strict = false;
+		boolean lines = false;
+		String path = null;
+		String[] files = null;
+		int daemonPort = -1;
+		String json = null;
+		boolean stdin = false;
+
+		for (int i = 0; i < args.length && files == null; i++) {
+			switch (args[i]) {
+			case "--minify":
+				minify = true;
+				break;
+			case "--strict":
+				strict = true;
+				break;
+			case "--lines":
+				lines = true;
+				break;
+			case "--path":
+				if (++i == args.length) {
+					usage();
+				}
+				path = args[i];
+				break;
+			case "--files":
+				files = Arrays.copyOfRange(args, i + 1, args.length);
+				break;
+			case "--daemon":
+				if (++i == args.length) {
+					usage();
+				}
+				try {
+					daemonPort = Integer.parseInt(args[i]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "-":
+				stdin = true;
+				break;
+			case "--help":
+				usage();
+				break;
+			default:
+				// Only one JSON argument is allowed.
+				if (json != null) {
+					usage();
+				}
+				json = args[i];
+				break;
+			}
+		}
+		int modes = (json != null ? 1 : 0) + (stdin ? 1 : 0) + (files != null ? 1 : 0) + (daemonPort >= 0 ? 1 : 0);
+		if (modes > 1) {
+			usage();
+		}
+
+		Options options;
+		try {
+			options = (minify ? Options.MINIFIED : Options.DEFAULT).withStrict(strict).withPath(path);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
 			System.exit(1);
-		} else {
-			// Prints the prettified JSON string and exits.
-			System.out.println(prettify(args[0]));
-			System.exit(0);
+			return;
+		}
+
+		// The standard output is used without the PrintStream so that
+		// errors are not ignored.
+		OutputStream out = new FileOutputStream(FileDescriptor.out);
+		try {
+			if (daemonPort >= 0) {
+				serve(daemonPort, options, lines);
+			} else if (files != null) {
+				System.exit(formatFiles(files, out, options, lines) ? 0 : 2);
+			} else if (json != null) {
+				// Prints the prettified JSON string and exits.
+				System.out.println(lines ? new String(prettifyLines(json.getBytes(StandardCharsets.UTF_8), options),
+						StandardCharsets.UTF_8) : prettify(json, options));
+			} else {
+				format(System.in, out, options, lines, Integer.MAX_VALUE);
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
 		}
+		System.exit(0);
 	}
 
 }
@@ -0,0 +1,396 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Donato Rimenti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.aurasphere.scripts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark for {@link JSONPrettifier}. The documents are generated with a
+ * fixed seed and mix nested objects and arrays, numbers, literals and strings
+ * with escapes and non-ASCII characters, in three sizes:
+ *
+ * <ul>
+ * <li>small, about 300 bytes, like a message of an API</li>
+ * <li>medium, about 64 KB, like a configuration or a page of results</li>
+ * <li>large, about 8 MB, like an export</li>
+ * </ul>
+ *
+ * Each benchmark runs for a warmup period and then records the time of each
+ * batch of operations. A batch is a single operation for the medium and large
+ * documents and {@value #SMALL_BATCH_SIZE} operations for the small one, so
+ * that the cost of reading the clock doesn't hide the cost of the operation.
+ * The report shows the throughput in operations and megabytes of input per
+ * second, the average time per operation at several percentiles of the
+ * batches and the bytes allocated per operation, when the JVM can measure
+ * them. <br>
+ * <br>
+ * This file only depends on {@link JSONPrettifier}, so it can be run with:
+ *
+ * <pre>
+ * javac -d out JSONPrettifier.java JSONPrettifierBenchmark.java
+ * java -cp out co.aurasphere.scripts.JSONPrettifierBenchmark [seconds]
+ * </pre>
+ *
+ * @author Donato Rimenti
+ *
+ */
+public class JSONPrettifierBenchmark {
+
+	/**
+	 * Number of operations timed together for the small document.
+	 */
+	private static final int SMALL_BATCH_SIZE = 1000;
+
+	/**
+	 * Default measurement time of each benchmark, in seconds. The warmup
+	 * lasts half of it.
+	 */
+	private static final int DEFAULT_SECONDS = 2;
+
+	/**
+	 * Sink for the results of the operations, so that the JIT can't drop
+	 * them.
+	 */
+	private static volatile long sink;
+
+	/**
+	 * An operation to benchmark.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private interface Operation {
+
+		/**
+		 * Runs the operation once.
+		 *
+		 * @return a value depending on the result, to be consumed
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		long run() throws IOException;
+	}
+
+	/**
+	 * Output stream which only counts the bytes written to it.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class CountingOutputStream extends OutputStream {
+
+		/**
+		 * Number of bytes written so far.
+		 */
+		private long count;
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args
+	 *            optionally, the measurement time of each benchmark in seconds
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void main(String[] args) throws IOException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_SECONDS;
+		Random random = new Random(42);
+		String[] names = { "small", "medium", "large" };
+		int[] sizes = { 300, 64 * 1024, 8 * 1024 * 1024 };
+		int[] batchSizes = { SMALL_BATCH_SIZE, 1, 1 };
+
+		System.out.println(header());
+		for (int i = 0; i < names.length; i++) {
+			String text = document(random, sizes[i]);
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			byte[] minified = JSONPrettifier.minify(bytes);
+			String name = names[i];
+			int batchSize = batchSizes[i];
+
+			run("prettify(String) " + name, seconds, batchSize, bytes.length,
+					() -> JSONPrettifier.prettify(text).length());
+			run("prettify(byte[]) " + name, seconds, batchSize, bytes.length,
+					() -> JSONPrettifier.prettify(bytes).length);
+			run("prettify(byte[]) minified " + name, seconds, batchSize,
+					minified.length,
+					() -> JSONPrettifier.prettify(minified).length);
+			run("prettify(InputStream) " + name, seconds, batchSize,
+					bytes.length, () -> {
+						CountingOutputStream out = new CountingOutputStream();
+						JSONPrettifier.prettify(new ByteArrayInputStream(bytes),
+								out);
+						return out.count;
+					});
+			run("minify(byte[]) " + name, seconds, batchSize, bytes.length,
+					() -> JSONPrettifier.minify(bytes).length);
+		}
+	}
+
+	/**
+	 * Generates a JSON document of about the given size.
+	 *
+	 * @param random
+	 *            the source of randomness
+	 * @param size
+	 *            the approximate size of the document, in characters
+	 * @return a JSON array of objects
+	 */
+	private static String document(Random random, int size) {
+		StringBuilder builder = new StringBuilder(size + 1024);
+		builder.append('[');
+		while (builder.length() < size) {
+			if (builder.length() > 1) {
+				builder.append(", ");
+			}
+			value(builder, random, 0, false);
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * Appends a random JSON value, with objects more likely at the top
+	 * levels and scalars more likely deeper. Arrays are only generated as the
+	 * last value of their container: the formatter keeps the original quirk
+	 * of indenting everything after "]," one more level, which would make the
+	 * output of the large document grow quadratically.
+	 *
+	 * @param builder
+	 *            where the value is appended
+	 * @param random
+	 *            the source of randomness
+	 * @param depth
+	 *            the nesting level of the value
+	 * @param last
+	 *            whether the value is the last one of its container
+	 */
+	private static void value(StringBuilder builder, Random random, int depth,
+			boolean last) {
+		int kind = depth == 0 ? 0 : random.nextInt(4 + depth * 2);
+		if (kind == 1 && !last) {
+			kind = 2;
+		}
+		switch (kind) {
+		case 0:
+			builder.append('{');
+			int fields = 2 + random.nextInt(5);
+			for (int i = 0; i < fields; i++) {
+				if (i > 0) {
+					builder.append(',');
+				}
+				builder.append("\n  \"field").append(i).append("\" : ");
+				value(builder, random, depth + 1, i == fields - 1);
+			}
+			builder.append('}');
+			break;
+		case 1:
+			builder.append('[');
+			int items = random.nextInt(5);
+			for (int i = 0; i < items; i++) {
+				if (i > 0) {
+					builder.append(", ");
+				}
+				value(builder, random, depth + 1, i == items - 1);
+			}
+			builder.append(']');
+			break;
+		case 2:
+			builder.append(random.nextInt(3) == 0 ? "true"
+					: random.nextBoolean() ? "false" : "null");
+			break;
+		case 3:
+			builder.append(random.nextInt(1000000) / 100.0);
+			break;
+		default:
+			builder.append('"');
+			int length = 3 + random.nextInt(30);
+			for (int i = 0; i < length; i++) {
+				int c = random.nextInt(40);
+				if (c == 0) {
+					builder.append("\\\"");
+				} else if (c == 1) {
+					builder.append("\\n");
+				} else if (c == 2) {
+					builder.append('\u00e8');
+				} else {
+					builder.append((char) ('a' + c % 26));
+				}
+			}
+			builder.append('"');
+			break;
+		}
+	}
+
+	/**
+	 * Returns the header of the report.
+	 *
+	 * @return the header line
+	 */
+	private static String header() {
+		return String.format("%-36s %12s %10s %12s %12s %12s %12s %14s",
+				"Benchmark", "ops/s", "MB/s", "p50 us", "p90 us", "p99 us",
+				"p99.9 us", "bytes/op");
+	}
+
+	/**
+	 * Warms up and measures an operation, then prints a line of the report.
+	 *
+	 * @param name
+	 *            the name of the benchmark
+	 * @param seconds
+	 *            the measurement time
+	 * @param batchSize
+	 *            the number of operations timed together
+	 * @param inputSize
+	 *            the size of the input of each operation, in bytes
+	 * @param operation
+	 *            the operation to measure
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void run(String name, int seconds, int batchSize,
+			int inputSize, Operation operation) throws IOException {
+		// Warmup.
+		long end = System.nanoTime() + seconds * 500_000_000L;
+		while (System.nanoTime() < end) {
+			batch(operation, batchSize);
+		}
+
+		// Measurement.
+		long[] samples = new long[1024];
+		int count = 0;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		end = start + seconds * 1_000_000_000L;
+		long now = start;
+		while (now < end) {
+			if (count == samples.length) {
+				samples = Arrays.copyOf(samples, count * 2);
+			}
+			long batchStart = now;
+			batch(operation, batchSize);
+			now = System.nanoTime();
+			samples[count++] = now - batchStart;
+		}
+		long allocatedAfter = allocatedBytes();
+
+		Arrays.sort(samples, 0, count);
+		long operations = (long) count * batchSize;
+		double elapsed = (now - start) / 1e9;
+		System.out.println(String.format(
+				"%-36s %12.1f %10.1f %12.2f %12.2f %12.2f %12.2f %14s", name,
+				operations / elapsed, operations * inputSize / elapsed / 1e6,
+				percentile(samples, count, batchSize, 0.5),
+				percentile(samples, count, batchSize, 0.9),
+				percentile(samples, count, batchSize, 0.99),
+				percentile(samples, count, batchSize, 0.999),
+				allocatedBefore < 0 ? "n/a" : String.format("%.0f",
+						(double) (allocatedAfter - allocatedBefore)
+								/ operations)));
+	}
+
+	/**
+	 * Runs a batch of operations.
+	 *
+	 * @param operation
+	 *            the operation to run
+	 * @param batchSize
+	 *            the number of operations to run
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void batch(Operation operation, int batchSize)
+			throws IOException {
+		long result = 0;
+		for (int i = 0; i < batchSize; i++) {
+			result += operation.run();
+		}
+		sink = result;
+	}
+
+	/**
+	 * Returns a percentile of the sorted batch times, per operation.
+	 *
+	 * @param samples
+	 *            the sorted batch times
+	 * @param count
+	 *            the number of samples
+	 * @param batchSize
+	 *            the number of operations in each batch
+	 * @param percentile
+	 *            the percentile, between 0 and 1
+	 * @return the average time of an operation in the batch at the given
+	 *         percentile, in microseconds
+	 */
+	private static double percentile(long[] samples, int count, int batchSize,
+			double percentile) {
+		int index = (int) Math.min(count - 1, Math.ceil(percentile * count) - 1);
+		return samples[Math.max(0, index)] / 1e3 / batchSize;
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread.
+	 *
+	 * @return the allocated bytes, or -1 if the JVM doesn't support this
+	 *         measurement
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,425 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Donato Rimenti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.aurasphere.scripts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks that {@link JSONPrettifier} formats its input byte for byte like the
+ * original formatter, which is replayed by {@link Legacy}. The original
+ * algorithm is kept as it was, with its quirks, except for the two changes
+ * made on purpose since then:
+ *
+ * <ul>
+ * <li>tabs and carriage returns outside quotes are trimmed like spaces</li>
+ * <li>a quote inside a string is escaped only by an odd number of
+ * backslashes, and a backslash outside a string escapes nothing</li>
+ * </ul>
+ *
+ * The input is a fixed corpus covering whitespace runs, nested empty
+ * containers, escapes, truncated documents and multiple documents, followed
+ * by random strings drawn with a fixed seed from the characters the formatter
+ * cares about. Each input goes through the String, byte[], Reader and
+ * InputStream entry points with the default options. The mismatches are
+ * printed on the standard error and the exit code is 1 if there's any. <br>
+ * <br>
+ * This file only depends on {@link JSONPrettifier}, so it can be run with:
+ *
+ * <pre>
+ * javac -d out JSONPrettifier.java JSONPrettifierCompatibilityCheck.java
+ * java -cp out co.aurasphere.scripts.JSONPrettifierCompatibilityCheck [random inputs]
+ * </pre>
+ *
+ * @author Donato Rimenti
+ *
+ */
+public class JSONPrettifierCompatibilityCheck {
+
+	/**
+	 * Default number of random inputs.
+	 */
+	private static final int DEFAULT_RANDOM_INPUTS = 200000;
+
+	/**
+	 * Maximum number of mismatches printed.
+	 */
+	private static final int MAX_REPORTED_MISMATCHES = 10;
+
+	/**
+	 * Characters the random inputs are made of. Most of them change what the
+	 * formatter does, the others are plain content, including a non-ASCII one
+	 * to check the UTF-8 decoding.
+	 */
+	private static final String RANDOM_ALPHABET = "{}[]{}[]\"\",,::    \\\\..\n\t\rab1\u00e8";
+
+	/**
+	 * Inputs checked before the random ones.
+	 */
+	private static final String[] CORPUS = {
+			// Plain documents.
+			"{\"a\":1,\"b\":[1,2,3],\"c\":{\"d\":null}}",
+			"[{\"a\":1},{\"b\":2},{\"c\":3}]",
+			"[[1,2],[3,4]]",
+			"{\"a\":[{\"b\":[{\"c\":[]}]}]}",
+			"\"just a string\"",
+			"42",
+			// Whitespace runs.
+			"{   \"a\"   :   1   ,   \"b\"   :   [   1   ,   2   ]   }",
+			"[ {  } ,   { } ,{}    ]",
+			"{\"a\" :     {\"b\":1}     ,     \"c\":2}",
+			"{\"a\":1}          ,          {\"b\":2}",
+			"{\t\"a\"\t:\t1\r\n,\r\n\"b\":2}",
+			"      {\"a\":1}",
+			"{\"a\":1}      ",
+			"{\"a\":\"   spaces   inside   \"}",
+			// Nested empty containers.
+			"{}", "[]", "[[]]", "{{}}", "[{}]", "{\"a\":{}}",
+			"[[[[[]]]]]", "{\"a\":[],\"b\":{},\"c\":[{}]}",
+			"[{},{},[],[]]", "[ [ ] , { } , [ { } ] ]",
+			// Escapes.
+			"{\"a\":\"quote \\\" inside\"}",
+			"{\"a\":\"backslash \\\\\",\"b\":[1]}",
+			"{\"a\":\"\\\\\\\"\",\"b\":{}}",
+			"{\"a\":\"\\u0041\\u00e8\\n\\t\",\"b\":2}",
+			"{\"a\":\"{[,:]}\"}",
+			"[\"\\\\\",\"\\\\\\\\\",\"x\\\\\\\"y\"]",
+			// Truncated documents.
+			"{\"a\":[1,2,3...\n{\"b\":2}",
+			"{\"a\":\"truncated inside a string...\n[1,2]",
+			"[[[{...\n]]]",
+			"{\"a\":1 . . .\n{}",
+			"...\n...\n",
+			// Multiple documents and stray separators.
+			"{\"a\":1}{\"b\":2}",
+			"{\"a\":1},{\"b\":2},[3]",
+			",,,", "::", "}}]]", "]{", "{,}", "[,]",
+			// Non-ASCII content.
+			"{\"citt\u00e0\":\"Mil\u00e0no \u20ac \ud83d\ude00\"}", };
+
+	/**
+	 * Copy of the original formatter, with the two changes listed in
+	 * {@link JSONPrettifierCompatibilityCheck}.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class Legacy {
+
+		/**
+		 * String used to represent one indentation level.
+		 */
+		private static final String INDENTATION_CHAR = "  ";
+
+		/**
+		 * Formats the JSON like the original formatter.
+		 *
+		 * @param data
+		 *            the JSON string to prettify
+		 * @return the JSON string prettified
+		 */
+		private static String prettify(String data) {
+			if (data == null || data.isEmpty()) {
+				return "";
+			}
+			StringBuilder builder = new StringBuilder();
+			boolean outsideQuotes = true;
+			boolean escaped = false;
+			int[] currentIndentationLevel = new int[1];
+			char currentChar;
+			for (int i = 0; i < data.length(); i++) {
+				currentChar = data.charAt(i);
+				switch (currentChar) {
+				case '[':
+				case '{':
+					if (outsideQuotes) {
+						builder.append(indent(i == 0, currentIndentationLevel));
+					}
+					builder.append(currentChar);
+					if (outsideQuotes) {
+						builder.append(indent(false, currentIndentationLevel));
+					}
+					break;
+				case ']':
+				case '}':
+					if (outsideQuotes) {
+						builder.append(deindent(false, currentIndentationLevel));
+					}
+					builder.append(currentChar);
+					if (outsideQuotes && !charAfter(data, i, ',')) {
+						builder.append(deindent(charAfter(data, i, '}'),
+								currentIndentationLevel));
+					}
+					if (currentIndentationLevel[0] == 0) {
+						builder.append("\n\n");
+					}
+					break;
+				case ',':
+					builder.append(currentChar);
+					boolean wasTokenBeforeAnObject = charBefore(data, i, '}');
+					boolean isTokenAfterAnObject = charAfter(data, i, '{');
+					if (outsideQuotes && wasTokenBeforeAnObject) {
+						builder.append(deindent(isTokenAfterAnObject,
+								currentIndentationLevel));
+					}
+					if (outsideQuotes && !wasTokenBeforeAnObject) {
+						builder.append(currentIndentationToString(
+								isTokenAfterAnObject, currentIndentationLevel));
+					}
+					break;
+				case '"':
+					// Changed: only a quote inside a string can be escaped.
+					if (outsideQuotes || !escaped) {
+						outsideQuotes = !outsideQuotes;
+					}
+					builder.append(currentChar);
+					break;
+				case '\n':
+					if (charBefore(data, i, '.') && charBefore(data, i - 1, '.')
+							&& charBefore(data, i - 2, '.')) {
+						currentIndentationLevel[0] = 0;
+						outsideQuotes = true;
+						builder.append("\n\n");
+					}
+					break;
+				// Changed: tabs and carriage returns are trimmed like spaces.
+				case ' ':
+				case '\t':
+				case '\r':
+					if (!outsideQuotes) {
+						builder.append(currentChar);
+					}
+					break;
+				case ':':
+					if (outsideQuotes) {
+						builder.append(" ").append(currentChar).append(" ");
+					} else {
+						builder.append(currentChar);
+					}
+					break;
+				default:
+					builder.append(currentChar);
+				}
+				escaped = !outsideQuotes && !escaped && currentChar == '\\';
+			}
+			return builder.toString();
+		}
+
+		/**
+		 * Returns the current indentation level as a String.
+		 *
+		 * @param noNewLine
+		 *            whether to omit the leading newline
+		 * @param currentIndentationLevel
+		 *            the current indentation level
+		 * @return the indentation
+		 */
+		private static String currentIndentationToString(boolean noNewLine,
+				int[] currentIndentationLevel) {
+			StringBuilder builder = new StringBuilder();
+			int indentation = currentIndentationLevel[0];
+			if (indentation > 0 && !noNewLine) {
+				builder.append("\n");
+			}
+			for (int i = 0; i < indentation; i++) {
+				builder.append(INDENTATION_CHAR);
+			}
+			return builder.toString();
+		}
+
+		/**
+		 * Adds a level of indentation and returns the indentation.
+		 *
+		 * @param noNewLine
+		 *            whether to omit the leading newline
+		 * @param currentIndentationLevel
+		 *            the current indentation level
+		 * @return the indentation
+		 */
+		private static String indent(boolean noNewLine,
+				int[] currentIndentationLevel) {
+			currentIndentationLevel[0]++;
+			return currentIndentationToString(noNewLine,
+					currentIndentationLevel);
+		}
+
+		/**
+		 * Removes a level of indentation and returns the indentation.
+		 *
+		 * @param noNewLine
+		 *            whether to omit the leading newline
+		 * @param currentIndentationLevel
+		 *            the current indentation level
+		 * @return the indentation
+		 */
+		private static String deindent(boolean noNewLine,
+				int[] currentIndentationLevel) {
+			currentIndentationLevel[0]--;
+			return currentIndentationToString(noNewLine,
+					currentIndentationLevel);
+		}
+
+		/**
+		 * Checks whether the character before the given index, skipping
+		 * spaces, is the given one.
+		 *
+		 * @param data
+		 *            the input
+		 * @param index
+		 *            the index of the current character
+		 * @param character
+		 *            the character to match
+		 * @return true if the character matches, false otherwise
+		 */
+		private static boolean charBefore(String data, int index,
+				char character) {
+			if (index - 1 < 0 || data.length() <= index - 1) {
+				return false;
+			}
+			do {
+				index--;
+			} while (index - 1 > 0 && data.charAt(index) == ' ');
+			return character == data.charAt(index);
+		}
+
+		/**
+		 * Checks whether the character after the given index, skipping
+		 * spaces, is the given one.
+		 *
+		 * @param data
+		 *            the input
+		 * @param index
+		 *            the index of the current character
+		 * @param character
+		 *            the character to match
+		 * @return true if the character matches, false otherwise
+		 */
+		private static boolean charAfter(String data, int index,
+				char character) {
+			if (index + 1 < 0 || data.length() <= index + 1) {
+				return false;
+			}
+			do {
+				index++;
+			} while (data.length() > index + 1 && data.charAt(index) == ' ');
+			return character == data.charAt(index);
+		}
+	}
+
+	/**
+	 * Runs the check.
+	 *
+	 * @param args
+	 *            optionally, the number of random inputs
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void main(String[] args) throws IOException {
+		int randomInputs = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_RANDOM_INPUTS;
+		int mismatches = 0;
+		for (String input : CORPUS) {
+			mismatches += check(input, mismatches);
+		}
+		Random random = new Random(42);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < randomInputs; i++) {
+			builder.setLength(0);
+			int length = random.nextInt(64);
+			for (int j = 0; j < length; j++) {
+				builder.append(RANDOM_ALPHABET.charAt(random
+						.nextInt(RANDOM_ALPHABET.length())));
+			}
+			mismatches += check(builder.toString(), mismatches);
+		}
+
+		int inputs = CORPUS.length + randomInputs;
+		if (mismatches > 0) {
+			System.err.println(mismatches + " of " + inputs
+					+ " inputs are formatted differently");
+			System.exit(1);
+		}
+		System.out.println("All " + inputs
+				+ " inputs are formatted like the original formatter");
+	}
+
+	/**
+	 * Formats an input through every entry point and compares the results
+	 * with the original formatter.
+	 *
+	 * @param input
+	 *            the input to check
+	 * @param mismatches
+	 *            the number of mismatches found so far
+	 * @return 0 if every entry point matches, 1 otherwise
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static int check(String input, int mismatches) throws IOException {
+		String expected = Legacy.prettify(input);
+		byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+
+		StringWriter writer = new StringWriter();
+		JSONPrettifier.prettify(new StringReader(input), writer);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		JSONPrettifier.prettify(new ByteArrayInputStream(bytes), stream);
+
+		String[] actual = { JSONPrettifier.prettify(input),
+				new String(JSONPrettifier.prettify(bytes),
+						StandardCharsets.UTF_8), writer.toString(),
+				new String(stream.toByteArray(), StandardCharsets.UTF_8) };
+		String[] entryPoints = { "String", "byte[]", "Reader", "InputStream" };
+		for (int i = 0; i < actual.length; i++) {
+			if (!expected.equals(actual[i])) {
+				if (mismatches < MAX_REPORTED_MISMATCHES) {
+					System.err.println("prettify(" + entryPoints[i]
+							+ ") differs for " + quote(input) + "\n  expected "
+							+ quote(expected) + "\n  actual   "
+							+ quote(actual[i]));
+				}
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns a string with its control characters escaped, for printing.
+	 *
+	 * @param text
+	 *            the text to quote
+	 * @return the quoted text
+	 */
+	private static String quote(String text) {
+		return "\"" + text.replace("\n", "\\n").replace("\t", "\\t")
+				.replace("\r", "\\r") + "\"";
+	}
+
+}
@@ -24,10 +24,26 @@
 
 package co.aurasphere.scripts;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Simple UDP server implementation. This program has been designed to be run
@@ -43,13 +59,14 @@ import java.net.InetAddress;
  * address and port. This mode is enabled by passing 0 as the first argument and
  * then any value</li>
  * <li>man-in-the-middle, in this mode the server will redirect the packets as
- * in redirect mode and send the reply received to the original server. Please
- * note that the implementation of this mode is really naive and assumes that
- * each even packet is a reply, so multiple requests within a short window of
- * time may cause issues.</li>
+ * in redirect mode and send the reply received to the original server. Like a
+ * NAT, each client gets its own upstream socket on an ephemeral port, so the
+ * replies always go back to the right client even when many of them talk at
+ * the same time. A client is forgotten after a minute without packets, and
+ * up to 512 clients are served at once.</li>
  * </ul>
  * 
- * The server takes 3 or 4 arguments:
+ * The server takes from 3 to 8 arguments:
  * 
  * <ol>
  * <li>the binding port for the server</li>
@@ -60,6 +77,15 @@ import java.net.InetAddress;
  * otherwise it will enabled. In this mode, the server will capture a packet,
  * send it to the forwarding address and port, get the reply and forward it back
  * to the first request originator</li>
+ * <li>(optional) the size in bytes of the buffers where the packets are
+ * received, up to 65507 (the default). Bigger packets are truncated</li>
+ * <li>(optional) the format of the packet log: hex (the default), line, pcap
+ * or none</li>
+ * <li>(optional) the file where the packets are logged, required by the pcap
+ * format. By default, or with -, they're logged to the standard output</li>
+ * <li>(optional) the number of worker threads, each with its own socket bound
+ * to the binding port through SO_REUSEPORT. The kernel keeps the packets of
+ * each client on the same worker. The default is 1</li>
  * </ol>
  * 
  * @author Donato Rimenti
@@ -68,21 +94,724 @@ import java.net.InetAddress;
 public class UdpInterceptorServer {
 
 	/**
-	 * Socket used to send and receive data.
+	 * Channel bound to the server port, used by the first worker to send and
+	 * receive data.
 	 */
-	private static DatagramSocket serverSocket;
+	private static DatagramChannel serverChannel;
 
 	/**
-	 * Constant which represents a byte with value 0.
+	 * Maximum size of the payload of a UDP packet over IPv4.
 	 */
-	private final static byte ZERO_BYTE = Byte.parseByte("0");
+	private final static int MAX_PACKET_SIZE = 65507;
+
+	/**
+	 * Maximum number of packets waiting for the channel to be writable. When
+	 * the queue is full, further packets are dropped as the network would do.
+	 */
+	private final static int MAX_PENDING_PACKETS = 1024;
+
+	/**
+	 * How long a man-in-the-middle flow is kept without any packet.
+	 */
+	private final static long FLOW_IDLE_TIMEOUT_MILLIS = 60000;
+
+	/**
+	 * How often the idle man-in-the-middle flows are looked for.
+	 */
+	private final static long FLOW_EVICTION_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * Maximum number of man-in-the-middle flows. Each flow holds a file
+	 * descriptor, so this stays below the usual limit of 1024 open files.
+	 * The packets of new clients are dropped while the table is full.
+	 */
+	private final static int MAX_FLOWS = 512;
+
+	/**
+	 * How often the packets which may have been truncated, or which have
+	 * been dropped since there were too many flows, are reported.
+	 */
+	private final static long REPORT_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * Maximum number of packets received from a channel each time it's
+	 * selected, so that under a sustained load the other channels, the queue
+	 * of pending packets and the periodic tasks still get their turn.
+	 */
+	private final static int MAX_PACKETS_PER_SELECT = 256;
+
+	/**
+	 * Pool of direct buffers used to receive the packets. Each buffer is
+	 * reused once its packet has been sent, so no memory is allocated for
+	 * each packet once the pool has warmed up. This class is not ThreadSafe.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class BufferPool {
+
+		/**
+		 * The buffers currently not in use.
+		 */
+		private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+
+		/**
+		 * The size of each buffer.
+		 */
+		private final int bufferSize;
+
+		/**
+		 * Builds a new pool.
+		 *
+		 * @param bufferSize
+		 *            the size of each buffer
+		 */
+		private BufferPool(int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+
+		/**
+		 * Gets a buffer, allocating a new one only if none is free.
+		 *
+		 * @return an empty buffer
+		 */
+		private ByteBuffer acquire() {
+			ByteBuffer buffer = freeBuffers.pollFirst();
+			return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		/**
+		 * Gives a buffer back to the pool.
+		 *
+		 * @param buffer
+		 *            the buffer which is no longer used
+		 */
+		private void release(ByteBuffer buffer) {
+			buffer.clear();
+			freeBuffers.addFirst(buffer);
+		}
+	}
+
+	/**
+	 * Formats of the packet log.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	public enum LogFormat {
+
+		/**
+		 * A block for each packet with its address, its length and a hex dump
+		 * of its content.
+		 */
+		HEX,
+
+		/**
+		 * A line for each packet with its time, direction, address, length and
+		 * content in hex.
+		 */
+		LINE,
+
+		/**
+		 * A binary capture file in the pcap format, readable by Wireshark and
+		 * tcpdump. Each packet is written with synthetic IP and UDP headers.
+		 */
+		PCAP,
+
+		/**
+		 * Packets are not logged at all.
+		 */
+		NONE
+	}
+
+	/**
+	 * Asynchronous log of the packets. The forwarding threads copy each packet
+	 * into a preallocated slot of a bounded lock-free ring buffer and go on,
+	 * while a background thread drains the ring in batches and writes them
+	 * through a buffered stream. When the ring is full, the packet is not
+	 * logged and a counter of the dropped entries is increased, so logging
+	 * never slows down the forwarding. Only the first bytes of big packets
+	 * are copied, so the ring takes a bounded amount of memory. The ring
+	 * accepts any number of producers: slots are claimed with a
+	 * compare-and-set on the tail and published through a sequence number
+	 * for each slot.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class PacketLog implements Runnable {
+
+		/**
+		 * Number of slots in the ring, a power of two.
+		 */
+		private static final int CAPACITY = 4096;
+
+		/**
+		 * Maximum number of entries written before checking for the others.
+		 */
+		private static final int BATCH_SIZE = 256;
+
+		/**
+		 * How long the writer sleeps when there's nothing to write.
+		 */
+		private static final long IDLE_WAIT_NANOS = 1000000;
+
+		/**
+		 * How often the dropped entries are reported while the writer is
+		 * busy.
+		 */
+		private static final long DROP_REPORT_INTERVAL_NANOS = 1000000000;
+
+		/**
+		 * Maximum number of bytes of a packet copied in the log, so that the
+		 * ring takes a bounded amount of memory. Bigger packets are logged
+		 * cut, along with their original length, as the snapshot length of a
+		 * capture does.
+		 */
+		private static final int MAX_LOGGED_BYTES = 2048;
+
+		/**
+		 * Number of bytes of each line of the hex dump.
+		 */
+		private static final int HEX_DUMP_WIDTH = 16;
+
+		/**
+		 * Digits used to print bytes in hex.
+		 */
+		private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+		/**
+		 * An entry of the ring. Its fields are written by the producer before
+		 * publishing the slot and read by the writer after.
+		 *
+		 * @author Donato Rimenti
+		 *
+		 */
+		private static final class Slot {
+
+			/**
+			 * Copy of the content of the packet, up to
+			 * {@link PacketLog#MAX_LOGGED_BYTES}. Grows as needed and then is
+			 * reused.
+			 */
+			private byte[] data = new byte[0];
+
+			/**
+			 * Length of the packet.
+			 */
+			private int length;
+
+			/**
+			 * Number of bytes of the packet copied in {@link #data}.
+			 */
+			private int loggedLength;
+
+			/**
+			 * When the packet has been logged, in microseconds since the
+			 * epoch.
+			 */
+			private long timeMicros;
+
+			/**
+			 * Whether the packet is incoming or outcoming.
+			 */
+			private boolean incoming;
+
+			/**
+			 * Where the packet comes from or is sent to.
+			 */
+			private InetSocketAddress address;
+		}
+
+		/**
+		 * The slots of the ring.
+		 */
+		private final Slot[] slots = new Slot[CAPACITY];
+
+		/**
+		 * Sequence number of each slot. A slot can be written at position p
+		 * when its sequence is p and read when it's p + 1.
+		 */
+		private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+
+		/**
+		 * Next position to write.
+		 */
+		private final AtomicLong tail = new AtomicLong();
+
+		/**
+		 * Next position to read, used by the writer only.
+		 */
+		private long head;
+
+		/**
+		 * Number of packets logged.
+		 */
+		private final AtomicLong loggedEntries = new AtomicLong();
+
+		/**
+		 * Number of packets not logged since the ring was full.
+		 */
+		private final AtomicLong droppedEntries = new AtomicLong();
+
+		/**
+		 * Number of dropped entries last reported.
+		 */
+		private long reportedDrops;
+
+		/**
+		 * The format of the log.
+		 */
+		private final LogFormat format;
+
+		/**
+		 * Where the log is written.
+		 */
+		private final OutputStream out;
+
+		/**
+		 * Port where the server is listening, used in the synthetic headers of
+		 * the capture file.
+		 */
+		private final int localPort;
+
+		/**
+		 * Buffer used to build the text of an entry.
+		 */
+		private final StringBuilder text = new StringBuilder();
+
+		/**
+		 * Buffer where the text of an entry is encoded before being written.
+		 * Grows as needed and then is reused.
+		 */
+		private byte[] encodedText = new byte[0];
+
+		/**
+		 * Buffer used to build the headers of a pcap record.
+		 */
+		private final ByteBuffer header = ByteBuffer.allocate(64);
+
+		/**
+		 * Whether the writer should stop once the ring is empty.
+		 */
+		private volatile boolean stopping;
+
+		/**
+		 * The background thread which writes the log.
+		 */
+		private final Thread writer;
+
+		/**
+		 * Builds a new log and starts its writer thread.
+		 *
+		 * @param format
+		 *            the format of the log
+		 * @param out
+		 *            where the log is written
+		 * @param localPort
+		 *            port where the server is listening
+		 * @throws IOException
+		 *             if the header of the capture file can't be written
+		 */
+		private PacketLog(LogFormat format, OutputStream out, int localPort) throws IOException {
+			this.format = format;
+			this.out = new BufferedOutputStream(out, 1 << 16);
+			this.localPort = localPort;
+			for (int i = 0; i < CAPACITY; i++) {
+				slots[i] = new Slot();
+				sequences.set(i, i);
+			}
+			if (format == LogFormat.PCAP) {
+				writePcapHeader();
+			}
+			this.writer = new Thread(this, "packet-log");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		/**
+		 * Adds a packet to the log, or drops it if the ring is full. Up to
+		 * {@link #MAX_LOGGED_BYTES} of the packet are copied, so the buffer can
+		 * be reused as soon as this method returns.
+		 *
+		 * @param data
+		 *            the content of the packet, from index 0 to its limit
+		 * @param address
+		 *            the address where the packet comes from or is sent to
+		 * @param incoming
+		 *            whether the packet is incoming (true) or outcoming
+		 *            (false)
+		 */
+		private void record(ByteBuffer data, SocketAddress address, boolean incoming) {
+			long position = tail.get();
+			while (true) {
+				int index = (int) (position & (CAPACITY - 1));
+				long available = sequences.get(index) - position;
+				if (available == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						break;
+					}
+					position = tail.get();
+				} else if (available < 0) {
+					// The writer is a whole ring behind.
+					droppedEntries.incrementAndGet();
+					return;
+				} else {
+					// Another producer claimed this position.
+					position = tail.get();
+				}
+			}
+
+			Slot slot = slots[(int) (position & (CAPACITY - 1))];
+			int length = data.limit();
+			int loggedLength = Math.min(length, MAX_LOGGED_BYTES);
+			if (slot.data.length < loggedLength) {
+				slot.data = new byte[loggedLength];
+			}
+			int originalPosition = data.position();
+			data.position(0);
+			data.get(slot.data, 0, loggedLength);
+			data.position(originalPosition);
+			slot.length = length;
+			slot.loggedLength = loggedLength;
+			slot.timeMicros = System.currentTimeMillis() * 1000;
+			slot.incoming = incoming;
+			slot.address = (InetSocketAddress) address;
+			sequences.lazySet((int) (position & (CAPACITY - 1)), position + 1);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				long lastReport = System.nanoTime();
+				while (true) {
+					if (drain() == 0) {
+						out.flush();
+						reportDrops();
+						lastReport = System.nanoTime();
+						if (stopping) {
+							return;
+						}
+						LockSupport.parkNanos(IDLE_WAIT_NANOS);
+					} else if (System.nanoTime() - lastReport >= DROP_REPORT_INTERVAL_NANOS) {
+						// The ring may never be empty when it's full.
+						reportDrops();
+						lastReport = System.nanoTime();
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Packet log stopped: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Writes up to a batch of entries.
+		 *
+		 * @return the number of entries written
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		private int drain() throws IOException {
+			int written = 0;
+			while (written < BATCH_SIZE) {
+				int index = (int) (head & (CAPACITY - 1));
+				if (sequences.get(index) != head + 1) {
+					break;
+				}
+				write(slots[index]);
+				sequences.lazySet(index, head + CAPACITY);
+				head++;
+				written++;
+			}
+			loggedEntries.addAndGet(written);
+			return written;
+		}
+
+		/**
+		 * Reports on the standard error the entries dropped since the last
+		 * report.
+		 */
+		private void reportDrops() {
+			long drops = droppedEntries.get();
+			if (drops != reportedDrops) {
+				reportedDrops = drops;
+				System.err.println("Packet log full, entries dropped so far: " + drops + " (logged: "
+						+ loggedEntries.get() + ")");
+			}
+		}
+
+		/**
+		 * Stops the writer once all the entries in the ring have been written.
+		 */
+		private void close() {
+			stopping = true;
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Writes an entry in the format of this log.
+		 *
+		 * @param slot
+		 *            the entry to write
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		private void write(Slot slot) throws IOException {
+			if (format == LogFormat.PCAP) {
+				writePcapRecord(slot);
+				return;
+			}
+			text.setLength(0);
+			if (format == LogFormat.LINE) {
+				text.append(slot.timeMicros / 1000).append(slot.incoming ? " in " : " out ").append(slot.address)
+						.append(' ').append(slot.length).append(' ');
+				for (int i = 0; i < slot.loggedLength; i++) {
+					appendHex(slot.data[i]);
+				}
+				text.append('\n');
+			} else {
+				text.append("-------- UDP packet ").append(slot.incoming ? "received" : "sent").append(" --------\n");
+				text.append("Socket Address: ").append(slot.address).append('\n');
+				text.append("Length : ").append(slot.length).append('\n');
+				for (int offset = 0; offset < slot.loggedLength; offset += HEX_DUMP_WIDTH) {
+					appendHexDumpLine(slot, offset);
+				}
+				if (slot.loggedLength < slot.length) {
+					text.append("(").append(slot.length - slot.loggedLength).append(" more bytes not logged)\n");
+				}
+				text.append("-------------------------------------\n\n");
+			}
+			// The text is ASCII, so each character is a byte.
+			int length = text.length();
+			if (encodedText.length < length) {
+				encodedText = new byte[Math.max(length, encodedText.length * 2)];
+			}
+			for (int i = 0; i < length; i++) {
+				encodedText[i] = (byte) text.charAt(i);
+			}
+			out.write(encodedText, 0, length);
+		}
+
+		/**
+		 * Appends a line of the hex dump: the offset, the bytes in hex and
+		 * the printable ASCII characters.
+		 *
+		 * @param slot
+		 *            the entry to dump
+		 * @param offset
+		 *            the index of the first byte of the line
+		 */
+		private void appendHexDumpLine(Slot slot, int offset) {
+			for (int shift = 28; shift >= 0; shift -= 4) {
+				text.append(HEX_DIGITS[(offset >>> shift) & 0xF]);
+			}
+			text.append("  ");
+			int end = Math.min(offset + HEX_DUMP_WIDTH, slot.loggedLength);
+			for (int i = offset; i < offset + HEX_DUMP_WIDTH; i++) {
+				if (i < end) {
+					appendHex(slot.data[i]);
+					text.append(' ');
+				} else {
+					text.append("   ");
+				}
+			}
+			text.append(" |");
+			for (int i = offset; i < end; i++) {
+				char c = (char) (slot.data[i] & 0xFF);
+				text.append(c >= 0x20 && c < 0x7F ? c : '.');
+			}
+			text.append("|\n");
+		}
+
+		/**
+		 * Appends a byte in hex.
+		 *
+		 * @param b
+		 *            the byte to append
+		 */
+		private void appendHex(byte b) {
+			text.append(HEX_DIGITS[(b >>> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+		}
+
+		/**
+		 * Writes the global header of a pcap file with raw IP packets.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		private void writePcapHeader() throws IOException {
+			header.clear();
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			// Magic number for microsecond timestamps, version 2.4.
+			header.putInt(0xa1b2c3d4).putShort((short) 2).putShort((short) 4);
+			// Time zone, accuracy, snapshot length and LINKTYPE_RAW. The
+			// snapshot length covers the biggest headers and logged payload.
+			header.putInt(0).putInt(0).putInt(40 + 8 + MAX_LOGGED_BYTES).putInt(101);
+			out.write(header.array(), 0, header.position());
+		}
+
+		/**
+		 * Writes a pcap record with the packet wrapped in synthetic IPv4 or
+		 * IPv6 and UDP headers. The local address is unknown, since the
+		 * server may listen on all the interfaces, so the unspecified address
+		 * is used.
+		 *
+		 * @param slot
+		 *            the entry to write
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		private void writePcapRecord(Slot slot) throws IOException {
+			byte[] remote = slot.address.getAddress().getAddress();
+			boolean ipv4 = remote.length == 4;
+			int ipHeaderLength = ipv4 ? 20 : 40;
+			int udpLength = slot.length + 8;
+
+			// Record header, in the same byte order of the global header.
+			header.clear();
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt((int) (slot.timeMicros / 1000000)).putInt((int) (slot.timeMicros % 1000000));
+			// Captured and original length, which differ for the packets cut
+			// at MAX_LOGGED_BYTES.
+			header.putInt(ipHeaderLength + 8 + slot.loggedLength).putInt(ipHeaderLength + udpLength);
+
+			// IP header, in network byte order.
+			header.order(ByteOrder.BIG_ENDIAN);
+			int ipStart = header.position();
+			if (ipv4) {
+				header.putShort((short) 0x4500).putShort((short) (ipHeaderLength + udpLength)).putInt(0);
+				header.put((byte) 64).put((byte) 17).putShort((short) 0);
+				if (slot.incoming) {
+					header.put(remote).putInt(0);
+				} else {
+					header.putInt(0).put(remote);
+				}
+				header.putShort(ipStart + 10, ipv4Checksum(ipStart));
+			} else {
+				header.putInt(0x60000000).putShort((short) udpLength).put((byte) 17).put((byte) 64);
+				if (slot.incoming) {
+					header.put(remote).putLong(0).putLong(0);
+				} else {
+					header.putLong(0).putLong(0).put(remote);
+				}
+			}
+
+			// UDP header, without checksum.
+			int remotePort = slot.address.getPort();
+			header.putShort((short) (slot.incoming ? remotePort : localPort));
+			header.putShort((short) (slot.incoming ? localPort : remotePort));
+			header.putShort((short) udpLength).putShort((short) 0);
+
+			out.write(header.array(), 0, header.position());
+			out.write(slot.data, 0, slot.loggedLength);
+		}
+
+		/**
+		 * Computes the checksum of an IPv4 header.
+		 *
+		 * @param start
+		 *            index of the header in {@link #header}
+		 * @return the checksum
+		 */
+		private short ipv4Checksum(int start) {
+			int sum = 0;
+			for (int i = start; i < start + 20; i += 2) {
+				sum += header.getShort(i) & 0xFFFF;
+			}
+			while ((sum >>> 16) != 0) {
+				sum = (sum & 0xFFFF) + (sum >>> 16);
+			}
+			return (short) ~sum;
+		}
+	}
+
+	/**
+	 * Log of the packets, or null if they're not logged.
+	 */
+	private static PacketLog packetLog;
+
+	/**
+	 * A client of the man-in-the-middle mode, like an entry of a NAT table.
+	 * Each flow has its own upstream channel on an ephemeral port, so the
+	 * replies received on it from the forwarding address belong to this
+	 * client only.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class Flow {
+
+		/**
+		 * The address and port of the client.
+		 */
+		private final SocketAddress client;
+
+		/**
+		 * Channel used to exchange the packets of this client with the
+		 * forwarding address, bound to an ephemeral port.
+		 */
+		private final DatagramChannel upstream;
+
+		/**
+		 * The worker which receives the packets of this flow.
+		 */
+		private final Worker owner;
+
+		/**
+		 * When the last packet has been sent or received, in milliseconds.
+		 */
+		private volatile long lastActivity;
+
+		/**
+		 * Opens a new flow.
+		 *
+		 * @param client
+		 *            the address and port of the client
+		 * @param owner
+		 *            the worker which receives the packets of this flow
+		 * @throws IOException
+		 *             if the upstream channel can't be opened
+		 */
+		private Flow(SocketAddress client, Worker owner) throws IOException {
+			this.client = client;
+			this.owner = owner;
+			DatagramChannel channel = DatagramChannel.open();
+			try {
+				channel.configureBlocking(false);
+				// The channel is not connected, since a connected channel
+				// doesn't send empty packets.
+				channel.bind(null);
+			} catch (IOException e) {
+				// The flow is not created, so nobody else would close it.
+				channel.close();
+				throw e;
+			}
+			this.upstream = channel;
+		}
+	}
+
+	/**
+	 * The man-in-the-middle flows, by address and port of the client.
+	 */
+	private static final ConcurrentHashMap<SocketAddress, Flow> flows = new ConcurrentHashMap<SocketAddress, Flow>();
 
 	/**
 	 * Starts the server. Once started, the server will listen for incoming
-	 * connections and reply accordingly to the given configuration.
+	 * connections and reply accordingly to the given configuration. The
+	 * channel is used in non-blocking mode with a {@link Selector}: the
+	 * packets available are received in batches into pooled direct buffers
+	 * and forwarded from the same buffers without being copied. The buffers
+	 * are big enough for any UDP packet.
 	 *
-	 * @param serverPort
-	 *            the port where the server will be listening
 	 * @param forwardingAddress
 	 *            the address where the server will redirect the incoming
 	 *            packets
@@ -94,140 +823,591 @@ public class UdpInterceptorServer {
 	 */
 	public static void startServer(InetAddress forwardingAddress, Integer forwardingPort, boolean manInTheMiddleMode)
 			throws IOException {
-		// Address where to send the packets.
-		InetAddress returnAddress = forwardingAddress;
-		Integer returnPort = forwardingPort;
-
-		// Variables used by the man-in-the-middle mode.
-		InetAddress oldAddress = null;
-		int oldPort = 0;
-		int mimCounter = 0;
-
-		// Application main loop. Listens for incoming connections and
-		// forwards them accordingly to the current configuration.
-		while (true) {
-			// Gets the incoming packet.
-			byte[] receiveData = new byte[1024];
-			DatagramPacket incomingPacket = new DatagramPacket(receiveData, receiveData.length);
-			try {
-				serverSocket.receive(incomingPacket);
-			} catch (IOException e) {
-				// Don't rethrow this, so if an exception occurs for one
-				// packet, the application still runs.
-				e.printStackTrace();
-			}
-
-			// Logs the received packet to standard output.
-			log(incomingPacket, true);
-
-			// Creates a new packet.
-			byte[] data = incomingPacket.getData();
+		startServer(forwardingAddress, forwardingPort, manInTheMiddleMode, MAX_PACKET_SIZE);
+	}
 
-			// If no return address has been passed as argument, the packet is
-			// just sent back to the original sender each time.
-			if (forwardingAddress == null) {
-				returnAddress = incomingPacket.getAddress();
-				returnPort = incomingPacket.getPort();
-			}
+	/**
+	 * Starts the server with buffers of the given size. Packets bigger than
+	 * the buffers are truncated by the network stack, so the packets which
+	 * fill a buffer are counted and reported on the standard error at most
+	 * once a second. Smaller buffers use less memory when the traffic is
+	 * known to fit in the MTU.
+	 *
+	 * @param forwardingAddress
+	 *            the address where the server will redirect the incoming
+	 *            packets
+	 * @param forwardingPort
+	 *            the port where the server will redirect the incoming packets
+	 * @param manInTheMiddleMode
+	 *            whether to work in man-in-the-middle mode or not
+	 * @param bufferSize
+	 *            the size of the buffers where the packets are received, up
+	 *            to 65507 bytes
+	 * @throws IOException
+	 */
+	public static void startServer(InetAddress forwardingAddress, Integer forwardingPort, boolean manInTheMiddleMode,
+			int bufferSize) throws IOException {
+		startServer(forwardingAddress, forwardingPort, manInTheMiddleMode, bufferSize, LogFormat.HEX,
+				new FileOutputStream(FileDescriptor.out));
+	}
 
-			// Handles the forward according to the current mode.
-			if (manInTheMiddleMode) {
+	/**
+	 * Starts the server with buffers of the given size, logging the packets
+	 * in the given format. The log is written by a background thread, so it
+	 * never slows down the forwarding: if it can't keep up, some entries are
+	 * dropped and counted on the standard error instead.
+	 *
+	 * @param forwardingAddress
+	 *            the address where the server will redirect the incoming
+	 *            packets
+	 * @param forwardingPort
+	 *            the port where the server will redirect the incoming packets
+	 * @param manInTheMiddleMode
+	 *            whether to work in man-in-the-middle mode or not
+	 * @param bufferSize
+	 *            the size of the buffers where the packets are received, up
+	 *            to 65507 bytes
+	 * @param logFormat
+	 *            the format of the packet log
+	 * @param logOutput
+	 *            where the packet log is written
+	 * @throws IOException
+	 */
+	public static void startServer(InetAddress forwardingAddress, Integer forwardingPort, boolean manInTheMiddleMode,
+			int bufferSize, LogFormat logFormat, OutputStream logOutput) throws IOException {
+		startServer(forwardingAddress, forwardingPort, manInTheMiddleMode, bufferSize, logFormat, logOutput, 1);
+	}
 
-				// This counter thing is very naive and it doesn't take into
-				// account the fact that multiple requests may be sent before
-				// any response is received but it'll do for this simple server.
-				if (mimCounter % 2 == 0) {
-					// Even packets go through the destination
-					// normally.
-					// Save the originator address and port
-					// to forward later there.
-					oldAddress = incomingPacket.getAddress();
-					oldPort = incomingPacket.getPort();
+	/**
+	 * Starts the server with the given number of workers. Each worker is a
+	 * thread with its own channel bound to the same port through
+	 * SO_REUSEPORT, so the kernel spreads the packets between them and the
+	 * forwarding scales with the cores. The kernel picks the channel from the
+	 * addresses and ports of the packet, so all the packets of a client, and
+	 * its man-in-the-middle flow, stay on the same worker. The server channel
+	 * must have been opened with {@link #enableReusePort(DatagramChannel)}
+	 * before being bound for more than one worker to be started.
+	 *
+	 * @param forwardingAddress
+	 *            the address where the server will redirect the incoming
+	 *            packets
+	 * @param forwardingPort
+	 *            the port where the server will redirect the incoming packets
+	 * @param manInTheMiddleMode
+	 *            whether to work in man-in-the-middle mode or not
+	 * @param bufferSize
+	 *            the size of the buffers where the packets are received, up
+	 *            to 65507 bytes
+	 * @param logFormat
+	 *            the format of the packet log
+	 * @param logOutput
+	 *            where the packet log is written
+	 * @param workers
+	 *            the number of worker threads
+	 * @throws IOException
+	 */
+	public static void startServer(InetAddress forwardingAddress, Integer forwardingPort, boolean manInTheMiddleMode,
+			int bufferSize, LogFormat logFormat, OutputStream logOutput, int workers) throws IOException {
+		if (bufferSize <= 0 || bufferSize > MAX_PACKET_SIZE) {
+			throw new IllegalArgumentException(
+					"Buffer size must be between 1 and " + MAX_PACKET_SIZE + " bytes: " + bufferSize);
+		}
+		if (workers <= 0) {
+			throw new IllegalArgumentException("There must be at least one worker: " + workers);
+		}
+		InetSocketAddress localAddress = (InetSocketAddress) serverChannel.getLocalAddress();
+		if (logFormat != LogFormat.NONE) {
+			packetLog = new PacketLog(logFormat, logOutput, localAddress.getPort());
+			// Writes the entries left in the ring when the server is stopped.
+			Runtime.getRuntime().addShutdownHook(new Thread() {
 
-					sendPacket(data, returnAddress, returnPort);
-				} else {
-					// Odd packets get sent back to the first sender.
-					sendPacket(data, oldAddress, oldPort);
+				/*
+				 * (non-Javadoc)
+				 *
+				 * @see java.lang.Thread#run()
+				 */
+				@Override
+				public void run() {
+					packetLog.close();
 				}
+			});
+		}
 
-				// Increments the counter.
-				mimCounter++;
+		// Address where to send the packets.
+		SocketAddress returnAddress = forwardingAddress != null
+				? new InetSocketAddress(forwardingAddress, forwardingPort) : null;
 
-			} else {
-				// Sends the packet to the address and port specified at
-				// constructor time.
-				sendPacket(data, returnAddress, returnPort);
+		// The other workers get their own channel on the same port, while
+		// the first one runs on this thread.
+		for (int i = 1; i < workers; i++) {
+			DatagramChannel channel = DatagramChannel.open();
+			if (!enableReusePort(channel)) {
+				throw new IOException("SO_REUSEPORT is not supported, can't start more than one worker");
 			}
+			channel.bind(localAddress);
+			Thread thread = new Thread(new Worker(channel, bufferSize, returnAddress, manInTheMiddleMode),
+					"udp-worker-" + i);
+			thread.start();
 		}
+		new Worker(serverChannel, bufferSize, returnAddress, manInTheMiddleMode).serve();
 	}
 
 	/**
-	 * Logs a packet.
-	 * 
-	 * @param packet
-	 *            the packet to log
-	 * @param incoming
-	 *            whether the packet is incoming (true) or outcoming (false)
+	 * Enables SO_REUSEPORT on a channel which is not bound yet, so that more
+	 * channels can be bound to the same port. The option is looked up by name
+	 * since it's available only from Java 9 and on some platforms.
+	 *
+	 * @param channel
+	 *            the channel where the option is enabled
+	 * @return true if the option has been enabled, false if it's not
+	 *         supported
+	 * @throws IOException
+	 *             if an I/O error occurs
 	 */
-	private static void log(DatagramPacket packet, boolean incoming) {
-		String direction = incoming ? "received" : "sent";
-		String logHeader = "-------- UDP packet " + direction + " --------";
-		System.out.println(logHeader);
-		System.out.println("RAW data : " + byteArrayToPrettyString(packet.getData()));
-		System.out.println("Data : " + new String(packet.getData()));
-		System.out.println("Port: " + packet.getPort());
-		System.out.println("Address : " + packet.getAddress());
-		System.out.println("Socket Address: " + packet.getSocketAddress());
-		System.out.println("Length : " + packet.getLength());
-		System.out.println("Offset : " + packet.getOffset());
-		System.out.println("-------------------------------------");
-		System.out.println();
+	@SuppressWarnings("unchecked")
+	public static boolean enableReusePort(DatagramChannel channel) throws IOException {
+		for (SocketOption<?> option : channel.supportedOptions()) {
+			if (option.name().equals("SO_REUSEPORT") && option.type() == Boolean.class) {
+				channel.setOption((SocketOption<Boolean>) option, true);
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
-	 * Sends a packet to the specified address.
-	 * 
+	 * Logs a packet, if the log is enabled. The packet is only copied, it's
+	 * formatted and written later by the log writer.
+	 *
 	 * @param data
-	 *            the data to send
-	 * @param destinationAddress
-	 *            the address where to send the packet
-	 * @param destinationPort
-	 *            the port where to send the packet
+	 *            the content of the packet, from index 0 to its limit
+	 * @param address
+	 *            the address where the packet comes from or is sent to
+	 * @param incoming
+	 *            whether the packet is incoming (true) or outcoming (false)
 	 */
-	private static void sendPacket(byte[] data, InetAddress destinationAddress, int destinationPort) {
-		// Gets the effective length of a packet by getting subtracting the
-		// number of trailing 0 bytes from the packet size.
-		int packetLength = data.length - 1;
-		// Decrements the counter while the value of the read byte is zero.
-		while (data[packetLength] == ZERO_BYTE) {
-			packetLength--;
-		}
-		packetLength++;
-
-		// Sends the packet.
-		DatagramPacket packet = new DatagramPacket(data, packetLength, destinationAddress, destinationPort);
-		try {
-			serverSocket.send(packet);
-			log(packet, false);
-		} catch (IOException e) {
-			e.printStackTrace();
+	private static void log(ByteBuffer data, SocketAddress address, boolean incoming) {
+		if (packetLog != null) {
+			packetLog.record(data, address, incoming);
 		}
 	}
 
 	/**
-	 * Converts a byte array into a string with each byte separated by a
-	 * whitespace.
-	 * 
-	 * @param data
-	 *            the byte array to convert
-	 * @return a string representing the byte array
+	 * Event loop of the server on one channel. Each worker has its own
+	 * channel, buffers and queue, and owns the man-in-the-middle flows of the
+	 * clients it receives, so workers share only the flow table and the
+	 * packet log. This class is not ThreadSafe, each instance is used by a
+	 * single thread.
+	 *
+	 * @author Donato Rimenti
+	 *
 	 */
-	private static String byteArrayToPrettyString(byte[] data) {
-		StringBuilder builder = new StringBuilder();
-		for (byte b : data) {
-			builder.append(b).append(' ');
+	private static final class Worker implements Runnable {
+
+		/**
+		 * Channel used to send and receive data.
+		 */
+		private final DatagramChannel channel;
+
+		/**
+		 * The size of the buffers where the packets are received.
+		 */
+		private final int bufferSize;
+
+		/**
+		 * The address where the packets are forwarded, or null to send them
+		 * back to the sender.
+		 */
+		private final SocketAddress returnAddress;
+
+		/**
+		 * Whether to work in man-in-the-middle mode or not.
+		 */
+		private final boolean manInTheMiddleMode;
+
+		/**
+		 * Pool of the buffers where the packets are received.
+		 */
+		private final BufferPool bufferPool;
+
+		/**
+		 * Packets waiting for the channel to be writable, in the same order
+		 * of {@link #pendingDestinations}.
+		 */
+		private final ArrayDeque<ByteBuffer> pendingPackets = new ArrayDeque<ByteBuffer>();
+
+		/**
+		 * Destinations of the packets waiting for the channel to be writable.
+		 */
+		private final ArrayDeque<SocketAddress> pendingDestinations = new ArrayDeque<SocketAddress>();
+
+		/**
+		 * Number of packets dropped since the queue of pending packets was
+		 * full.
+		 */
+		private long droppedPackets;
+
+		/**
+		 * Number of received packets which filled their buffer and so may
+		 * have been truncated.
+		 */
+		private long truncatedPackets;
+
+		/**
+		 * Number of truncated packets last reported.
+		 */
+		private long reportedTruncations;
+
+		/**
+		 * Number of packets of new clients dropped since there were too many
+		 * flows.
+		 */
+		private long rejectedPackets;
+
+		/**
+		 * Number of packets dropped for too many flows last reported.
+		 */
+		private long reportedRejections;
+
+		/**
+		 * Selector of the channel and of the upstream channels of the flows.
+		 */
+		private Selector selector;
+
+		/**
+		 * Builds a new worker.
+		 *
+		 * @param channel
+		 *            channel used to send and receive data, already bound
+		 * @param bufferSize
+		 *            the size of the buffers where the packets are received
+		 * @param returnAddress
+		 *            the address where the packets are forwarded, or null to
+		 *            send them back to the sender
+		 * @param manInTheMiddleMode
+		 *            whether to work in man-in-the-middle mode or not
+		 */
+		private Worker(DatagramChannel channel, int bufferSize, SocketAddress returnAddress,
+				boolean manInTheMiddleMode) {
+			this.channel = channel;
+			this.bufferSize = bufferSize;
+			this.returnAddress = returnAddress;
+			this.manInTheMiddleMode = manInTheMiddleMode;
+			this.bufferPool = new BufferPool(bufferSize);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				serve();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Runs the event loop. Listens for incoming connections and forwards
+		 * them accordingly to the current configuration. Never returns.
+		 *
+		 * @throws IOException
+		 *             if the selector can't be opened
+		 */
+		private void serve() throws IOException {
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			long lastEviction = System.currentTimeMillis();
+			long lastReport = 0;
+
+			while (true) {
+				selector.select(FLOW_EVICTION_INTERVAL_MILLIS);
+				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey selectedKey = selectedKeys.next();
+					selectedKeys.remove();
+					if (!selectedKey.isValid()) {
+						// The flow has been evicted.
+						continue;
+					}
+					if (selectedKey != key) {
+						// Replies for a man-in-the-middle flow.
+						receiveReplies((Flow) selectedKey.attachment());
+						continue;
+					}
+
+					// Sends the packets which didn't fit in the socket buffer
+					// before.
+					if (key.isWritable()) {
+						flushPendingPackets();
+					}
+					if (key.isReadable()) {
+						receivePackets();
+					}
+				}
+
+				// Waits for the channel to be writable only if there's
+				// something to send.
+				key.interestOps(pendingPackets.isEmpty() ? SelectionKey.OP_READ
+						: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+				// Closes the flows of the clients which went away.
+				long now = System.currentTimeMillis();
+				if (manInTheMiddleMode && now - lastEviction >= FLOW_EVICTION_INTERVAL_MILLIS) {
+					evictIdleFlows(now);
+					lastEviction = now;
+				}
+
+				// Reports the truncated and rejected packets at most once per
+				// interval, since they usually come in bursts.
+				if (now - lastReport >= REPORT_INTERVAL_MILLIS) {
+					if (truncatedPackets != reportedTruncations) {
+						reportedTruncations = truncatedPackets;
+						lastReport = now;
+						System.err.println("Packets which may have been truncated to " + bufferSize + " bytes so far: "
+								+ truncatedPackets);
+					}
+					if (rejectedPackets != reportedRejections) {
+						reportedRejections = rejectedPackets;
+						lastReport = now;
+						System.err.println("Too many flows, packets of new clients dropped so far: " + rejectedPackets);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Gets the incoming packets available on the channel, up to
+		 * {@link UdpInterceptorServer#MAX_PACKETS_PER_SELECT}, and forwards
+		 * them accordingly to the current configuration. The others are
+		 * received the next time the channel is selected.
+		 */
+		private void receivePackets() {
+			for (int received = 0; received < MAX_PACKETS_PER_SELECT; received++) {
+				ByteBuffer data = bufferPool.acquire();
+				SocketAddress sender;
+				try {
+					sender = channel.receive(data);
+				} catch (IOException e) {
+					// Don't rethrow this, so if an exception occurs for one
+					// packet, the application still runs.
+					e.printStackTrace();
+					bufferPool.release(data);
+					return;
+				}
+				if (sender == null) {
+					// No more packets for now.
+					bufferPool.release(data);
+					return;
+				}
+				// Only the received bytes are forwarded, which may have been
+				// cut if the packet didn't fit in the buffer.
+				if (data.position() == bufferSize && bufferSize < MAX_PACKET_SIZE) {
+					truncatedPackets++;
+				}
+				data.flip();
+
+				// Logs the received packet to standard output.
+				log(data, sender, true);
+
+				if (returnAddress == null) {
+					// If no return address has been passed as argument, the
+					// packet is just sent back to the original sender each
+					// time.
+					sendPacket(data, sender);
+				} else if (manInTheMiddleMode) {
+					// Each client gets its own upstream channel, so the
+					// replies received on it go back to that client only.
+					sendUpstream(data, sender);
+				} else {
+					// Sends the packet to the address and port specified at
+					// constructor time.
+					sendPacket(data, returnAddress);
+				}
+			}
+		}
+
+		/**
+		 * Sends a packet of a client to the forwarding address through the
+		 * upstream channel of its flow, opening the flow if it's the first
+		 * packet of the client. The packet is dropped if the socket buffer is
+		 * full, or if the client is new and there are already
+		 * {@link UdpInterceptorServer#MAX_FLOWS} flows.
+		 *
+		 * @param data
+		 *            the data to send
+		 * @param client
+		 *            the address and port of the client
+		 */
+		private void sendUpstream(ByteBuffer data, SocketAddress client) {
+			try {
+				Flow flow = flows.get(client);
+				if (flow == null) {
+					if (flows.size() >= MAX_FLOWS) {
+						rejectedPackets++;
+						bufferPool.release(data);
+						return;
+					}
+					flow = new Flow(client, this);
+					try {
+						flow.upstream.register(selector, SelectionKey.OP_READ, flow);
+					} catch (IOException e) {
+						flow.upstream.close();
+						throw e;
+					}
+					flows.put(client, flow);
+				}
+				flow.lastActivity = System.currentTimeMillis();
+				// An empty packet is sent even if nothing is written.
+				if (flow.upstream.send(data, returnAddress) == 0 && data.hasRemaining()) {
+					System.err.println("Upstream socket buffer full, packet from " + client + " dropped");
+				} else {
+					log(data, returnAddress, false);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			bufferPool.release(data);
+		}
+
+		/**
+		 * Gets the replies available on the upstream channel of a flow, up to
+		 * {@link UdpInterceptorServer#MAX_PACKETS_PER_SELECT}, and sends them
+		 * back to its client through the channel of this worker. Packets from
+		 * other addresses than the forwarding one are dropped.
+		 *
+		 * @param flow
+		 *            the flow which received the replies
+		 */
+		private void receiveReplies(Flow flow) {
+			for (int received = 0; received < MAX_PACKETS_PER_SELECT; received++) {
+				ByteBuffer data = bufferPool.acquire();
+				SocketAddress sender;
+				try {
+					sender = flow.upstream.receive(data);
+				} catch (IOException e) {
+					// The upstream may be unreachable, which doesn't affect
+					// the other flows.
+					System.err.println("Upstream error for " + flow.client + ": " + e);
+					bufferPool.release(data);
+					return;
+				}
+				if (sender == null) {
+					bufferPool.release(data);
+					return;
+				}
+				if (!sender.equals(returnAddress)) {
+					// The channel is not connected, so anyone could send to
+					// it, but only the forwarding address replies.
+					bufferPool.release(data);
+					continue;
+				}
+				if (data.position() == bufferSize && bufferSize < MAX_PACKET_SIZE) {
+					truncatedPackets++;
+				}
+				data.flip();
+				flow.lastActivity = System.currentTimeMillis();
+				log(data, sender, true);
+				sendPacket(data, flow.client);
+			}
+		}
+
+		/**
+		 * Closes the flows of this worker which have been idle for longer than
+		 * {@link UdpInterceptorServer#FLOW_IDLE_TIMEOUT_MILLIS}, along with
+		 * their upstream channels.
+		 *
+		 * @param now
+		 *            the current time, in milliseconds
+		 */
+		private void evictIdleFlows(long now) {
+			Iterator<Flow> iterator = flows.values().iterator();
+			while (iterator.hasNext()) {
+				Flow flow = iterator.next();
+				if (flow.owner == this && now - flow.lastActivity > FLOW_IDLE_TIMEOUT_MILLIS) {
+					iterator.remove();
+					try {
+						flow.upstream.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sends a packet to the specified address. If the socket buffer is
+		 * full, the packet is queued until the channel is writable again, or
+		 * dropped if the queue is full too. The buffer goes back to the pool
+		 * once the packet has been sent or dropped.
+		 *
+		 * @param data
+		 *            the data to send, from its position to its limit
+		 * @param destination
+		 *            the address and port where to send the packet
+		 */
+		private void sendPacket(ByteBuffer data, SocketAddress destination) {
+			// Packets are sent in order, so this one waits for the others.
+			if (!pendingPackets.isEmpty()) {
+				queuePacket(data, destination);
+				return;
+			}
+			try {
+				// An empty packet is sent even if nothing is written.
+				if (channel.send(data, destination) == 0 && data.hasRemaining()) {
+					queuePacket(data, destination);
+					return;
+				}
+				log(data, destination, false);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			bufferPool.release(data);
+		}
+
+		/**
+		 * Queues a packet which can't be sent until the channel is writable.
+		 *
+		 * @param data
+		 *            the data to send
+		 * @param destination
+		 *            the address and port where to send the packet
+		 */
+		private void queuePacket(ByteBuffer data, SocketAddress destination) {
+			if (pendingPackets.size() >= MAX_PENDING_PACKETS) {
+				droppedPackets++;
+				System.err.println("Send queue full, packets dropped so far: " + droppedPackets);
+				bufferPool.release(data);
+				return;
+			}
+			pendingPackets.addLast(data);
+			pendingDestinations.addLast(destination);
+		}
+
+		/**
+		 * Sends the queued packets until the socket buffer is full again.
+		 */
+		private void flushPendingPackets() {
+			while (!pendingPackets.isEmpty()) {
+				ByteBuffer data = pendingPackets.peekFirst();
+				SocketAddress destination = pendingDestinations.peekFirst();
+				try {
+					if (channel.send(data, destination) == 0 && data.hasRemaining()) {
+						return;
+					}
+					log(data, destination, false);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				pendingPackets.pollFirst();
+				pendingDestinations.pollFirst();
+				bufferPool.release(data);
+			}
 		}
-		return builder.toString();
 	}
 
 	/**
@@ -242,9 +1422,8 @@ public class UdpInterceptorServer {
 	 * argument and then any value</li>
 	 * <li>man-in-the-middle, in this mode the server will redirect the packets
 	 * as in redirect mode and send the reply received to the original server.
-	 * Please note that the implementation of this mode is really naive and
-	 * assumes that each even packet is a reply, so multiple requests within a
-	 * short window of time may cause issues.</li>
+	 * Each client gets its own upstream socket, so the replies always go back
+	 * to the right client.</li>
 	 * </ul>
 	 *
 	 * @param args
@@ -260,6 +1439,12 @@ public class UdpInterceptorServer {
 	 *            mode, the server will capture a packet, send it to the
 	 *            forwarding address and port, get the reply and forward it back
 	 *            to the first request originator</li>
+	 *            <li>(optional) the size in bytes of the buffers where the
+	 *            packets are received, up to 65507 (the default)</li>
+	 *            <li>(optional) the format of the packet log: hex (the
+	 *            default), line, pcap or none</li>
+	 *            <li>(optional) the file where the packets are logged</li>
+	 *            <li>(optional) the number of worker threads</li>
 	 *            </ol>
 	 * @throws IOException
 	 */
@@ -268,11 +1453,49 @@ public class UdpInterceptorServer {
 		InetAddress forwardingAddress = null;
 		boolean manInTheMiddleMode = false;
 		int forwardingPort = 0;
+		int bufferSize = MAX_PACKET_SIZE;
+		LogFormat logFormat = LogFormat.HEX;
+		int workers = 1;
+		String logFile = null;
 		// First argument is the binding port.
 		switch (args.length) {
+		case 8:
+			// Eighth argument is the number of worker threads.
+			workers = Integer.valueOf(args[7]);
+			if (workers <= 0) {
+				System.out.println("There must be at least one worker.");
+				System.exit(1);
+			}
+			System.out.println("Starting " + workers + " workers");
+		case 7:
+			// Seventh argument is the file where the packets are logged, or
+			// "-" for the standard output.
+			if (!args[6].equals("-")) {
+				logFile = args[6];
+			}
+		case 6:
+			// Sixth argument is the format of the packet log.
+			try {
+				logFormat = LogFormat.valueOf(args[5].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.out.println("Log format must be one of: hex, line, pcap, none.");
+				System.exit(1);
+			}
+			if (logFormat == LogFormat.PCAP && (args.length < 7 || args[6].equals("-"))) {
+				System.out.println("The pcap log format needs a log file.");
+				System.exit(1);
+			}
+		case 5:
+			// Fifth argument is the size of the receive buffers.
+			bufferSize = Integer.valueOf(args[4]);
+			if (bufferSize <= 0 || bufferSize > MAX_PACKET_SIZE) {
+				System.out.println("Buffer size must be between 1 and " + MAX_PACKET_SIZE + " bytes.");
+				System.exit(1);
+			}
+			System.out.println("Receiving packets up to " + bufferSize + " bytes");
 		case 4:
 			// Fourth argument enables man in the middle mode if not 0.
-			if (!args[4].equals("0")) {
+			if (!args[3].equals("0")) {
 				System.out.println("Working in man-in-the-middle mode");
 				manInTheMiddleMode = true;
 			}
@@ -281,8 +1504,14 @@ public class UdpInterceptorServer {
 			System.out.println("Binding to port: " + args[0]);
 			serverBindingPort = Integer.valueOf(args[0]);
 
-			// Creates the server.
-			serverSocket = new DatagramSocket(serverBindingPort);
+			// Creates the server. More workers need SO_REUSEPORT to share the
+			// port.
+			serverChannel = DatagramChannel.open();
+			if (workers > 1 && !enableReusePort(serverChannel)) {
+				System.out.println("SO_REUSEPORT is not supported, starting a single worker");
+				workers = 1;
+			}
+			serverChannel.bind(new InetSocketAddress(serverBindingPort));
 
 			// Second and third arguments are the forwarding address and port.
 			System.out.println("Forwarding captured packets to: " + args[1] + ":" + args[2]);
@@ -296,17 +1525,29 @@ public class UdpInterceptorServer {
 		// Other cases are not accepted.
 		default:
 			System.out
-					.println("Usage: <binding_port> (<forward_address> | 0) <forward_port> [man-in-the-middle-mode].");
+					.println("Usage: <binding_port> (<forward_address> | 0) <forward_port> [man-in-the-middle-mode] [buffer_size] [log_format] [log_file] [workers].");
 			System.out.println("Passing a <forward_address> 0 will enable echo mode.");
 			System.out.println(
 					"[man-in-the-middle-mode] is an integer which can be 0 for disabled or any other value for enabled (0 is the default value).");
+			System.out.println("[buffer_size] is the size of the receive buffers, up to 65507 bytes (the default value).");
+			System.out.println("[log_format] is one of hex (the default value), line, pcap or none.");
+			System.out.println("[log_file] is where the packets are logged, - for the standard output (the default value).");
+			System.out.println("[workers] is the number of threads sharing the port through SO_REUSEPORT (1 is the default value).");
 
 			System.exit(1);
 			break;
 		}
 
+		// The log file is opened only once all the arguments are valid, so
+		// that wrong ones don't truncate an existing capture.
+		OutputStream logOutput = new FileOutputStream(FileDescriptor.out);
+		if (logFile != null) {
+			System.out.println("Logging packets to: " + logFile);
+			logOutput = new FileOutputStream(logFile);
+		}
+
 		// Starts up the server with the selected configuration.
-		startServer(forwardingAddress, forwardingPort, manInTheMiddleMode);
+		startServer(forwardingAddress, forwardingPort, manInTheMiddleMode, bufferSize, logFormat, logOutput, workers);
 	}
 
 }
\ No newline at end of file
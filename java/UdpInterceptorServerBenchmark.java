@@ -0,0 +1,457 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Donato Rimenti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.aurasphere.scripts;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+/**
+ * Loopback benchmark for the forwarding loop of {@link UdpInterceptorServer}.
+ * The server is started in this JVM through its command line entry point,
+ * with the packet log disabled, in two modes:
+ *
+ * <ul>
+ * <li>redirect, where the packets go from a client channel through the
+ * server to a sink channel. The latency is one way</li>
+ * <li>man-in-the-middle, where the packets go from a client channel through
+ * the server to an echo thread and back through the server to the client.
+ * The latency is a round trip</li>
+ * </ul>
+ *
+ * Each packet carries the time it was sent, so the latency of every packet is
+ * recorded. The client keeps at most {@value #WINDOW} packets in flight, so
+ * the loop measures the forwarding instead of the kernel dropping packets; a
+ * packet not delivered within {@value #LOSS_TIMEOUT_MILLIS} ms is counted as
+ * lost. The report shows the throughput in packets and megabytes per second,
+ * the latency percentiles, the lost packets and the bytes allocated by the
+ * server thread per packet, when the JVM can measure them. <br>
+ * <br>
+ * This file only depends on {@link UdpInterceptorServer}, so it can be run
+ * with:
+ *
+ * <pre>
+ * javac -d out UdpInterceptorServer.java UdpInterceptorServerBenchmark.java
+ * java -cp out co.aurasphere.scripts.UdpInterceptorServerBenchmark [seconds]
+ * </pre>
+ *
+ * @author Donato Rimenti
+ *
+ */
+public class UdpInterceptorServerBenchmark {
+
+	/**
+	 * Maximum number of packets in flight.
+	 */
+	private static final int WINDOW = 32;
+
+	/**
+	 * Time after which the packets in flight are considered lost.
+	 */
+	private static final long LOSS_TIMEOUT_MILLIS = 200;
+
+	/**
+	 * Sizes of the payloads of the packets, from a small message to a packet
+	 * filling an Ethernet frame.
+	 */
+	private static final int[] PAYLOAD_SIZES = { 64, 512, 1400 };
+
+	/**
+	 * Default measurement time of each benchmark, in seconds. The warmup
+	 * lasts half of it.
+	 */
+	private static final int DEFAULT_SECONDS = 2;
+
+	/**
+	 * Outcome of a run of {@link UdpInterceptorServerBenchmark#loop}.
+	 *
+	 * @author Donato Rimenti
+	 *
+	 */
+	private static final class Result {
+
+		/**
+		 * Number of packets received.
+		 */
+		private int received;
+
+		/**
+		 * Number of packets lost.
+		 */
+		private long lost;
+
+		/**
+		 * Latency of each packet received, in nanoseconds.
+		 */
+		private long[] latencies = new long[1 << 16];
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args
+	 *            optionally, the measurement time of each benchmark in seconds
+	 * @throws Exception
+	 *             if the server can't be started or an I/O error occurs
+	 */
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_SECONDS;
+
+		// Redirect mode: client -> server -> sink.
+		DatagramChannel sink = DatagramChannel.open().bind(
+				new InetSocketAddress("127.0.0.1", 0));
+		int redirectPort = freePort();
+		Thread redirectServer = startServer(redirectPort, port(sink), false,
+				sink);
+		DatagramChannel redirectClient = DatagramChannel.open().connect(
+				new InetSocketAddress("127.0.0.1", redirectPort));
+
+		// Man-in-the-middle mode: client -> server -> echo -> server ->
+		// client.
+		DatagramChannel echo = DatagramChannel.open().bind(
+				new InetSocketAddress("127.0.0.1", 0));
+		startEcho(echo);
+		int manInTheMiddlePort = freePort();
+		Thread manInTheMiddleServer = startServer(manInTheMiddlePort,
+				port(echo), true, null);
+		DatagramChannel manInTheMiddleClient = DatagramChannel.open().connect(
+				new InetSocketAddress("127.0.0.1", manInTheMiddlePort));
+
+		System.out.println(header());
+		for (int size : PAYLOAD_SIZES) {
+			run("redirect " + size + " B", seconds, size, redirectClient, sink,
+					redirectServer);
+		}
+		for (int size : PAYLOAD_SIZES) {
+			run("man-in-the-middle " + size + " B", seconds, size,
+					manInTheMiddleClient, manInTheMiddleClient,
+					manInTheMiddleServer);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Returns a port which is free at the time of the call.
+	 *
+	 * @return a free UDP port on the loopback address
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static int freePort() throws IOException {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			return port(channel.bind(new InetSocketAddress("127.0.0.1", 0)));
+		}
+	}
+
+	/**
+	 * Returns the local port of a bound channel.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @return its local port
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static int port(DatagramChannel channel) throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Starts a server on a daemon thread, which is the thread its worker runs
+	 * on, and waits until it forwards packets.
+	 *
+	 * @param port
+	 *            the port of the server
+	 * @param forwardingPort
+	 *            the port where the server forwards the packets, on the
+	 *            loopback address
+	 * @param manInTheMiddleMode
+	 *            whether to work in man-in-the-middle mode
+	 * @param sink
+	 *            the channel where the server forwards the packets, or null
+	 *            if they come back to the sender
+	 * @return the thread of the server
+	 * @throws Exception
+	 *             if the server doesn't start
+	 */
+	private static Thread startServer(int port, int forwardingPort,
+			boolean manInTheMiddleMode, DatagramChannel sink) throws Exception {
+		final String[] args = { String.valueOf(port), "127.0.0.1",
+				String.valueOf(forwardingPort), manInTheMiddleMode ? "1" : "0",
+				"65507", "none" };
+		Thread thread = new Thread("udp-server-" + port) {
+
+			/*
+			 * (non-Javadoc)
+			 *
+			 * @see java.lang.Thread#run()
+			 */
+			@Override
+			public void run() {
+				try {
+					UdpInterceptorServer.main(args);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+
+		// The server binds its port on its own thread, so it's probed with
+		// one byte packets until one of them comes through.
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			probe.connect(new InetSocketAddress("127.0.0.1", port));
+			probe.configureBlocking(false);
+			DatagramChannel answer = sink != null ? sink : probe;
+			answer.configureBlocking(false);
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (System.currentTimeMillis() < deadline) {
+				try {
+					probe.write(ByteBuffer.allocate(1));
+					Thread.sleep(50);
+					if (answer.receive(buffer) != null) {
+						return thread;
+					}
+				} catch (IOException e) {
+					// Not bound yet.
+				}
+			}
+		}
+		throw new IllegalStateException("Server on port " + port
+				+ " didn't start");
+	}
+
+	/**
+	 * Starts a daemon thread which sends back every packet received on a
+	 * channel.
+	 *
+	 * @param channel
+	 *            the channel to echo
+	 */
+	private static void startEcho(final DatagramChannel channel) {
+		Thread thread = new Thread("udp-echo") {
+
+			/*
+			 * (non-Javadoc)
+			 *
+			 * @see java.lang.Thread#run()
+			 */
+			@Override
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+				try {
+					while (true) {
+						buffer.clear();
+						SocketAddress sender = channel.receive(buffer);
+						buffer.flip();
+						channel.send(buffer, sender);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the header of the report.
+	 *
+	 * @return the header line
+	 */
+	private static String header() {
+		return String.format("%-28s %12s %10s %10s %10s %10s %10s %8s %10s",
+				"Benchmark", "packets/s", "MB/s", "p50 us", "p90 us",
+				"p99 us", "p99.9 us", "lost", "bytes/pkt");
+	}
+
+	/**
+	 * Warms up and measures the forwarding of packets of a given size, then
+	 * prints a line of the report.
+	 *
+	 * @param name
+	 *            the name of the benchmark
+	 * @param seconds
+	 *            the measurement time
+	 * @param size
+	 *            the size of the payloads
+	 * @param out
+	 *            the channel where the packets are sent to the server
+	 * @param in
+	 *            the channel where the forwarded packets are received, which
+	 *            may be the same as the sending one
+	 * @param server
+	 *            the thread of the server
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void run(String name, int seconds, int size,
+			DatagramChannel out, DatagramChannel in, Thread server)
+			throws IOException {
+		out.configureBlocking(false);
+		in.configureBlocking(false);
+		Selector selector = Selector.open();
+		in.register(selector, SelectionKey.OP_READ);
+		ByteBuffer packet = ByteBuffer.allocateDirect(size);
+		ByteBuffer received = ByteBuffer.allocateDirect(65536);
+
+		// Drops what's left from the previous run.
+		while (in.receive(received) != null) {
+			received.clear();
+		}
+
+		// Warmup.
+		loop(seconds * 500L, out, in, selector, packet, received);
+
+		// Measurement.
+		long allocatedBefore = allocatedBytes(server);
+		long start = System.nanoTime();
+		Result result = loop(seconds * 1000L, out, in, selector, packet,
+				received);
+		long elapsed = System.nanoTime() - start;
+		long allocatedAfter = allocatedBytes(server);
+		selector.close();
+
+		int count = result.received;
+		long[] latencies = Arrays.copyOf(result.latencies, count);
+		Arrays.sort(latencies);
+		System.out.println(String.format(
+				"%-28s %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f %8d %10s",
+				name, count * 1e9 / elapsed, (double) count * size * 1e3
+						/ elapsed, percentile(latencies, 0.5),
+				percentile(latencies, 0.9), percentile(latencies, 0.99),
+				percentile(latencies, 0.999), result.lost,
+				allocatedBefore < 0 || count == 0 ? "n/a" : String.format(
+						"%.1f", (double) (allocatedAfter - allocatedBefore)
+								/ count)));
+	}
+
+	/**
+	 * Sends packets and receives them back for the given time, keeping at
+	 * most {@link #WINDOW} of them in flight.
+	 *
+	 * @param millis
+	 *            how long to run
+	 * @param out
+	 *            the channel where the packets are sent
+	 * @param in
+	 *            the channel where the packets are received
+	 * @param selector
+	 *            a selector where the receiving channel is registered
+	 * @param packet
+	 *            the buffer of the packet to send
+	 * @param received
+	 *            the buffer where the packets are received
+	 * @return the packets received and lost and the latency of each of them
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static Result loop(long millis, DatagramChannel out,
+			DatagramChannel in, Selector selector, ByteBuffer packet,
+			ByteBuffer received) throws IOException {
+		Result result = new Result();
+		long end = System.nanoTime() + millis * 1_000_000L;
+		int inFlight = 0;
+		while (System.nanoTime() < end) {
+			while (inFlight < WINDOW) {
+				packet.clear();
+				packet.putLong(0, System.nanoTime());
+				if (out.write(packet) == 0) {
+					break;
+				}
+				inFlight++;
+			}
+			if (selector.select(LOSS_TIMEOUT_MILLIS) == 0) {
+				result.lost += inFlight;
+				inFlight = 0;
+				continue;
+			}
+			selector.selectedKeys().clear();
+			received.clear();
+			while (in.receive(received) != null) {
+				long now = System.nanoTime();
+				// Skips the probes sent while starting the server.
+				if (received.position() >= 8) {
+					if (result.received == result.latencies.length) {
+						result.latencies = Arrays.copyOf(result.latencies,
+								result.received * 2);
+					}
+					result.latencies[result.received++] = now
+							- received.getLong(0);
+				}
+				inFlight = Math.max(0, inFlight - 1);
+				received.clear();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a percentile of the sorted latencies.
+	 *
+	 * @param latencies
+	 *            the sorted latencies, in nanoseconds
+	 * @param percentile
+	 *            the percentile, between 0 and 1
+	 * @return the latency at the given percentile, in microseconds
+	 */
+	private static double percentile(long[] latencies, double percentile) {
+		if (latencies.length == 0) {
+			return Double.NaN;
+		}
+		int index = (int) Math.min(latencies.length - 1,
+				Math.ceil(percentile * latencies.length) - 1);
+		return latencies[Math.max(0, index)] / 1e3;
+	}
+
+	/**
+	 * Returns the bytes allocated so far by a thread.
+	 *
+	 * @param thread
+	 *            the thread
+	 * @return the allocated bytes, or -1 if the JVM doesn't support this
+	 *         measurement
+	 */
+	private static long allocatedBytes(Thread thread) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(thread.getId());
+		}
+		return -1;
+	}
+
+}